@@ -18,43 +18,59 @@
  ****************************************************************/
 package org.apache.cayenne.serialization;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
 
+import org.apache.cayenne.CayenneRuntimeException;
 import org.apache.cayenne.ObjectContext;
 
 /**
- * A common superclass for deserializers defining some implementation
- * independent parameters.
+ * A common superclass for text deserializers, reading from a Reader.
+ * InputStream methods read UTF-8 text.
  */
-public abstract class BaseDeserializer implements SubgraphDeserializer {
-
-	protected int commitCountThreshold = 1000;
-	protected boolean committing = true;
+public abstract class BaseDeserializer extends BaseStreamDeserializer implements SubgraphDeserializer {
 
 	public abstract <T> T deserialize(ObjectContext context, Subgraph<T> subgraph, Reader in);
 
 	/**
-	 * Returns the max size of the commit batch. This is needed to constrain
-	 * memory use. The default is 1000 objects. Note that setting "committing"
-	 * flag to false would cause deserializer to ignore this setting.
+	 * Returns an iterator over the root objects of a document with multiple
+	 * roots. Each root is deserialized lazily when the iterator reaches it.
+	 * Implementations return an iterator that is also {@link java.io.Closeable},
+	 * and callers must close it if they stop before it is exhausted. The
+	 * default implementation throws UnsupportedOperationException, subclasses
+	 * that support multi-root documents override it.
 	 */
-	public int getCommitCountThreshold() {
-		return commitCountThreshold;
+	public <T> Iterator<T> deserializeIterator(ObjectContext context, Subgraph<T> subgraph, Reader in) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support multi-root documents");
 	}
 
-	public void setCommitCountThreshold(int commitCountThreshold) {
-		this.commitCountThreshold = commitCountThreshold;
+	/**
+	 * Deserializes a document read from the stream. The default implementation
+	 * reads UTF-8 via {@link #deserialize(ObjectContext, Subgraph, Reader)}.
+	 */
+	@Override
+	public <T> T deserialize(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+		return deserialize(context, subgraph, createReader(in));
 	}
 
 	/**
-	 * Returns true if deserializer will commit deserialized objects. True is
-	 * the default.
+	 * Returns an iterator over the root objects of a document with multiple
+	 * roots read from the stream. The default implementation reads UTF-8 via
+	 * {@link #deserializeIterator(ObjectContext, Subgraph, Reader)}.
 	 */
-	public boolean isCommitting() {
-		return committing;
+	@Override
+	public <T> Iterator<T> deserializeIterator(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+		return deserializeIterator(context, subgraph, createReader(in));
 	}
 
-	public void setCommitting(boolean committing) {
-		this.committing = committing;
+	private Reader createReader(InputStream in) {
+		try {
+			return new InputStreamReader(in, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new CayenneRuntimeException("UTF-8 is not supported", e);
+		}
 	}
 }
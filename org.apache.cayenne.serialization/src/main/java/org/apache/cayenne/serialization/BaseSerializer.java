@@ -18,28 +18,95 @@
  ****************************************************************/
 package org.apache.cayenne.serialization;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.Iterator;
 
-public abstract class BaseSerializer implements SubgraphSerializer {
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.query.Query;
 
-	protected int statementFetchSize;
+/**
+ * A common superclass for text serializers, writing to a Writer. OutputStream
+ * methods write UTF-8 text.
+ */
+public abstract class BaseSerializer extends BaseStreamSerializer implements SubgraphSerializer {
 
 	public abstract <T> void serialize(T object, Subgraph<T> subgraph, Writer out);
 
-	public int getStatementFetchSize() {
-		return statementFetchSize;
+	/**
+	 * Serializes all root objects returned by the iterator into a single
+	 * document. The default implementation throws
+	 * UnsupportedOperationException, subclasses that support multi-root
+	 * documents override it.
+	 */
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, Writer out) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support multi-root documents");
+	}
+
+	/**
+	 * Serializes all root objects fetched by the query into a single document.
+	 * The default implementation throws UnsupportedOperationException,
+	 * subclasses that support multi-root documents override it.
+	 */
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, Writer out) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support multi-root documents");
+	}
+
+	/**
+	 * Serializes the object into the stream. The default implementation
+	 * writes UTF-8 via {@link #serialize(Object, Subgraph, Writer)}. The
+	 * stream is not closed.
+	 */
+	@Override
+	public <T> void serialize(T object, Subgraph<T> subgraph, OutputStream out) {
+		Writer writer = createWriter(out);
+		serialize(object, subgraph, writer);
+		flush(writer);
+	}
+
+	/**
+	 * Serializes all root objects returned by the iterator into a single
+	 * document written to the stream. The default implementation writes UTF-8
+	 * via {@link #serialize(Iterator, Subgraph, Writer)}. The stream is not
+	 * closed.
+	 */
+	@Override
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, OutputStream out) {
+		Writer writer = createWriter(out);
+		serialize(roots, subgraph, writer);
+		flush(writer);
 	}
 
 	/**
-	 * Sets a JDBC Statement "fetch size", which is a critical hint for
-	 * serializing large datasets.
-	 * <p>
-	 * MySQL Note: per <a href="http://dev.mysql.com/doc/refman/5.0/en/connector-j-reference-implementation-notes.html"
-	 * >MySQL docs</a> to enable streaming fetch size must be equal to
-	 * Integer.MIN_VALUE. For other databases it should be a non-negative number
-	 * per JDBC standard.
+	 * Serializes all root objects fetched by the query into a single document
+	 * written to the stream. The default implementation writes UTF-8 via
+	 * {@link #serialize(ObjectContext, Query, Subgraph, Writer)}. The stream
+	 * is not closed.
 	 */
-	public void setStatementFetchSize(int statementFetchSize) {
-		this.statementFetchSize = statementFetchSize;
+	@Override
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, OutputStream out) {
+		Writer writer = createWriter(out);
+		serialize(context, rootsQuery, subgraph, writer);
+		flush(writer);
+	}
+
+	private Writer createWriter(OutputStream out) {
+		try {
+			return new OutputStreamWriter(out, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new CayenneRuntimeException("UTF-8 is not supported", e);
+		}
+	}
+
+	private void flush(Writer writer) {
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		}
 	}
 }
@@ -0,0 +1,136 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.io.InputStream;
+import java.util.Iterator;
+
+import org.apache.cayenne.ObjectContext;
+
+/**
+ * A common superclass for deserializers defining some implementation
+ * independent parameters. Deserializers of binary formats extend it directly,
+ * while text deserializers extend {@link BaseDeserializer}.
+ */
+public abstract class BaseStreamDeserializer implements SubgraphStreamDeserializer {
+
+	protected int commitCountThreshold = 1000;
+	protected boolean committing = true;
+	protected int referenceBatchSize;
+	protected int referenceCacheSize;
+	protected boolean evictingCommittedObjects;
+
+	public abstract <T> T deserialize(ObjectContext context, Subgraph<T> subgraph, InputStream in);
+
+	/**
+	 * Returns an iterator over the root objects of a document with multiple
+	 * roots read from the stream. Each root is deserialized lazily when the
+	 * iterator reaches it. Implementations return an iterator that is also
+	 * {@link java.io.Closeable}, and callers must close it if they stop before
+	 * it is exhausted. The default implementation throws
+	 * UnsupportedOperationException, subclasses that support multi-root
+	 * documents override it.
+	 */
+	public <T> Iterator<T> deserializeIterator(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support multi-root documents");
+	}
+
+	/**
+	 * Returns the max size of the commit batch. This is needed to constrain
+	 * memory use. The default is 1000 objects. Note that setting "committing"
+	 * flag to false would cause deserializer to ignore this setting.
+	 */
+	public int getCommitCountThreshold() {
+		return commitCountThreshold;
+	}
+
+	public void setCommitCountThreshold(int commitCountThreshold) {
+		this.commitCountThreshold = commitCountThreshold;
+	}
+
+	/**
+	 * Returns true if deserializer will commit deserialized objects. True is
+	 * the default.
+	 */
+	public boolean isCommitting() {
+		return committing;
+	}
+
+	public void setCommitting(boolean committing) {
+		this.committing = committing;
+	}
+
+	/**
+	 * Returns true if deserializer will remove objects from the ObjectContext
+	 * after each intermediate commit. False is the default.
+	 */
+	public boolean isEvictingCommittedObjects() {
+		return evictingCommittedObjects;
+	}
+
+	/**
+	 * Sets whether deserializer should unregister committed objects from the
+	 * ObjectContext after each intermediate commit, keeping only the objects
+	 * that are still being deserialized. This keeps context size proportional
+	 * to the commit batch size instead of the document size. Note that
+	 * relationships of the objects that stay in the context are turned into
+	 * faults, so reading them later results in a query.
+	 */
+	public void setEvictingCommittedObjects(boolean evictingCommittedObjects) {
+		this.evictingCommittedObjects = evictingCommittedObjects;
+	}
+
+	/**
+	 * Returns the max number of by-reference objects that are resolved
+	 * together with a single query per entity. The default is 0, meaning that
+	 * each reference is resolved with its own query as soon as it is read.
+	 */
+	public int getReferenceBatchSize() {
+		return referenceBatchSize;
+	}
+
+	/**
+	 * Sets the max number of by-reference objects that should be resolved
+	 * together. When it is greater than zero, ObjectIds of the references are
+	 * collected per entity and matched against the database with IN queries,
+	 * and the relationships are connected once the batch is resolved. Pending
+	 * references are always resolved before an intermediate commit.
+	 */
+	public void setReferenceBatchSize(int referenceBatchSize) {
+		this.referenceBatchSize = referenceBatchSize;
+	}
+
+	/**
+	 * Returns the max number of resolved by-reference objects kept in a cache
+	 * for the duration of a single deserialization run. The default is 0,
+	 * meaning that no cache is used.
+	 */
+	public int getReferenceCacheSize() {
+		return referenceCacheSize;
+	}
+
+	/**
+	 * Sets the max number of resolved by-reference objects to keep in a
+	 * per-run LRU cache keyed by ObjectId. This helps when the same small set
+	 * of rows is referenced many times by the imported objects.
+	 */
+	public void setReferenceCacheSize(int referenceCacheSize) {
+		this.referenceCacheSize = referenceCacheSize;
+	}
+}
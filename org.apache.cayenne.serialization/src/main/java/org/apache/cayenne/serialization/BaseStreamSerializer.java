@@ -0,0 +1,92 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.query.Query;
+import org.apache.cayenne.query.SelectQuery;
+
+/**
+ * A common superclass for serializers defining some implementation
+ * independent parameters. Serializers of binary formats extend it directly,
+ * while text serializers extend {@link BaseSerializer}.
+ */
+public abstract class BaseStreamSerializer implements SubgraphStreamSerializer {
+
+	protected int statementFetchSize;
+
+	public abstract <T> void serialize(T object, Subgraph<T> subgraph, OutputStream out);
+
+	/**
+	 * Serializes all root objects returned by the iterator into a single
+	 * document written to the stream. The default implementation throws
+	 * UnsupportedOperationException, subclasses that support multi-root
+	 * documents override it. The stream is not closed.
+	 */
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, OutputStream out) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support multi-root documents");
+	}
+
+	/**
+	 * Serializes all root objects fetched by the query into a single document
+	 * written to the stream. The default implementation throws
+	 * UnsupportedOperationException, subclasses that support multi-root
+	 * documents override it. The stream is not closed.
+	 */
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, OutputStream out) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not support multi-root documents");
+	}
+
+	/**
+	 * Returns a query to fetch roots with, applying "statementFetchSize" to a
+	 * copy of a SelectQuery, so that the caller query is left intact. Other
+	 * queries are returned as is.
+	 */
+	protected Query withStatementFetchSize(Query rootsQuery) {
+
+		if (!(rootsQuery instanceof SelectQuery)) {
+			return rootsQuery;
+		}
+
+		SelectQuery copy = ((SelectQuery) rootsQuery).queryWithParameters(Collections.<String, Object> emptyMap());
+		copy.setStatementFetchSize(statementFetchSize);
+		return copy;
+	}
+
+	public int getStatementFetchSize() {
+		return statementFetchSize;
+	}
+
+	/**
+	 * Sets a JDBC Statement "fetch size", which is a critical hint for
+	 * serializing large datasets.
+	 * <p>
+	 * MySQL Note: per <a href="http://dev.mysql.com/doc/refman/5.0/en/connector-j-reference-implementation-notes.html"
+	 * >MySQL docs</a> to enable streaming fetch size must be equal to
+	 * Integer.MIN_VALUE. For other databases it should be a non-negative number
+	 * per JDBC standard.
+	 */
+	public void setStatementFetchSize(int statementFetchSize) {
+		this.statementFetchSize = statementFetchSize;
+	}
+}
@@ -0,0 +1,40 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.util.List;
+
+import org.apache.cayenne.query.Query;
+
+/**
+ * A serialization callback of a to-many node that provides a single query for
+ * multiple parent objects. Results are partitioned back to the parents by the
+ * FK of the node relationship, so the query must return rows of the node
+ * entity, including the FK column. Only single-join to-many relationships are
+ * supported.
+ */
+public interface BatchSerializationCallback extends SubgraphCallback {
+
+	/**
+	 * Returns a query of related objects of all the source objects, or null to
+	 * use the default relationship query. Source objects are persistent
+	 * objects or DataRows, depending on the serialization mode.
+	 */
+	Query relationshipQuery(SubgraphNode node, List<?> sourceObjects);
+}
@@ -0,0 +1,464 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.access.Transaction;
+import org.apache.cayenne.exp.Expression;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.reflect.ArcProperty;
+import org.apache.cayenne.reflect.ClassDescriptor;
+import org.apache.cayenne.reflect.ToManyProperty;
+
+/**
+ * State of a single run of a streaming deserializer, iterating over the root
+ * objects of a document. Subclasses parse their input format and report the
+ * objects they read, while this class connects the objects to their parents,
+ * invokes deserialization callbacks, resolves by-reference objects and
+ * commits objects in batches per "commitCountThreshold".
+ * <p>
+ * If "referenceBatchSize" is greater than zero, by-reference objects are
+ * resolved together with a single query per entity, and callbacks of the
+ * objects read after a pending reference are postponed until it is resolved,
+ * so that they are invoked in the same order as without batching. Pending
+ * references are resolved before each commit and at the end of each root
+ * object. References to objects that no longer exist are skipped, and counted
+ * by the {@link ReferenceLookup} of the run.
+ * <p>
+ * If "referenceCacheSize" is set, resolved by-reference objects are kept in a
+ * {@link ReferenceCache} for the duration of the run. If
+ * "evictingCommittedObjects" is set, the objects of each committed batch that
+ * are no longer being read are unregistered from the context.
+ */
+public abstract class DeserializationRun<T> implements Iterator<T>, Closeable {
+
+	protected ObjectContext context;
+	protected SubgraphNode rootNode;
+
+	private boolean committing;
+	private int commitCountThreshold;
+	private int referenceBatchSize;
+	private int count;
+	private Map<String, ClassDescriptor> descriptors;
+	private ReferenceLookup referenceLookup;
+	private boolean done;
+
+	// by-reference objects and postponed callbacks in the order they were
+	// read, with the ids of the pending references per entity
+	private List<PendingObject> pendingObjects;
+	private Map<String, Set<ObjectId>> pendingIds;
+	private int pendingReferences;
+
+	// new objects of the current commit batch and the objects whose
+	// subgraphs are still being read, only tracked when committed objects
+	// are evicted from the context
+	private List<NewObject> newObjects;
+	private List<NewObject> openObjects;
+
+	protected DeserializationRun(ObjectContext context, Subgraph<T> subgraph, BaseStreamDeserializer deserializer) {
+		this.context = context;
+		this.rootNode = subgraph.getRootNode();
+		this.committing = deserializer.isCommitting();
+		this.commitCountThreshold = committing ? deserializer.getCommitCountThreshold() : 0;
+		this.referenceBatchSize = deserializer.getReferenceBatchSize();
+		this.descriptors = new HashMap<String, ClassDescriptor>();
+		this.pendingObjects = new ArrayList<PendingObject>();
+		this.pendingIds = new LinkedHashMap<String, Set<ObjectId>>();
+
+		int referenceCacheSize = deserializer.getReferenceCacheSize();
+		ReferenceCache referenceCache = referenceCacheSize > 0 ? new ReferenceCache(referenceCacheSize) : null;
+		this.referenceLookup = new ReferenceLookup(context, referenceBatchSize, referenceCache);
+
+		if (deserializer.isEvictingCommittedObjects() && commitCountThreshold > 0) {
+			this.newObjects = new ArrayList<NewObject>(commitCountThreshold);
+			this.openObjects = new ArrayList<NewObject>();
+		}
+	}
+
+	/**
+	 * Returns true if the input has another root object, reading ahead as
+	 * needed.
+	 */
+	protected abstract boolean hasNextRoot() throws IOException;
+
+	/**
+	 * Reads the next root object.
+	 */
+	protected abstract Object readRoot() throws IOException;
+
+	protected abstract void closeInput() throws IOException;
+
+	public boolean hasNext() {
+
+		if (done) {
+			return false;
+		}
+
+		boolean hasNext;
+		try {
+			hasNext = hasNextRoot();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error reading input", e);
+		}
+
+		if (!hasNext) {
+			done = true;
+
+			if (commitCountThreshold > 0) {
+				context.commitChanges();
+			}
+
+			referenceLookup.logSummary();
+		}
+
+		return hasNext;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		Object root;
+		try {
+			root = readRoot();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error reading input", e);
+		}
+
+		resolvePending();
+		return (T) root;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Closes the input without committing the objects of the last batch.
+	 */
+	public void close() throws IOException {
+		done = true;
+		closeInput();
+	}
+
+	/**
+	 * Deserializes the first root object. In "committing" mode it is
+	 * committed, and all intermediate commits are wrapped in a single
+	 * transaction to allow for atomic rollback.
+	 */
+	public T deserializeFirst() {
+
+		if (!committing) {
+			T result = next();
+			referenceLookup.logSummary();
+			return result;
+		}
+
+		Transaction tx = ((DataContext) context).getParentDataDomain().createTransaction();
+		Transaction.bindThreadTransaction(tx);
+
+		try {
+			T result = next();
+			context.commitChanges();
+			tx.commit();
+			referenceLookup.logSummary();
+			return result;
+		} catch (Exception ex) {
+			tx.setRollbackOnly();
+			throw new CayenneRuntimeException("Error deserializing", ex);
+		} finally {
+			Transaction.bindThreadTransaction(null);
+
+			if (tx.getStatus() == Transaction.STATUS_MARKED_ROLLEDBACK) {
+				try {
+					tx.rollback();
+				} catch (Exception rollbackEx) {
+				}
+			}
+		}
+	}
+
+	protected ClassDescriptor getDescriptor(String entityName) {
+		ClassDescriptor descriptor = descriptors.get(entityName);
+		if (descriptor == null) {
+			descriptor = context.getEntityResolver().getClassDescriptor(entityName);
+			if (descriptor == null) {
+				throw new CayenneRuntimeException("Unknown entity: " + entityName);
+			}
+
+			descriptors.put(entityName, descriptor);
+		}
+
+		return descriptor;
+	}
+
+	/**
+	 * Creates a new object of a clone node, registers it in the context and
+	 * connects it to the parent. The caller reads its properties and then
+	 * calls {@link #objectRead(SubgraphNode, Object)}.
+	 */
+	protected Object createObject(SubgraphNode node, Object parent, ClassDescriptor descriptor) {
+		Object object = descriptor.createObject();
+		context.registerNewObject(object);
+		connect(node, parent, object);
+
+		if (newObjects != null) {
+			NewObject newObject = new NewObject(node, (Persistent) object);
+			newObjects.add(newObject);
+			openObjects.add(newObject);
+		}
+
+		return object;
+	}
+
+	/**
+	 * Called once the object of a clone node and its subgraph are read.
+	 */
+	protected void objectRead(SubgraphNode node, Object object) {
+
+		if (openObjects != null) {
+			openObjects.remove(openObjects.size() - 1);
+		}
+
+		if (pendingObjects.isEmpty()) {
+			postDeserialize(node, object);
+		} else {
+			pendingObjects.add(new PendingObject(node, null, object, null));
+		}
+
+		count++;
+		if (commitCountThreshold > 0 && count % commitCountThreshold == 0) {
+			resolvePending();
+			context.commitChanges();
+
+			if (newObjects != null) {
+				evictCommittedObjects();
+			}
+		}
+	}
+
+	/**
+	 * Unregisters committed objects that are no longer being read, and makes
+	 * sure that the objects remaining in the context do not reference them.
+	 */
+	private void evictCommittedObjects() {
+
+		List<Persistent> evicted = new ArrayList<Persistent>(newObjects.size());
+		List<NewObject> retained = new ArrayList<NewObject>();
+
+		for (NewObject newObject : newObjects) {
+			if (openObjects.contains(newObject)) {
+				retained.add(newObject);
+				continue;
+			}
+
+			evicted.add(newObject.object);
+
+			// to-one targets (e.g. references) stay in the context, and their
+			// reverse to-many lists still contain the evicted object
+			for (SubgraphNode child : newObject.node.getChildren()) {
+				ArcProperty arc = child.getIncomingProperty();
+				if (arc.getRelationship().isToMany()) {
+					continue;
+				}
+
+				ArcProperty reverse = arc.getComplimentaryReverseArc();
+				if (reverse != null) {
+					Object target = arc.readPropertyDirectly(newObject.object);
+					if (target instanceof Persistent) {
+						reverse.invalidate(target);
+					}
+				}
+			}
+		}
+
+		// relationships of the objects being read turn into faults
+		for (NewObject open : openObjects) {
+			for (SubgraphNode child : open.node.getChildren()) {
+				child.getIncomingProperty().invalidate(open.object);
+			}
+		}
+
+		((DataContext) context).getObjectStore().objectsUnregistered(evicted);
+		newObjects = retained;
+	}
+
+	/**
+	 * Called when an id of a by-reference object is read. The object is
+	 * looked up and connected to the parent, or registered to be resolved
+	 * with the batch. Objects deleted since serialization are skipped and
+	 * counted as missing.
+	 */
+	protected void referenceRead(SubgraphNode node, Object parent, ObjectId id) {
+
+		if (referenceBatchSize <= 0) {
+			Object object = referenceLookup.lookup(id);
+			if (object != null) {
+				connect(node, parent, object);
+				postDeserialize(node, object);
+			}
+
+			return;
+		}
+
+		pendingObjects.add(new PendingObject(node, parent, null, id));
+
+		Set<ObjectId> ids = pendingIds.get(id.getEntityName());
+		if (ids == null) {
+			ids = new LinkedHashSet<ObjectId>();
+			pendingIds.put(id.getEntityName(), ids);
+		}
+		ids.add(id);
+
+		if (++pendingReferences >= referenceBatchSize) {
+			resolvePending();
+		}
+	}
+
+	/**
+	 * Resolves pending references, connects them to their parents and
+	 * invokes postponed callbacks in the order the objects were read.
+	 */
+	protected void resolvePending() {
+
+		if (pendingObjects.isEmpty()) {
+			return;
+		}
+
+		Map<ObjectId, Object> resolved = new HashMap<ObjectId, Object>();
+		for (Set<ObjectId> ids : pendingIds.values()) {
+			referenceLookup.lookup(ids, resolved);
+		}
+
+		for (PendingObject pending : pendingObjects) {
+			if (pending.id == null) {
+				postDeserialize(pending.node, pending.object);
+			} else {
+				Object object = resolved.get(pending.id);
+				if (object != null) {
+					connect(pending.node, pending.parent, object);
+					postDeserialize(pending.node, object);
+				} else {
+					referenceLookup.skipMissing(pending.id);
+				}
+			}
+		}
+
+		pendingObjects.clear();
+		pendingIds.clear();
+		pendingReferences = 0;
+	}
+
+	protected void connect(SubgraphNode node, Object parent, Object object) {
+		ArcProperty incoming = node.getIncomingProperty();
+		if (incoming != null && parent != null) {
+			if (incoming instanceof ToManyProperty) {
+				((ToManyProperty) incoming).addTarget(parent, object, true);
+			} else {
+				incoming.writeProperty(parent, null, object);
+			}
+		}
+	}
+
+	protected void postDeserialize(SubgraphNode node, Object object) {
+		for (DeserializationCallback callback : node.getDeserializationCallbacks()) {
+			callback.postDeserialize(node, object);
+		}
+	}
+
+	/**
+	 * Builds a qualifier matching a list of ObjectIds of the same entity.
+	 */
+	public static Expression qualifier(List<ObjectId> ids) {
+
+		Map<String, Object> firstSnapshot = ids.get(0).getIdSnapshot();
+
+		if (firstSnapshot.size() == 1) {
+			String pk = firstSnapshot.keySet().iterator().next();
+
+			Collection<Object> values = new ArrayList<Object>(ids.size());
+			for (ObjectId id : ids) {
+				values.add(id.getIdSnapshot().get(pk));
+			}
+
+			return ExpressionFactory.inDbExp(pk, values);
+		}
+
+		// compound PK
+		List<Expression> clauses = new ArrayList<Expression>(ids.size());
+		for (ObjectId id : ids) {
+			clauses.add(ExpressionFactory.matchAllDbExp(id.getIdSnapshot(), Expression.EQUAL_TO));
+		}
+
+		return ExpressionFactory.joinExp(Expression.OR, clauses);
+	}
+
+	/**
+	 * An object created by the run, with its subgraph node.
+	 */
+	static class NewObject {
+
+		SubgraphNode node;
+		Persistent object;
+
+		NewObject(SubgraphNode node, Persistent object) {
+			this.node = node;
+			this.object = object;
+		}
+	}
+
+	/**
+	 * A by-reference object waiting to be resolved, or an object of a clone
+	 * node waiting for its callbacks.
+	 */
+	static class PendingObject {
+
+		SubgraphNode node;
+		Object parent;
+		Object object;
+		ObjectId id;
+
+		PendingObject(SubgraphNode node, Object parent, Object object, ObjectId id) {
+			this.node = node;
+			this.parent = parent;
+			this.object = object;
+			this.id = id;
+		}
+	}
+}
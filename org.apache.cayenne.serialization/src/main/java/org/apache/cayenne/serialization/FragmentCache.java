@@ -0,0 +1,192 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.cayenne.ObjectId;
+
+/**
+ * A size-bounded LRU cache of serialized fragments of a subgraph node, keyed
+ * by ObjectId. It is meant for rarely changing lookup entities, e.g.
+ * countries or units, that are written by value over and over again. A
+ * serializer that supports fragments writes the cached bytes of an object
+ * subtree instead of reading its properties and relationships.
+ * <p>
+ * If a version property is set, e.g. a version or a last modified timestamp
+ * attribute, a fragment is only reused while the value of the property is the
+ * same as when it was cached. Otherwise fragments have to be evicted
+ * explicitly when the objects change. A cache can be shared by subgraphs and
+ * threads, but not by subgraph nodes that include different properties.
+ */
+public class FragmentCache {
+
+	private Map<ObjectId, Fragment> fragments;
+	private String versionProperty;
+	private long maxSizeInBytes;
+	private long sizeInBytes;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a cache keeping at most "maxSizeInBytes" bytes of fragments.
+	 */
+	public FragmentCache(long maxSizeInBytes) {
+		this(maxSizeInBytes, null);
+	}
+
+	/**
+	 * Creates a cache keeping at most "maxSizeInBytes" bytes of fragments,
+	 * that checks the value of an attribute to detect changed objects.
+	 */
+	public FragmentCache(long maxSizeInBytes, String versionProperty) {
+
+		if (maxSizeInBytes <= 0) {
+			throw new IllegalArgumentException("Invalid cache size: " + maxSizeInBytes);
+		}
+
+		this.maxSizeInBytes = maxSizeInBytes;
+		this.versionProperty = versionProperty;
+
+		// access-ordered map, so that the least recently used fragments are
+		// evicted first
+		this.fragments = new LinkedHashMap<ObjectId, Fragment>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the cached fragment of the object, or null if it is not cached
+	 * or was cached with a different version.
+	 */
+	public synchronized byte[] get(ObjectId id, Object version) {
+
+		Fragment fragment = fragments.get(id);
+
+		if (fragment != null && !equal(version, fragment.version)) {
+			remove(id);
+			fragment = null;
+		}
+
+		if (fragment != null) {
+			hits++;
+			return fragment.bytes;
+		}
+
+		misses++;
+		return null;
+	}
+
+	public synchronized void put(ObjectId id, Object version, byte[] bytes) {
+
+		// a fragment that doesn't fit is not worth evicting everything else
+		if (bytes.length > maxSizeInBytes) {
+			return;
+		}
+
+		remove(id);
+		fragments.put(id, new Fragment(version, bytes));
+		sizeInBytes += bytes.length;
+
+		Iterator<Fragment> it = fragments.values().iterator();
+		while (sizeInBytes > maxSizeInBytes) {
+			sizeInBytes -= it.next().bytes.length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes the fragment of an object that was changed.
+	 */
+	public synchronized void evict(ObjectId id) {
+		remove(id);
+	}
+
+	public synchronized void clear() {
+		fragments.clear();
+		sizeInBytes = 0;
+	}
+
+	/**
+	 * Returns the name of the attribute checked to detect changed objects, or
+	 * null if fragments are only evicted explicitly.
+	 */
+	public String getVersionProperty() {
+		return versionProperty;
+	}
+
+	public synchronized int size() {
+		return fragments.size();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	public long getMaxSizeInBytes() {
+		return maxSizeInBytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the share of lookups that found a fragment, or 0 if there were
+	 * no lookups.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups > 0 ? (double) hits / lookups : 0;
+	}
+
+	private void remove(ObjectId id) {
+		Fragment removed = fragments.remove(id);
+		if (removed != null) {
+			sizeInBytes -= removed.bytes.length;
+		}
+	}
+
+	private static boolean equal(Object o1, Object o2) {
+
+		// DataRows and objects may hold timestamps as different Date
+		// subclasses that are never equal to each other
+		if (o1 instanceof Date && o2 instanceof Date) {
+			return ((Date) o1).getTime() == ((Date) o2).getTime();
+		}
+
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+
+	private static class Fragment {
+
+		Object version;
+		byte[] bytes;
+
+		Fragment(Object version, byte[] bytes) {
+			this.version = version;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.cayenne.ObjectId;
+
+/**
+ * A size-bounded LRU cache of by-reference objects resolved during a single
+ * deserialization run. Imports often refer to the same small set of rows
+ * over and over, so keeping them here saves a context lookup or a query per
+ * reference.
+ */
+public class ReferenceCache {
+
+	private Map<ObjectId, Object> objects;
+	private long hits;
+	private long misses;
+
+	public ReferenceCache(final int maxSize) {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+		}
+
+		// access-ordered map evicting the least recently used entry
+		this.objects = new LinkedHashMap<ObjectId, Object>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = -6044937346101466474L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ObjectId, Object> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public Object get(ObjectId id) {
+		Object object = objects.get(id);
+
+		if (object != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+
+		return object;
+	}
+
+	public void put(ObjectId id, Object object) {
+		objects.put(id, object);
+	}
+
+	public int size() {
+		return objects.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,183 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cayenne.Cayenne;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Looks up by-reference objects during a single deserialization run, either
+ * one at a time or with an IN query per entity. Objects are taken from an
+ * optional {@link ReferenceCache} or the context before going to the
+ * database. References to objects that no longer exist are counted and
+ * logged, so that all deserializers report the same bad data the same way.
+ */
+public class ReferenceLookup {
+
+	static final Log logger = LogFactory.getLog(ReferenceLookup.class);
+
+	private ObjectContext context;
+	private int batchSize;
+	private ReferenceCache referenceCache;
+	private int missingReferences;
+
+	/**
+	 * Creates a lookup fetching at most "batchSize" objects per query, or any
+	 * number of objects if "batchSize" is not positive. The cache may be
+	 * null.
+	 */
+	public ReferenceLookup(ObjectContext context, int batchSize, ReferenceCache referenceCache) {
+		this.context = context;
+		this.batchSize = batchSize;
+		this.referenceCache = referenceCache;
+	}
+
+	/**
+	 * Returns a cache of by-reference objects or null if caching is disabled.
+	 */
+	public ReferenceCache getReferenceCache() {
+		return referenceCache;
+	}
+
+	/**
+	 * Returns the number of references skipped so far, as their objects were
+	 * not found.
+	 */
+	public int getMissingReferences() {
+		return missingReferences;
+	}
+
+	/**
+	 * Returns the object with the id, or null if it does not exist, in which
+	 * case the reference is counted as missing.
+	 */
+	public Object lookup(ObjectId id) {
+
+		Object object = referenceCache != null ? referenceCache.get(id) : null;
+
+		if (object == null) {
+			object = Cayenne.objectForPK(context, id);
+
+			if (object != null && referenceCache != null) {
+				referenceCache.put(id, object);
+			}
+		}
+
+		if (object == null) {
+			skipMissing(id);
+		}
+
+		return object;
+	}
+
+	/**
+	 * Looks up objects of a single entity, putting the ones found into the
+	 * map. Callers should call {@link #skipMissing(ObjectId)} for each
+	 * reference whose object is not in the map afterwards.
+	 */
+	public void lookup(Collection<ObjectId> ids, Map<ObjectId, Object> objects) {
+
+		List<ObjectId> unresolved = new ArrayList<ObjectId>(ids.size());
+
+		// skip the objects that are cached or already registered in the
+		// context
+		for (ObjectId id : ids) {
+			Object object = referenceCache != null ? referenceCache.get(id) : null;
+
+			if (object == null) {
+				object = context.getGraphManager().getNode(id);
+
+				if (object != null && referenceCache != null) {
+					referenceCache.put(id, object);
+				}
+			}
+
+			if (object != null) {
+				objects.put(id, object);
+			} else {
+				unresolved.add(id);
+			}
+		}
+
+		if (unresolved.isEmpty()) {
+			return;
+		}
+
+		int sliceSize = batchSize > 0 ? batchSize : unresolved.size();
+		String entityName = unresolved.get(0).getEntityName();
+		Iterator<ObjectId> it = unresolved.iterator();
+		while (it.hasNext()) {
+
+			List<ObjectId> slice = new ArrayList<ObjectId>(sliceSize);
+			while (it.hasNext() && slice.size() < sliceSize) {
+				slice.add(it.next());
+			}
+
+			SelectQuery query = new SelectQuery(entityName, DeserializationRun.qualifier(slice));
+			for (Object object : context.performQuery(query)) {
+				ObjectId id = ((Persistent) object).getObjectId();
+				objects.put(id, object);
+
+				if (referenceCache != null) {
+					referenceCache.put(id, object);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts a reference to an object that was deleted after the document was
+	 * written, or never existed in this database, leaving the relationship
+	 * unset.
+	 */
+	public void skipMissing(ObjectId id) {
+		missingReferences++;
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Skipped reference to a missing object: " + id);
+		}
+	}
+
+	/**
+	 * Logs cache statistics and the number of missing references at the end
+	 * of a run.
+	 */
+	public void logSummary() {
+
+		if (referenceCache != null) {
+			logger.info("Reference cache hits: " + referenceCache.getHits() + ", misses: "
+					+ referenceCache.getMisses());
+		}
+
+		if (missingReferences > 0) {
+			logger.warn("Skipped " + missingReferences + " references to missing objects");
+		}
+	}
+}
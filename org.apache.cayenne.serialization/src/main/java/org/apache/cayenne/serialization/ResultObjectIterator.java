@@ -0,0 +1,67 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.util.Iterator;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.DataRow;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.ResultIterator;
+import org.apache.cayenne.access.DataContext;
+
+/**
+ * Adapts a ResultIterator over DataRows to an Iterator of persistent objects
+ * registered in the DataContext. Used by serializers to walk the roots and
+ * to-many relationships fetched via
+ * {@link DataContext#performIteratedQuery(org.apache.cayenne.query.Query)}
+ * without keeping them in memory. The ResultIterator is not closed by this
+ * class.
+ */
+public class ResultObjectIterator implements Iterator<Persistent> {
+
+	private ResultIterator result;
+	private DataContext context;
+
+	public ResultObjectIterator(ResultIterator result, DataContext context) {
+		this.result = result;
+		this.context = context;
+	}
+
+	public boolean hasNext() {
+		try {
+			return result.hasNextRow();
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error reading rows", e);
+		}
+	}
+
+	public Persistent next() {
+		try {
+			DataRow row = (DataRow) result.nextRow();
+			return context.objectFromDataRow(row.getEntityName(), row);
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error reading rows", e);
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -18,11 +18,14 @@
  ****************************************************************/
 package org.apache.cayenne.serialization;
 
+import java.util.Date;
 import java.util.StringTokenizer;
 
 import org.apache.cayenne.map.EntityResolver;
 import org.apache.cayenne.map.ObjEntity;
+import org.apache.cayenne.reflect.AttributeProperty;
 import org.apache.cayenne.reflect.ClassDescriptor;
+import org.apache.cayenne.reflect.Property;
 
 /**
  * Represents a subgraph of the Cayenne-mapped persistent object graph. Used as
@@ -32,6 +35,10 @@ public class Subgraph<T> implements SubgraphBuilder {
 
 	private SubgraphNode rootNode;
 
+	// the root of the whole subgraph, as builders returned for paths only
+	// know the last node of the path
+	private SubgraphNode treeRoot;
+
 	public Subgraph(Class<T> rootPersistentClass, EntityResolver entityResolver) {
 
 		if (rootPersistentClass == null) {
@@ -49,9 +56,11 @@ public class Subgraph<T> implements SubgraphBuilder {
 				.getName());
 
 		this.rootNode = new SubgraphNode(descriptor);
+		this.treeRoot = rootNode;
 	}
 
-	Subgraph(SubgraphNode rootNode) {
+	Subgraph(SubgraphNode treeRoot, SubgraphNode rootNode) {
+		this.treeRoot = treeRoot;
 		this.rootNode = rootNode;
 	}
 
@@ -80,7 +89,7 @@ public class Subgraph<T> implements SubgraphBuilder {
 			}
 		}
 		
-		return new Subgraph<Object>(node);
+		return new Subgraph<Object>(treeRoot, node);
 	}
 
 	/**
@@ -98,7 +107,7 @@ public class Subgraph<T> implements SubgraphBuilder {
 
 		addCallbacks(node, callbacks);
 
-		return new Subgraph<Object>(node);
+		return new Subgraph<Object>(treeRoot, node);
 	}
 
 	/**
@@ -118,9 +127,58 @@ public class Subgraph<T> implements SubgraphBuilder {
 		}
 
 		addCallbacks(node, callbacks);
-		return new Subgraph<Object>(node);
+		return new Subgraph<Object>(treeRoot, node);
 	}
 	
+	public SubgraphBuilder setFragmentCache(FragmentCache cache) {
+		rootNode.setFragmentCache(cache);
+		return this;
+	}
+
+	public SubgraphBuilder setWatermarkAttribute(String attribute) {
+		Property property = rootNode.getClassDescriptor().getProperty(attribute);
+		if (!(property instanceof AttributeProperty)) {
+			throw new IllegalArgumentException("Watermark '" + attribute
+					+ "' does not denote a mapped attribute property");
+		}
+
+		// all watermark attributes are compared to a single watermark value,
+		// so attributes of several nodes must be timestamps of the same type,
+		// as e.g. version numbers of different tables are unrelated
+		Class<?> type = ((AttributeProperty) property).getAttribute().getJavaClass();
+		Class<?> otherType = otherWatermarkType(treeRoot);
+		if (otherType != null && (otherType != type || !Date.class.isAssignableFrom(type))) {
+			throw new IllegalArgumentException("Watermark '" + attribute + "' of type " + type.getName()
+					+ " can't be combined with a " + otherType.getName()
+					+ " watermark, watermarks of multiple nodes must be timestamps of the same type");
+		}
+
+		rootNode.setWatermarkAttribute(attribute);
+		return this;
+	}
+
+	/**
+	 * Returns the Java type of a watermark attribute of a node other than the
+	 * root node of this builder, or null if there are no such attributes.
+	 */
+	private Class<?> otherWatermarkType(SubgraphNode node) {
+
+		if (node != rootNode && node.getWatermarkAttribute() != null) {
+			AttributeProperty property = (AttributeProperty) node.getClassDescriptor().getProperty(
+					node.getWatermarkAttribute());
+			return property.getAttribute().getJavaClass();
+		}
+
+		for (SubgraphNode child : node.getChildren()) {
+			Class<?> type = otherWatermarkType(child);
+			if (type != null) {
+				return type;
+			}
+		}
+
+		return null;
+	}
+
 	public SubgraphBuilder addCallbacks(SubgraphCallback... callbacks) {
 		addCallbacks(rootNode, callbacks);
 		return this;
@@ -135,6 +193,9 @@ public class Subgraph<T> implements SubgraphBuilder {
 				} else if (callback instanceof SerializationCallback) {
 					node
 							.addSerializationCallback((SerializationCallback) callback);
+				} else if (callback instanceof BatchSerializationCallback) {
+					node
+							.addBatchSerializationCallback((BatchSerializationCallback) callback);
 				} else {
 					throw new IllegalArgumentException(
 							"Unsupported callback type: " + callback);
@@ -43,4 +43,26 @@ public interface SubgraphBuilder {
 	SubgraphBuilder addRefPath(String path, SubgraphCallback... callbacks);
 
 	SubgraphBuilder excludeAttribute(String path);
+
+	/**
+	 * Sets a cache of serialized fragments for the root node of this builder,
+	 * so that a serializer can copy the output of its objects instead of
+	 * serializing them again. Only by-value nodes of rarely changing entities
+	 * benefit from caching.
+	 */
+	SubgraphBuilder setFragmentCache(FragmentCache cache);
+
+	/**
+	 * Sets an attribute of the root node of this builder whose values grow
+	 * whenever an object changes, e.g. a modification timestamp or a version
+	 * number. Delta exports only include objects whose subtree has a value
+	 * greater than the previous export watermark.
+	 * <p>
+	 * As all watermark attributes are compared to one watermark value, a
+	 * version number may only be used if it is the single watermark attribute
+	 * of the subgraph. Watermark attributes of several nodes must be
+	 * timestamps of the same Java type, otherwise IllegalArgumentException is
+	 * thrown.
+	 */
+	SubgraphBuilder setWatermarkAttribute(String attribute);
 }
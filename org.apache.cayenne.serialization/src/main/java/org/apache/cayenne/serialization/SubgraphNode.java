@@ -45,7 +45,10 @@ public class SubgraphNode {
 	private boolean serializedByReference;
 	private List<AttributeProperty> attributeProperties;
 	private List<SerializationCallback> serializationCallbacks;
+	private List<BatchSerializationCallback> batchSerializationCallbacks;
 	private List<DeserializationCallback> deserializationCallbacks;
+	private FragmentCache fragmentCache;
+	private String watermarkAttribute;
 
 	/**
 	 * Creates a root subgraph node.
@@ -53,6 +56,8 @@ public class SubgraphNode {
 	SubgraphNode(ClassDescriptor classDescriptor) {
 
 		this.serializationCallbacks = new ArrayList<SerializationCallback>(3);
+		this.batchSerializationCallbacks = new ArrayList<BatchSerializationCallback>(
+				3);
 		this.deserializationCallbacks = new ArrayList<DeserializationCallback>(
 				3);
 		this.classDescriptor = classDescriptor;
@@ -110,6 +115,31 @@ public class SubgraphNode {
 		this.serializedByReference = reference;
 	}
 
+	/**
+	 * Returns a cache of serialized fragments of this node's objects, or null
+	 * if the objects are serialized every time.
+	 */
+	public FragmentCache getFragmentCache() {
+		return fragmentCache;
+	}
+
+	public void setFragmentCache(FragmentCache fragmentCache) {
+		this.fragmentCache = fragmentCache;
+	}
+
+	/**
+	 * Returns the name of an attribute that records changes of this node's
+	 * objects, such as a modification timestamp or a version number, or null
+	 * if the node is not considered in delta exports.
+	 */
+	public String getWatermarkAttribute() {
+		return watermarkAttribute;
+	}
+
+	public void setWatermarkAttribute(String watermarkAttribute) {
+		this.watermarkAttribute = watermarkAttribute;
+	}
+
 	void excludeAttribute(String attributeName) {
 		Iterator<AttributeProperty> it = attributeProperties.iterator();
 		while (it.hasNext()) {
@@ -171,6 +201,10 @@ public class SubgraphNode {
 		serializationCallbacks.add(callback);
 	}
 
+	void addBatchSerializationCallback(BatchSerializationCallback callback) {
+		batchSerializationCallbacks.add(callback);
+	}
+
 	void addDeserializationCallback(DeserializationCallback callback) {
 		deserializationCallbacks.add(callback);
 	}
@@ -200,6 +234,10 @@ public class SubgraphNode {
 		return serializationCallbacks;
 	}
 
+	public List<BatchSerializationCallback> getBatchSerializationCallbacks() {
+		return batchSerializationCallbacks;
+	}
+
 	public List<DeserializationCallback> getDeserializationCallbacks() {
 		return deserializationCallbacks;
 	}
@@ -0,0 +1,168 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.cayenne.Cayenne;
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.ResultIterator;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.query.Query;
+import org.apache.cayenne.query.RelationshipQuery;
+import org.apache.cayenne.reflect.ArcProperty;
+import org.apache.cayenne.reflect.AttributeProperty;
+
+/**
+ * Walks the objects of a subgraph depth first, calling template methods for
+ * each object, attribute and relationship, so that streaming serializers only
+ * deal with their output format. Relationship queries of the serialization
+ * callbacks are honored, and to-many relationships are read via a
+ * ResultIterator to avoid keeping them in memory. A walker is created for a
+ * single serialization run.
+ */
+public abstract class SubgraphWalker {
+
+	protected int statementFetchSize;
+
+	protected SubgraphWalker(int statementFetchSize) {
+		this.statementFetchSize = statementFetchSize;
+	}
+
+	/**
+	 * Writes the object of the node with its subgraph. A null object is
+	 * written via {@link #writeNull(SubgraphNode)}.
+	 */
+	public void writeObject(SubgraphNode node, Object object) throws IOException {
+
+		if (object == null) {
+			writeNull(node);
+			return;
+		}
+
+		Persistent persistent = (Persistent) object;
+
+		if (node.isSerializedByReference()) {
+			writeReference(node, persistent.getObjectId());
+			return;
+		}
+
+		beginObject(node, persistent);
+
+		for (AttributeProperty property : node.getAttributeProperties()) {
+			writeAttribute(property, property.readProperty(object));
+		}
+
+		for (SubgraphNode child : node.getChildren()) {
+
+			Query query = null;
+			for (SerializationCallback callback : child.getSerializationCallbacks()) {
+				query = callback.relationshipQuery(child, object);
+				if (query != null) {
+					break;
+				}
+			}
+
+			ArcProperty incoming = child.getIncomingProperty();
+			if (incoming.getRelationship().isToMany()) {
+				beginToMany(child);
+				writeToMany(child, persistent, query);
+				endToMany(child);
+			} else if (query != null) {
+				writeToOne(child, Cayenne.objectForQuery(persistent.getObjectContext(), query));
+			} else {
+				writeToOne(child, incoming.readProperty(object));
+			}
+		}
+
+		endObject(node, persistent);
+	}
+
+	/**
+	 * Writes the target of a to-one relationship, that may be null. The
+	 * default implementation calls {@link #writeObject(SubgraphNode, Object)}.
+	 */
+	protected void writeToOne(SubgraphNode node, Object target) throws IOException {
+		writeObject(node, target);
+	}
+
+	protected abstract void writeNull(SubgraphNode node) throws IOException;
+
+	protected abstract void writeReference(SubgraphNode node, ObjectId id) throws IOException;
+
+	protected abstract void beginObject(SubgraphNode node, Persistent object) throws IOException;
+
+	/**
+	 * Writes an attribute value of the current object, that may be null.
+	 */
+	protected abstract void writeAttribute(AttributeProperty property, Object value) throws IOException;
+
+	protected abstract void endObject(SubgraphNode node, Persistent object) throws IOException;
+
+	protected abstract void beginToMany(SubgraphNode node) throws IOException;
+
+	protected abstract void endToMany(SubgraphNode node) throws IOException;
+
+	private void writeToMany(SubgraphNode node, Persistent parent, Query query) throws IOException {
+
+		if (query == null) {
+			for (BatchSerializationCallback callback : node.getBatchSerializationCallbacks()) {
+				query = callback.relationshipQuery(node, Collections.singletonList(parent));
+				if (query != null) {
+					break;
+				}
+			}
+		}
+
+		if (query == null) {
+			RelationshipQuery relationshipQuery = new RelationshipQuery(parent.getObjectId(), node
+					.getIncomingProperty().getName());
+			relationshipQuery.setStatementFetchSize(statementFetchSize);
+			query = relationshipQuery;
+		}
+
+		DataContext context = (DataContext) parent.getObjectContext();
+
+		// iterate to avoid keeping large relationships in memory
+		ResultIterator it;
+		try {
+			it = context.performIteratedQuery(query);
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error reading relationship " + node.getIncomingProperty().getName(),
+					e);
+		}
+
+		try {
+			ResultObjectIterator targets = new ResultObjectIterator(it, context);
+			while (targets.hasNext()) {
+				writeObject(node, targets.next());
+			}
+		} finally {
+			try {
+				it.close();
+			} catch (Exception e) {
+				throw new CayenneRuntimeException("Error closing relationship "
+						+ node.getIncomingProperty().getName(), e);
+			}
+		}
+	}
+}
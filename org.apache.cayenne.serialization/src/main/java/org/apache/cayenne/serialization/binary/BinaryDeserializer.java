@@ -0,0 +1,180 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.reflect.AttributeProperty;
+import org.apache.cayenne.serialization.BaseStreamDeserializer;
+import org.apache.cayenne.serialization.DeserializationRun;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * A deserializer of the binary format produced by {@link BinarySerializer},
+ * using the same subgraph definition as the serializer. Objects of clone
+ * nodes are created in the context, and objects of reference nodes are
+ * looked up by id, in batches if "referenceBatchSize" is set. In
+ * "committing" mode objects are committed in batches per
+ * "commitCountThreshold". As the input is binary, it is only read from an
+ * InputStream.
+ * <p>
+ * Once configured, an instance can be shared between threads.
+ */
+public class BinaryDeserializer extends BaseStreamDeserializer {
+
+	protected int inputBufferSize = 64 * 1024;
+
+	/**
+	 * Deserializes the first root object of the document. In "committing"
+	 * mode all intermediate commits are wrapped in a single transaction.
+	 */
+	@Override
+	public <T> T deserialize(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+		return new Run<T>(context, subgraph, in).deserializeFirst();
+	}
+
+	/**
+	 * Returns an iterator over the root objects of the document, deserializing
+	 * them one at a time. In "committing" mode the last batch is committed
+	 * once the iterator is exhausted, and commits are not wrapped in a single
+	 * transaction.
+	 */
+	@Override
+	public <T> Iterator<T> deserializeIterator(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+		return new Run<T>(context, subgraph, in);
+	}
+
+	/**
+	 * Returns the size in bytes of the input buffer. The default is 64K.
+	 */
+	public int getInputBufferSize() {
+		return inputBufferSize;
+	}
+
+	public void setInputBufferSize(int inputBufferSize) {
+		this.inputBufferSize = inputBufferSize;
+	}
+
+	/**
+	 * State of a single deserialization run, iterating over the root objects.
+	 */
+	private class Run<T> extends DeserializationRun<T> {
+
+		private InputStream in;
+		private BinaryInput input;
+
+		// the kind of the next root record, or -1 if not read yet
+		private int nextKind;
+
+		Run(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+			super(context, subgraph, BinaryDeserializer.this);
+			this.in = in;
+			this.input = new BinaryInput(in, inputBufferSize);
+			this.nextKind = -1;
+
+			try {
+				byte[] header = input.readBytes(BinaryFormat.HEADER.length);
+				if (!Arrays.equals(header, BinaryFormat.HEADER)) {
+					throw new CayenneRuntimeException("Not a binary subgraph document");
+				}
+			} catch (IOException e) {
+				throw new CayenneRuntimeException("Error reading input", e);
+			}
+		}
+
+		@Override
+		protected boolean hasNextRoot() throws IOException {
+			if (nextKind < 0) {
+				nextKind = input.readByte();
+			}
+
+			return nextKind != BinaryFormat.END;
+		}
+
+		@Override
+		protected Object readRoot() throws IOException {
+			int kind = nextKind;
+			nextKind = -1;
+			return readObject(kind, rootNode, null);
+		}
+
+		@Override
+		protected void closeInput() throws IOException {
+			in.close();
+		}
+
+		private Object readObject(int kind, SubgraphNode node, Object parent) throws IOException {
+
+			if (kind == BinaryFormat.REF) {
+				readReference(node, parent);
+				return null;
+			} else if (kind != BinaryFormat.VALUE) {
+				throw new IOException("Unexpected record kind: " + kind);
+			}
+
+			Object object = createObject(node, parent, getDescriptor(input.readString()));
+
+			for (AttributeProperty property : node.getAttributeProperties()) {
+				Object value = input.readValue(property.getAttribute().getJavaClass());
+				if (value != null) {
+					property.writeProperty(object, null, value);
+				}
+			}
+
+			for (SubgraphNode child : node.getChildren()) {
+				if (child.getIncomingProperty().getRelationship().isToMany()) {
+					int childKind;
+					while ((childKind = input.readByte()) != BinaryFormat.END) {
+						readObject(childKind, child, object);
+					}
+				} else {
+					int childKind = input.readByte();
+					if (childKind != BinaryFormat.END) {
+						readObject(childKind, child, object);
+					}
+				}
+			}
+
+			objectRead(node, object);
+			return object;
+		}
+
+		private void readReference(SubgraphNode node, Object parent) throws IOException {
+
+			String entityName = input.readString();
+			int size = input.readVarInt();
+
+			Map<String, Object> snapshot = new HashMap<String, Object>(size * 2);
+			for (int i = 0; i < size; i++) {
+				snapshot.put(input.readString(), input.readValue(null));
+			}
+
+			referenceRead(node, parent, new ObjectId(entityName, snapshot));
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.binary;
+
+/**
+ * Constants of the binary subgraph format.
+ * <p>
+ * A document starts with a 4 byte header, followed by root object records
+ * and an {@link #END} marker. An object record starts with a record kind and
+ * the entity name. A {@link #VALUE} record then contains attribute values in
+ * the order of the subgraph node attributes, followed by the children in the
+ * order of the node children: a single record per to-one child, with
+ * {@link #END} standing for null, and a list of records terminated by
+ * {@link #END} per to-many child. A {@link #REF} record contains the number
+ * of PK columns followed by name and value pairs.
+ * <p>
+ * Numbers are written as variable length integers. Strings are written as
+ * references to a string table that both sides build as the document goes,
+ * or as length-prefixed UTF-8 bytes. Each value starts with a type tag.
+ */
+final class BinaryFormat {
+
+	static final byte[] HEADER = { 'C', 'S', 'B', 1 };
+
+	// record kinds
+	static final int END = 0;
+	static final int VALUE = 1;
+	static final int REF = 2;
+
+	// string codes, table indexes are written shifted by TABLE_STRING
+	static final int NULL_STRING = 0;
+	static final int INLINE_STRING = 1;
+	static final int NEW_TABLE_STRING = 2;
+	static final int TABLE_STRING = 3;
+
+	// only short strings go to the string table, as they are likely to
+	// repeat, and the table size is bounded to limit memory use
+	static final int MAX_TABLE_STRING_LENGTH = 64;
+	static final int MAX_TABLE_SIZE = 64 * 1024;
+
+	// value type tags
+	static final int NULL = 0;
+	static final int STRING = 1;
+	static final int INTEGER = 2;
+	static final int LONG = 3;
+	static final int SHORT = 4;
+	static final int BYTE = 5;
+	static final int DOUBLE = 6;
+	static final int FLOAT = 7;
+	static final int TRUE = 8;
+	static final int FALSE = 9;
+	static final int DATE = 10;
+	static final int TIMESTAMP = 11;
+	static final int BIG_DECIMAL = 12;
+	static final int BIG_INTEGER = 13;
+	static final int BYTES = 14;
+	static final int CHARACTER = 15;
+	static final int ENUM = 16;
+
+	private BinaryFormat() {
+	}
+}
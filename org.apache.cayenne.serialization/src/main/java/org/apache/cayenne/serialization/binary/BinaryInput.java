@@ -0,0 +1,206 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.binary;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A buffered reader of binary format primitives.
+ */
+class BinaryInput {
+
+	private InputStream in;
+	private byte[] buffer;
+	private int position;
+	private int limit;
+	private List<String> strings;
+
+	BinaryInput(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buffer = new byte[bufferSize];
+		this.strings = new ArrayList<String>();
+	}
+
+	int readByte() throws IOException {
+		if (position == limit) {
+			fill();
+		}
+
+		return buffer[position++] & 0xff;
+	}
+
+	byte[] readBytes(int length) throws IOException {
+
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			if (position == limit) {
+				fill();
+			}
+
+			int count = Math.min(length - offset, limit - position);
+			System.arraycopy(buffer, position, bytes, offset, count);
+			position += count;
+			offset += count;
+		}
+
+		return bytes;
+	}
+
+	long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Malformed variable length number");
+	}
+
+	int readVarInt() throws IOException {
+		return (int) readVarLong();
+	}
+
+	long readSignedVarLong() throws IOException {
+		long value = readVarLong();
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	long readFixedLong() throws IOException {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = value << 8 | readByte();
+		}
+
+		return value;
+	}
+
+	String readString() throws IOException {
+
+		int code = readVarInt();
+		switch (code) {
+		case BinaryFormat.NULL_STRING:
+			return null;
+		case BinaryFormat.INLINE_STRING:
+			return new String(readBytes(readVarInt()), "UTF-8");
+		case BinaryFormat.NEW_TABLE_STRING:
+			String string = new String(readBytes(readVarInt()), "UTF-8");
+			strings.add(string);
+			return string;
+		default:
+			int index = code - BinaryFormat.TABLE_STRING;
+			if (index >= strings.size()) {
+				throw new IOException("Invalid string table index: " + index);
+			}
+
+			return strings.get(index);
+		}
+	}
+
+	/**
+	 * Reads a value written with its type tag, converting dates to the
+	 * expected type.
+	 */
+	@SuppressWarnings("all")
+	Object readValue(Class<?> type) throws IOException {
+
+		int tag = readByte();
+		switch (tag) {
+		case BinaryFormat.NULL:
+			return null;
+		case BinaryFormat.STRING:
+			return readString();
+		case BinaryFormat.INTEGER:
+			return Integer.valueOf((int) readSignedVarLong());
+		case BinaryFormat.LONG:
+			return Long.valueOf(readSignedVarLong());
+		case BinaryFormat.SHORT:
+			return Short.valueOf((short) readSignedVarLong());
+		case BinaryFormat.BYTE:
+			return Byte.valueOf((byte) readByte());
+		case BinaryFormat.DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(readFixedLong()));
+		case BinaryFormat.FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) readFixedLong()));
+		case BinaryFormat.TRUE:
+			return Boolean.TRUE;
+		case BinaryFormat.FALSE:
+			return Boolean.FALSE;
+		case BinaryFormat.TIMESTAMP:
+			Timestamp timestamp = new Timestamp(readSignedVarLong());
+			timestamp.setNanos(readVarInt());
+			return timestamp;
+		case BinaryFormat.DATE:
+			return date(type, readSignedVarLong());
+		case BinaryFormat.BIG_DECIMAL:
+			int scale = (int) readSignedVarLong();
+			return new BigDecimal(new BigInteger(readBytes(readVarInt())), scale);
+		case BinaryFormat.BIG_INTEGER:
+			return new BigInteger(readBytes(readVarInt()));
+		case BinaryFormat.BYTES:
+			return readBytes(readVarInt());
+		case BinaryFormat.CHARACTER:
+			return Character.valueOf((char) readVarInt());
+		case BinaryFormat.ENUM:
+			String name = readString();
+			if (type == null || !type.isEnum()) {
+				throw new IOException("Enum value '" + name + "' for a non-enum type " + type);
+			}
+
+			return Enum.valueOf((Class) type, name);
+		default:
+			throw new IOException("Unknown value type: " + tag);
+		}
+	}
+
+	private static Date date(Class<?> type, long time) {
+		if (type == java.sql.Date.class) {
+			return new java.sql.Date(time);
+		} else if (type == Time.class) {
+			return new Time(time);
+		} else if (type == Timestamp.class) {
+			return new Timestamp(time);
+		} else {
+			return new Date(time);
+		}
+	}
+
+	private void fill() throws IOException {
+		limit = in.read(buffer);
+		position = 0;
+
+		if (limit <= 0) {
+			limit = 0;
+			throw new EOFException("Unexpected end of binary document");
+		}
+	}
+}
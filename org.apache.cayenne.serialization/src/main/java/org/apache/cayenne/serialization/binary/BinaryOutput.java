@@ -0,0 +1,202 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A buffered writer of binary format primitives.
+ */
+class BinaryOutput {
+
+	private OutputStream out;
+	private byte[] buffer;
+	private int position;
+	private Map<String, Integer> strings;
+
+	BinaryOutput(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+		this.strings = new HashMap<String, Integer>();
+	}
+
+	void writeByte(int b) throws IOException {
+		if (position == buffer.length) {
+			flushBuffer();
+		}
+
+		buffer[position++] = (byte) b;
+	}
+
+	void writeBytes(byte[] bytes) throws IOException {
+		if (bytes.length > buffer.length - position) {
+			flushBuffer();
+
+			if (bytes.length > buffer.length) {
+				out.write(bytes);
+				return;
+			}
+		}
+
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	/**
+	 * Writes a non-negative number in 7 bit groups, least significant first.
+	 */
+	void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		writeByte((int) value);
+	}
+
+	/**
+	 * Writes a number that may be negative, so that small absolute values
+	 * take few bytes.
+	 */
+	void writeSignedVarLong(long value) throws IOException {
+		writeVarLong(value << 1 ^ value >> 63);
+	}
+
+	void writeFixedLong(long value) throws IOException {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			writeByte((int) (value >>> shift));
+		}
+	}
+
+	void writeString(String string) throws IOException {
+
+		if (string == null) {
+			writeVarLong(BinaryFormat.NULL_STRING);
+			return;
+		}
+
+		Integer index = strings.get(string);
+		if (index != null) {
+			writeVarLong(BinaryFormat.TABLE_STRING + index);
+			return;
+		}
+
+		if (string.length() <= BinaryFormat.MAX_TABLE_STRING_LENGTH && strings.size() < BinaryFormat.MAX_TABLE_SIZE) {
+			strings.put(string, strings.size());
+			writeVarLong(BinaryFormat.NEW_TABLE_STRING);
+		} else {
+			writeVarLong(BinaryFormat.INLINE_STRING);
+		}
+
+		byte[] bytes = utf8(string);
+		writeVarLong(bytes.length);
+		writeBytes(bytes);
+	}
+
+	/**
+	 * Writes a type tag followed by the value.
+	 */
+	void writeValue(Object value) throws IOException {
+
+		if (value == null) {
+			writeByte(BinaryFormat.NULL);
+		} else if (value instanceof String) {
+			writeByte(BinaryFormat.STRING);
+			writeString((String) value);
+		} else if (value instanceof Integer) {
+			writeByte(BinaryFormat.INTEGER);
+			writeSignedVarLong((Integer) value);
+		} else if (value instanceof Long) {
+			writeByte(BinaryFormat.LONG);
+			writeSignedVarLong((Long) value);
+		} else if (value instanceof Short) {
+			writeByte(BinaryFormat.SHORT);
+			writeSignedVarLong((Short) value);
+		} else if (value instanceof Byte) {
+			writeByte(BinaryFormat.BYTE);
+			writeByte((Byte) value);
+		} else if (value instanceof Double) {
+			writeByte(BinaryFormat.DOUBLE);
+			writeFixedLong(Double.doubleToLongBits((Double) value));
+		} else if (value instanceof Float) {
+			writeByte(BinaryFormat.FLOAT);
+			writeFixedLong(Float.floatToIntBits((Float) value));
+		} else if (value instanceof Boolean) {
+			writeByte((Boolean) value ? BinaryFormat.TRUE : BinaryFormat.FALSE);
+		} else if (value instanceof Timestamp) {
+			writeByte(BinaryFormat.TIMESTAMP);
+			writeSignedVarLong(((Timestamp) value).getTime());
+			writeVarLong(((Timestamp) value).getNanos());
+		} else if (value instanceof Date) {
+			writeByte(BinaryFormat.DATE);
+			writeSignedVarLong(((Date) value).getTime());
+		} else if (value instanceof BigDecimal) {
+			writeByte(BinaryFormat.BIG_DECIMAL);
+			writeSignedVarLong(((BigDecimal) value).scale());
+			writeByteArray(((BigDecimal) value).unscaledValue().toByteArray());
+		} else if (value instanceof BigInteger) {
+			writeByte(BinaryFormat.BIG_INTEGER);
+			writeByteArray(((BigInteger) value).toByteArray());
+		} else if (value instanceof byte[]) {
+			writeByte(BinaryFormat.BYTES);
+			writeByteArray((byte[]) value);
+		} else if (value instanceof Character) {
+			writeByte(BinaryFormat.CHARACTER);
+			writeVarLong((Character) value);
+		} else if (value instanceof Enum<?>) {
+			writeByte(BinaryFormat.ENUM);
+			writeString(((Enum<?>) value).name());
+		} else {
+			throw new IllegalArgumentException("Unsupported value type: " + value.getClass().getName());
+		}
+	}
+
+	private void writeByteArray(byte[] bytes) throws IOException {
+		writeVarLong(bytes.length);
+		writeBytes(bytes);
+	}
+
+	void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	private static byte[] utf8(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.ResultIterator;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.query.Query;
+import org.apache.cayenne.reflect.AttributeProperty;
+import org.apache.cayenne.serialization.BaseStreamSerializer;
+import org.apache.cayenne.serialization.ResultObjectIterator;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.cayenne.serialization.SubgraphWalker;
+
+/**
+ * A serializer that writes subgraphs in a compact binary format, read by
+ * {@link BinaryDeserializer}. Attribute values are written in the order of
+ * subgraph node attributes without names, so both sides must use the same
+ * subgraph definition. Clone and reference nodes and serialization callbacks
+ * work the same as with the XML serializer. As the output is binary, it is
+ * only written to an OutputStream.
+ * <p>
+ * Once configured, an instance can be shared between threads.
+ */
+public class BinarySerializer extends BaseStreamSerializer {
+
+	protected int outputBufferSize = 64 * 1024;
+
+	@Override
+	public <T> void serialize(T object, Subgraph<T> subgraph, OutputStream out) {
+		serialize(Collections.singletonList(object).iterator(), subgraph, out);
+	}
+
+	/**
+	 * Serializes all root objects returned by the iterator into a single
+	 * document, readable with
+	 * {@link BinaryDeserializer#deserializeIterator(ObjectContext, Subgraph, java.io.InputStream)}.
+	 */
+	@Override
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, OutputStream out) {
+
+		BinaryOutput output = new BinaryOutput(out, outputBufferSize);
+		Walker walker = new Walker(output);
+
+		try {
+			output.writeBytes(BinaryFormat.HEADER);
+
+			while (roots.hasNext()) {
+				walker.writeObject(subgraph.getRootNode(), roots.next());
+			}
+
+			output.writeByte(BinaryFormat.END);
+			output.flush();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		}
+	}
+
+	/**
+	 * Serializes all root objects fetched by the query into a single document.
+	 * Roots are fetched via a ResultIterator, and if the query is a
+	 * SelectQuery, the serializer "statementFetchSize" is applied to a copy
+	 * of it.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, OutputStream out) {
+
+		DataContext dataContext = (DataContext) context;
+
+		try {
+			ResultIterator it = dataContext.performIteratedQuery(withStatementFetchSize(rootsQuery));
+
+			try {
+				Iterator<?> roots = new ResultObjectIterator(it, dataContext);
+				serialize((Iterator<T>) roots, subgraph, out);
+			} finally {
+				it.close();
+			}
+		} catch (CayenneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error serializing roots", e);
+		}
+	}
+
+	/**
+	 * Returns the size in bytes of the output buffer. The default is 64K.
+	 */
+	public int getOutputBufferSize() {
+		return outputBufferSize;
+	}
+
+	public void setOutputBufferSize(int outputBufferSize) {
+		this.outputBufferSize = outputBufferSize;
+	}
+
+	/**
+	 * Writes the records of a single serialization run. A null object and the
+	 * end of a to-many relationship are both written as END records.
+	 */
+	private class Walker extends SubgraphWalker {
+
+		private BinaryOutput output;
+
+		Walker(BinaryOutput output) {
+			super(getStatementFetchSize());
+			this.output = output;
+		}
+
+		@Override
+		protected void writeNull(SubgraphNode node) throws IOException {
+			output.writeByte(BinaryFormat.END);
+		}
+
+		@Override
+		protected void writeReference(SubgraphNode node, ObjectId id) throws IOException {
+
+			Map<String, Object> snapshot = id.getIdSnapshot();
+
+			output.writeByte(BinaryFormat.REF);
+			output.writeString(id.getEntityName());
+			output.writeVarLong(snapshot.size());
+
+			for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+				output.writeString(entry.getKey());
+				output.writeValue(entry.getValue());
+			}
+		}
+
+		@Override
+		protected void beginObject(SubgraphNode node, Persistent object) throws IOException {
+			output.writeByte(BinaryFormat.VALUE);
+			output.writeString(object.getObjectId().getEntityName());
+		}
+
+		@Override
+		protected void writeAttribute(AttributeProperty property, Object value) throws IOException {
+			output.writeValue(value);
+		}
+
+		@Override
+		protected void endObject(SubgraphNode node, Persistent object) {
+		}
+
+		@Override
+		protected void beginToMany(SubgraphNode node) {
+		}
+
+		@Override
+		protected void endToMany(SubgraphNode node) throws IOException {
+			output.writeByte(BinaryFormat.END);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.reflect.AttributeProperty;
+import org.apache.cayenne.reflect.ClassDescriptor;
+import org.apache.cayenne.reflect.Property;
+import org.apache.cayenne.serialization.BaseDeserializer;
+import org.apache.cayenne.serialization.DeserializationRun;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.cayenne.serialization.json.JsonReader.Token;
+
+/**
+ * A deserializer of JSON produced by {@link JsonSerializer}, reading the
+ * document token by token. Members of each object are matched against the
+ * subgraph node by name, and members that are not a part of the subgraph are
+ * skipped. Objects of clone nodes are created in the context, and objects of
+ * reference nodes are looked up by id, in batches if "referenceBatchSize" is
+ * set. In "committing" mode objects are committed in batches per
+ * "commitCountThreshold".
+ * <p>
+ * Once configured, an instance can be shared between threads.
+ */
+public class JsonDeserializer extends BaseDeserializer {
+
+	protected int inputBufferSize = 8 * 1024;
+
+	/**
+	 * Deserializes the root object of the document. If the document is a
+	 * top-level array, its first element is returned. In "committing" mode all
+	 * intermediate commits are wrapped in a single transaction.
+	 */
+	@Override
+	public <T> T deserialize(ObjectContext context, Subgraph<T> subgraph, Reader in) {
+		return new Run<T>(context, subgraph, in).deserializeFirst();
+	}
+
+	/**
+	 * Returns an iterator over the elements of a top-level array, deserializing
+	 * them one at a time. A document with a single root object is read as a
+	 * one element array. In "committing" mode the last batch is committed once
+	 * the iterator is exhausted, and commits are not wrapped in a single
+	 * transaction.
+	 */
+	@Override
+	public <T> Iterator<T> deserializeIterator(ObjectContext context, Subgraph<T> subgraph, Reader in) {
+		return new Run<T>(context, subgraph, in);
+	}
+
+	/**
+	 * Returns the size in characters of the input buffer. The default is 8K.
+	 */
+	public int getInputBufferSize() {
+		return inputBufferSize;
+	}
+
+	public void setInputBufferSize(int inputBufferSize) {
+		this.inputBufferSize = inputBufferSize;
+	}
+
+	/**
+	 * State of a single deserialization run, iterating over the root objects.
+	 */
+	private class Run<T> extends DeserializationRun<T> {
+
+		private Reader in;
+		private JsonReader reader;
+		private boolean array;
+
+		Run(ObjectContext context, Subgraph<T> subgraph, Reader in) {
+			super(context, subgraph, JsonDeserializer.this);
+			this.in = in;
+			this.reader = new JsonReader(in, inputBufferSize);
+
+			try {
+				if (reader.peek() == Token.BEGIN_ARRAY) {
+					reader.beginArray();
+					array = true;
+				}
+			} catch (IOException e) {
+				throw new CayenneRuntimeException("Error reading input", e);
+			}
+		}
+
+		@Override
+		protected boolean hasNextRoot() throws IOException {
+			return array ? reader.hasNext() : reader.peek() != Token.END_DOCUMENT;
+		}
+
+		@Override
+		protected Object readRoot() throws IOException {
+			return readObject(rootNode, null);
+		}
+
+		@Override
+		protected void closeInput() throws IOException {
+			in.close();
+		}
+
+		private Object readObject(SubgraphNode node, Object parent) throws IOException {
+
+			if (reader.peek() == Token.NULL) {
+				reader.nextNull();
+				return null;
+			}
+
+			reader.beginObject();
+
+			// the entity name must be the first member to create the object
+			// before reading its attributes
+			String name = reader.hasNext() ? reader.nextName() : null;
+			if (JsonSerializer.REF.equals(name)) {
+				readReference(node, parent);
+				return null;
+			} else if (!JsonSerializer.ENTITY.equals(name)) {
+				throw new IOException("Expected '" + JsonSerializer.ENTITY + "' or '" + JsonSerializer.REF
+						+ "' as the first member of an object");
+			}
+
+			ClassDescriptor descriptor = getDescriptor(reader.nextString());
+			Object object = createObject(node, parent, descriptor);
+
+			while (reader.hasNext()) {
+				name = reader.nextName();
+
+				SubgraphNode child = node.getChild(name);
+				if (child != null) {
+					if (child.getIncomingProperty().getRelationship().isToMany()) {
+						reader.beginArray();
+						while (reader.hasNext()) {
+							readObject(child, object);
+						}
+						reader.endArray();
+					} else {
+						readObject(child, object);
+					}
+
+					continue;
+				}
+
+				Property property = descriptor.getProperty(name);
+				if (property instanceof AttributeProperty) {
+					AttributeProperty attribute = (AttributeProperty) property;
+					Object value = reader.readValue(attribute.getAttribute().getJavaClass());
+					if (value != null) {
+						attribute.writeProperty(object, null, value);
+					}
+				} else {
+					reader.skipValue();
+				}
+			}
+
+			reader.endObject();
+
+			objectRead(node, object);
+			return object;
+		}
+
+		private void readReference(SubgraphNode node, Object parent) throws IOException {
+
+			String entityName = reader.nextString();
+
+			Map<String, Object> snapshot = new HashMap<String, Object>();
+			while (reader.hasNext()) {
+				snapshot.put(reader.nextName(), reader.readValue(null));
+			}
+
+			reader.endObject();
+
+			referenceRead(node, parent, new ObjectId(entityName, snapshot));
+		}
+	}
+}
@@ -0,0 +1,547 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * A streaming pull reader of JSON tokens. Tokens are read from the underlying
+ * Reader one at a time, so memory use does not depend on the document size.
+ */
+class JsonReader {
+
+	enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT
+	}
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int NONEMPTY_OBJECT = 3;
+	private static final int DANGLING_NAME = 4;
+	private static final int EMPTY_ARRAY = 5;
+	private static final int NONEMPTY_ARRAY = 6;
+
+	private Reader in;
+	private char[] buffer;
+	private int position;
+	private int limit;
+	private long offset;
+
+	private int[] scopes;
+	private int depth;
+
+	// the token returned by the last peek that was not consumed yet and the
+	// text of a name, string or number token
+	private Token peeked;
+	private String text;
+	private StringBuilder textBuffer;
+
+	private DateFormat dateFormat;
+
+	JsonReader(Reader in, int bufferSize) {
+		this.in = in;
+		this.buffer = new char[bufferSize];
+		this.scopes = new int[32];
+		this.scopes[0] = EMPTY_DOCUMENT;
+		this.textBuffer = new StringBuilder();
+	}
+
+	Token peek() throws IOException {
+
+		if (peeked != null) {
+			return peeked;
+		}
+
+		int c;
+		switch (scopes[depth]) {
+		case EMPTY_DOCUMENT:
+			scopes[depth] = NONEMPTY_DOCUMENT;
+			return peeked = readValue(nextNonWhitespace());
+		case NONEMPTY_DOCUMENT:
+			if (nextNonWhitespace() >= 0) {
+				throw syntaxError("Unexpected content after the document");
+			}
+			return peeked = Token.END_DOCUMENT;
+		case EMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}') {
+				return peeked = Token.END_OBJECT;
+			}
+			return peeked = readName(c);
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}') {
+				return peeked = Token.END_OBJECT;
+			} else if (c != ',') {
+				throw syntaxError("Expected ',' or '}'");
+			}
+			return peeked = readName(nextNonWhitespace());
+		case DANGLING_NAME:
+			scopes[depth] = NONEMPTY_OBJECT;
+			return peeked = readValue(nextNonWhitespace());
+		case EMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']') {
+				return peeked = Token.END_ARRAY;
+			}
+			scopes[depth] = NONEMPTY_ARRAY;
+			return peeked = readValue(c);
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']') {
+				return peeked = Token.END_ARRAY;
+			} else if (c != ',') {
+				throw syntaxError("Expected ',' or ']'");
+			}
+			return peeked = readValue(nextNonWhitespace());
+		default:
+			throw new IllegalStateException("Unknown scope: " + scopes[depth]);
+		}
+	}
+
+	/**
+	 * Returns true if the current object or array has more members.
+	 */
+	boolean hasNext() throws IOException {
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	void beginObject() throws IOException {
+		consume(Token.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	void endObject() throws IOException {
+		consume(Token.END_OBJECT);
+		depth--;
+	}
+
+	void beginArray() throws IOException {
+		consume(Token.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	void endArray() throws IOException {
+		consume(Token.END_ARRAY);
+		depth--;
+	}
+
+	String nextName() throws IOException {
+		consume(Token.NAME);
+		return text;
+	}
+
+	String nextString() throws IOException {
+		consume(Token.STRING);
+		return text;
+	}
+
+	void nextNull() throws IOException {
+		consume(Token.NULL);
+	}
+
+	/**
+	 * Skips the next value, including all nested objects and arrays.
+	 */
+	void skipValue() throws IOException {
+
+		int nested = 0;
+		do {
+			switch (peek()) {
+			case BEGIN_OBJECT:
+				beginObject();
+				nested++;
+				break;
+			case BEGIN_ARRAY:
+				beginArray();
+				nested++;
+				break;
+			case END_OBJECT:
+				endObject();
+				nested--;
+				break;
+			case END_ARRAY:
+				endArray();
+				nested--;
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				peeked = null;
+			}
+		} while (nested > 0);
+	}
+
+	/**
+	 * Reads an attribute value converting it to the expected type, as written
+	 * by {@link JsonWriter#writeValue(Object)}. If the type is null, numbers
+	 * are read as Integer, Long or BigDecimal, whichever fits.
+	 */
+	@SuppressWarnings("all")
+	Object readValue(Class<?> type) throws IOException {
+
+		Token token = peek();
+		peeked = null;
+
+		switch (token) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case NUMBER:
+			try {
+				return number(type, text);
+			} catch (NumberFormatException e) {
+				throw syntaxError("Invalid number " + text);
+			}
+		case STRING:
+			if (type == null || type == String.class) {
+				return text;
+			} else if (Date.class.isAssignableFrom(type)) {
+				return date(type, text);
+			} else if (type == byte[].class) {
+				return base64(text);
+			} else if (type == Character.class) {
+				return text.length() > 0 ? Character.valueOf(text.charAt(0)) : null;
+			} else if (type.isEnum()) {
+				return Enum.valueOf((Class) type, text);
+			} else if (type == Double.class || type == Float.class) {
+				// NaN and infinities are written as strings
+				return number(type, text);
+			}
+			return text;
+		default:
+			throw syntaxError("Expected a value, got " + token);
+		}
+	}
+
+	private static Number number(Class<?> type, String text) {
+
+		if (type == Integer.class) {
+			return Integer.valueOf(text);
+		} else if (type == Long.class) {
+			return Long.valueOf(text);
+		} else if (type == Double.class) {
+			return Double.valueOf(text);
+		} else if (type == Float.class) {
+			return Float.valueOf(text);
+		} else if (type == Short.class) {
+			return Short.valueOf(text);
+		} else if (type == Byte.class) {
+			return Byte.valueOf(text);
+		} else if (type == BigInteger.class) {
+			return new BigInteger(text);
+		} else if (type == BigDecimal.class) {
+			return new BigDecimal(text);
+		}
+
+		BigDecimal decimal = new BigDecimal(text);
+		if (decimal.scale() > 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+			return decimal;
+		}
+
+		long value = decimal.longValue();
+		if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+			return Integer.valueOf((int) value);
+		}
+
+		return decimal.toBigInteger().bitLength() < 64 ? Long.valueOf(value) : decimal;
+	}
+
+	private Date date(Class<?> type, String text) throws IOException {
+
+		if (dateFormat == null) {
+			dateFormat = JsonWriter.createDateFormat();
+		}
+
+		long time;
+		try {
+			time = dateFormat.parse(text).getTime();
+		} catch (ParseException e) {
+			throw syntaxError("Invalid date " + text);
+		}
+
+		if (type == java.sql.Date.class) {
+			return new java.sql.Date(time);
+		} else if (type == Time.class) {
+			return new Time(time);
+		} else if (type == Timestamp.class) {
+			return new Timestamp(time);
+		} else {
+			return new Date(time);
+		}
+	}
+
+	private byte[] base64(String text) throws IOException {
+
+		int length = text.length();
+		if (length % 4 != 0) {
+			throw syntaxError("Invalid Base64 value");
+		}
+
+		int padding = length > 0 && text.charAt(length - 1) == '=' ? (text.charAt(length - 2) == '=' ? 2 : 1) : 0;
+		byte[] bytes = new byte[length / 4 * 3 - padding];
+
+		int j = 0;
+		for (int i = 0; i < length; i += 4) {
+			int chunk = 0;
+			for (int k = 0; k < 4; k++) {
+				char c = text.charAt(i + k);
+				chunk <<= 6;
+				if (c != '=') {
+					chunk |= base64Digit(c);
+				}
+			}
+
+			bytes[j++] = (byte) (chunk >> 16);
+			if (j < bytes.length) {
+				bytes[j++] = (byte) (chunk >> 8);
+			}
+			if (j < bytes.length) {
+				bytes[j++] = (byte) chunk;
+			}
+		}
+
+		return bytes;
+	}
+
+	private int base64Digit(char c) throws IOException {
+		if (c >= 'A' && c <= 'Z') {
+			return c - 'A';
+		} else if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 26;
+		} else if (c >= '0' && c <= '9') {
+			return c - '0' + 52;
+		} else if (c == '+') {
+			return 62;
+		} else if (c == '/') {
+			return 63;
+		}
+
+		throw syntaxError("Invalid Base64 character '" + c + "'");
+	}
+
+	private void consume(Token expected) throws IOException {
+		Token token = peek();
+		if (token != expected) {
+			throw syntaxError("Expected " + expected + ", got " + token);
+		}
+
+		peeked = null;
+	}
+
+	private void push(int scope) {
+		if (++depth == scopes.length) {
+			int[] expanded = new int[depth * 2];
+			System.arraycopy(scopes, 0, expanded, 0, depth);
+			scopes = expanded;
+		}
+
+		scopes[depth] = scope;
+	}
+
+	private Token readName(int c) throws IOException {
+		if (c != '"') {
+			throw syntaxError("Expected a name");
+		}
+
+		text = readString();
+
+		if (nextNonWhitespace() != ':') {
+			throw syntaxError("Expected ':'");
+		}
+
+		scopes[depth] = DANGLING_NAME;
+		return Token.NAME;
+	}
+
+	private Token readValue(int c) throws IOException {
+		switch (c) {
+		case '{':
+			return Token.BEGIN_OBJECT;
+		case '[':
+			return Token.BEGIN_ARRAY;
+		case '"':
+			text = readString();
+			return Token.STRING;
+		case 't':
+			readLiteral("rue");
+			return Token.TRUE;
+		case 'f':
+			readLiteral("alse");
+			return Token.FALSE;
+		case 'n':
+			readLiteral("ull");
+			return Token.NULL;
+		case -1:
+			throw syntaxError("Unexpected end of document");
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				text = readNumber((char) c);
+				return Token.NUMBER;
+			}
+
+			throw syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	private void readLiteral(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (read() != rest.charAt(i)) {
+				throw syntaxError("Invalid literal");
+			}
+		}
+	}
+
+	private String readNumber(char first) throws IOException {
+
+		textBuffer.setLength(0);
+		textBuffer.append(first);
+
+		while (true) {
+			if (position == limit && !fill()) {
+				break;
+			}
+
+			char c = buffer[position];
+			if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+				textBuffer.append(c);
+				position++;
+			} else {
+				break;
+			}
+		}
+
+		return textBuffer.toString();
+	}
+
+	private String readString() throws IOException {
+
+		textBuffer.setLength(0);
+
+		while (true) {
+			if (position == limit && !fill()) {
+				throw syntaxError("Unterminated string");
+			}
+
+			// copy runs of plain characters at once
+			int start = position;
+			while (position < limit) {
+				char c = buffer[position];
+				if (c == '"' || c == '\\') {
+					break;
+				}
+				position++;
+			}
+			textBuffer.append(buffer, start, position - start);
+
+			if (position == limit) {
+				continue;
+			}
+
+			if (buffer[position++] == '"') {
+				return textBuffer.toString();
+			}
+
+			int c = read();
+			switch (c) {
+			case 'b':
+				textBuffer.append('\b');
+				break;
+			case 'f':
+				textBuffer.append('\f');
+				break;
+			case 'n':
+				textBuffer.append('\n');
+				break;
+			case 'r':
+				textBuffer.append('\r');
+				break;
+			case 't':
+				textBuffer.append('\t');
+				break;
+			case 'u':
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(read(), 16);
+					if (digit < 0) {
+						throw syntaxError("Invalid unicode escape");
+					}
+					code = code * 16 + digit;
+				}
+				textBuffer.append((char) code);
+				break;
+			case '"':
+			case '\\':
+			case '/':
+				textBuffer.append((char) c);
+				break;
+			default:
+				throw syntaxError("Invalid escape sequence");
+			}
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		while (true) {
+			int c = read();
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+				return c;
+			}
+		}
+	}
+
+	private int read() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+
+		return buffer[position++];
+	}
+
+	private boolean fill() throws IOException {
+		offset += limit;
+		position = 0;
+		limit = 0;
+
+		int read = in.read(buffer);
+		if (read <= 0) {
+			return false;
+		}
+
+		limit = read;
+		return true;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException(message + " at offset " + (offset + position));
+	}
+}
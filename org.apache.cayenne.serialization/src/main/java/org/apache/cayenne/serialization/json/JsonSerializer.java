@@ -0,0 +1,246 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.json;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.ResultIterator;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.query.Query;
+import org.apache.cayenne.reflect.AttributeProperty;
+import org.apache.cayenne.serialization.BaseSerializer;
+import org.apache.cayenne.serialization.ResultObjectIterator;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.cayenne.serialization.SubgraphWalker;
+
+/**
+ * A serializer that writes subgraphs as JSON, read by {@link JsonDeserializer}.
+ * Each object is written as a JSON object starting with an "@entity" member,
+ * followed by non-null attributes and relationships of the subgraph node keyed
+ * by property name. To-many relationships are written as arrays streamed from
+ * a ResultIterator, and objects of reference nodes are written as compact id
+ * objects with a "@ref" entity name member followed by the primary key
+ * columns. Multiple roots are written as a top-level array. Dates are
+ * written as ISO 8601 strings in UTC, e.g. "2010-01-01T05:00:00.000Z".
+ * <p>
+ * Once configured, an instance can be shared between threads.
+ */
+public class JsonSerializer extends BaseSerializer {
+
+	static final String ENTITY = "@entity";
+	static final String REF = "@ref";
+
+	protected int outputBufferSize = 64 * 1024;
+
+	@Override
+	public <T> void serialize(T object, Subgraph<T> subgraph, Writer out) {
+
+		JsonWriter writer = new JsonWriter(out);
+
+		try {
+			new Walker(writer).writeObject(subgraph.getRootNode(), object);
+			writer.flush();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		}
+	}
+
+	/**
+	 * Serializes all root objects returned by the iterator into a single
+	 * top-level array, readable with
+	 * {@link JsonDeserializer#deserializeIterator(ObjectContext, Subgraph, java.io.Reader)}.
+	 */
+	@Override
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, Writer out) {
+
+		JsonWriter writer = new JsonWriter(out);
+		Walker walker = new Walker(writer);
+
+		try {
+			writer.beginArray();
+
+			while (roots.hasNext()) {
+				walker.writeObject(subgraph.getRootNode(), roots.next());
+			}
+
+			writer.endArray();
+			writer.flush();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		}
+	}
+
+	/**
+	 * Serializes all root objects fetched by the query into a single top-level
+	 * array. Roots are fetched via a ResultIterator, and if the query is a
+	 * SelectQuery, the serializer "statementFetchSize" is applied to a copy
+	 * of it.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, Writer out) {
+
+		DataContext dataContext = (DataContext) context;
+
+		try {
+			ResultIterator it = dataContext.performIteratedQuery(withStatementFetchSize(rootsQuery));
+
+			try {
+				Iterator<?> roots = new ResultObjectIterator(it, dataContext);
+				serialize((Iterator<T>) roots, subgraph, out);
+			} finally {
+				it.close();
+			}
+		} catch (CayenneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error serializing roots", e);
+		}
+	}
+
+	/**
+	 * Serializes a single root object as UTF-8.
+	 */
+	@Override
+	public <T> void serialize(T object, Subgraph<T> subgraph, OutputStream out) {
+		serialize(object, subgraph, createWriter(out));
+	}
+
+	/**
+	 * Serializes all root objects returned by the iterator as UTF-8.
+	 */
+	@Override
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, OutputStream out) {
+		serialize(roots, subgraph, createWriter(out));
+	}
+
+	/**
+	 * Serializes all root objects fetched by the query as UTF-8.
+	 */
+	@Override
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, OutputStream out) {
+		serialize(context, rootsQuery, subgraph, createWriter(out));
+	}
+
+	private Writer createWriter(OutputStream out) {
+		try {
+			return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), outputBufferSize);
+		} catch (UnsupportedEncodingException e) {
+			throw new CayenneRuntimeException("UTF-8 is not supported", e);
+		}
+	}
+
+	/**
+	 * Returns the size in characters of the output buffer used by
+	 * OutputStream methods. The default is 64K.
+	 */
+	public int getOutputBufferSize() {
+		return outputBufferSize;
+	}
+
+	public void setOutputBufferSize(int outputBufferSize) {
+		this.outputBufferSize = outputBufferSize;
+	}
+
+
+	/**
+	 * Writes the JSON of a single serialization run. Null attributes and null
+	 * to-one relationships are omitted.
+	 */
+	private class Walker extends SubgraphWalker {
+
+		private JsonWriter writer;
+
+		Walker(JsonWriter writer) {
+			super(getStatementFetchSize());
+			this.writer = writer;
+		}
+
+		@Override
+		protected void writeToOne(SubgraphNode node, Object target) throws IOException {
+			if (target != null) {
+				writer.name(node.getIncomingProperty().getName());
+				writeObject(node, target);
+			}
+		}
+
+		@Override
+		protected void writeNull(SubgraphNode node) throws IOException {
+			writer.nullValue();
+		}
+
+		@Override
+		protected void writeReference(SubgraphNode node, ObjectId id) throws IOException {
+
+			writer.beginObject();
+			writer.name(REF);
+			writer.value(id.getEntityName());
+
+			for (Map.Entry<String, Object> entry : id.getIdSnapshot().entrySet()) {
+				writer.name(entry.getKey());
+				writer.writeValue(entry.getValue());
+			}
+
+			writer.endObject();
+		}
+
+		@Override
+		protected void beginObject(SubgraphNode node, Persistent object) throws IOException {
+			writer.beginObject();
+			writer.name(ENTITY);
+			writer.value(object.getObjectId().getEntityName());
+		}
+
+		@Override
+		protected void writeAttribute(AttributeProperty property, Object value) throws IOException {
+			if (value != null) {
+				writer.name(property.getName());
+				writer.writeValue(value);
+			}
+		}
+
+		@Override
+		protected void endObject(SubgraphNode node, Persistent object) throws IOException {
+			writer.endObject();
+		}
+
+		@Override
+		protected void beginToMany(SubgraphNode node) throws IOException {
+			writer.name(node.getIncomingProperty().getName());
+			writer.beginArray();
+		}
+
+		@Override
+		protected void endToMany(SubgraphNode node) throws IOException {
+			writer.endArray();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * A streaming writer of compact JSON tokens. Separators are inserted
+ * automatically, and the nesting is checked only as far as needed to place
+ * them.
+ */
+class JsonWriter {
+
+	// ISO 8601 in UTC, so that the values are readable by other JSON tools
+	static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+	static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Writer out;
+	private DateFormat dateFormat;
+
+	// per nesting level, whether a value was written at this level
+	private boolean[] nonEmpty;
+	private int depth;
+	private boolean afterName;
+
+	JsonWriter(Writer out) {
+		this.out = out;
+		this.nonEmpty = new boolean[32];
+	}
+
+	static DateFormat createDateFormat() {
+		DateFormat format = new SimpleDateFormat(DATE_FORMAT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
+	void beginObject() throws IOException {
+		beforeValue();
+		out.write('{');
+		push();
+	}
+
+	void endObject() throws IOException {
+		depth--;
+		out.write('}');
+	}
+
+	void beginArray() throws IOException {
+		beforeValue();
+		out.write('[');
+		push();
+	}
+
+	void endArray() throws IOException {
+		depth--;
+		out.write(']');
+	}
+
+	void name(String name) throws IOException {
+		beforeValue();
+		writeString(name);
+		out.write(':');
+		afterName = true;
+	}
+
+	void value(String value) throws IOException {
+		beforeValue();
+		writeString(value);
+	}
+
+	/**
+	 * Writes a number or a boolean as is.
+	 */
+	void literal(String value) throws IOException {
+		beforeValue();
+		out.write(value);
+	}
+
+	void nullValue() throws IOException {
+		literal("null");
+	}
+
+	/**
+	 * Writes an attribute value. Numbers and booleans are written as JSON
+	 * literals, dates as ISO 8601 strings with millisecond precision, binary
+	 * values as Base64 strings and other values as strings.
+	 */
+	void writeValue(Object value) throws IOException {
+
+		if (value == null) {
+			nullValue();
+		} else if (value instanceof String) {
+			value((String) value);
+		} else if (value instanceof BigDecimal) {
+			literal(((BigDecimal) value).toPlainString());
+		} else if (value instanceof Double || value instanceof Float) {
+			double number = ((Number) value).doubleValue();
+			if (Double.isNaN(number) || Double.isInfinite(number)) {
+				// not representable as a JSON number
+				value(value.toString());
+			} else {
+				literal(value.toString());
+			}
+		} else if (value instanceof Number || value instanceof Boolean) {
+			literal(value.toString());
+		} else if (value instanceof Date) {
+			if (dateFormat == null) {
+				dateFormat = createDateFormat();
+			}
+
+			value(dateFormat.format((Date) value));
+		} else if (value instanceof byte[]) {
+			value(base64((byte[]) value));
+		} else if (value instanceof Character) {
+			value(value.toString());
+		} else if (value instanceof Enum<?>) {
+			value(((Enum<?>) value).name());
+		} else {
+			throw new IllegalArgumentException("Unsupported value type: " + value.getClass().getName());
+		}
+	}
+
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	private void push() {
+		if (++depth == nonEmpty.length) {
+			boolean[] expanded = new boolean[depth * 2];
+			System.arraycopy(nonEmpty, 0, expanded, 0, depth);
+			nonEmpty = expanded;
+		}
+
+		nonEmpty[depth] = false;
+	}
+
+	private void beforeValue() throws IOException {
+
+		// a value after a name is a part of the same member
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+
+		if (nonEmpty[depth]) {
+			out.write(',');
+		} else {
+			nonEmpty[depth] = true;
+		}
+	}
+
+	private static String base64(byte[] bytes) {
+
+		StringBuilder buffer = new StringBuilder((bytes.length + 2) / 3 * 4);
+
+		for (int i = 0; i < bytes.length; i += 3) {
+			int remaining = bytes.length - i;
+			int chunk = (bytes[i] & 0xff) << 16;
+			if (remaining > 1) {
+				chunk |= (bytes[i + 1] & 0xff) << 8;
+			}
+			if (remaining > 2) {
+				chunk |= bytes[i + 2] & 0xff;
+			}
+
+			buffer.append(BASE64[chunk >> 18 & 0x3f]);
+			buffer.append(BASE64[chunk >> 12 & 0x3f]);
+			buffer.append(remaining > 1 ? BASE64[chunk >> 6 & 0x3f] : '=');
+			buffer.append(remaining > 2 ? BASE64[chunk & 0x3f] : '=');
+		}
+
+		return buffer.toString();
+	}
+
+	private void writeString(String value) throws IOException {
+
+		out.write('"');
+
+		int length = value.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+				continue;
+			}
+
+			if (i > start) {
+				out.write(value, start, i - start);
+			}
+
+			start = i + 1;
+
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				out.write("\\u");
+				out.write(HEX[c >> 12 & 0xf]);
+				out.write(HEX[c >> 8 & 0xf]);
+				out.write(HEX[c >> 4 & 0xf]);
+				out.write(HEX[c & 0xf]);
+			}
+		}
+
+		if (start < length) {
+			out.write(value, start, length - start);
+		}
+
+		out.write('"');
+	}
+}
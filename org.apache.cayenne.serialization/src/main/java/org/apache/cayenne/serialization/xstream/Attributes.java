@@ -19,5 +19,5 @@
 package org.apache.cayenne.serialization.xstream;
 
 enum Attributes {
-	ref
+	ref, id, idref
 }
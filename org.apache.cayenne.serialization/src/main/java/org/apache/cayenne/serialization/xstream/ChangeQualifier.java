@@ -0,0 +1,132 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.exp.Expression;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.map.ObjEntity;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.reflect.ArcProperty;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Builds qualifiers of delta exports, matching objects whose subtree changed
+ * since a watermark, i.e. objects that have a watermark attribute greater than
+ * the watermark themselves, or reach such an object via the subgraph paths.
+ * Paths use outer joins, so that a change in any branch of the subtree is
+ * matched.
+ */
+class ChangeQualifier {
+
+	/**
+	 * Returns true if the node or any of its by-value descendants has a
+	 * watermark attribute.
+	 */
+	static boolean hasWatermarks(SubgraphNode node) {
+
+		if (node.getWatermarkAttribute() != null) {
+			return true;
+		}
+
+		for (SubgraphNode child : node.getChildren()) {
+			if (!child.isSerializedByReference() && hasWatermarks(child)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns a qualifier of the node objects whose subtree changed since the
+	 * watermark, or null if all objects match, i.e. if the watermark is null or
+	 * the subtree has no watermark attributes.
+	 */
+	static Expression subtreeChanged(SubgraphNode node, Object since) {
+
+		if (since == null) {
+			return null;
+		}
+
+		List<Expression> clauses = new ArrayList<Expression>();
+		addClauses(node, "", since, clauses);
+		return clauses.isEmpty() ? null : ExpressionFactory.joinExp(Expression.OR, clauses);
+	}
+
+	/**
+	 * Returns true if the qualifier of the node subtree joins related tables,
+	 * so that queries using it must be distinct.
+	 */
+	static boolean isJoining(SubgraphNode node) {
+		for (SubgraphNode child : node.getChildren()) {
+			if (!child.isSerializedByReference() && hasWatermarks(child)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Creates a DataRow query of the to-many children of the parent whose
+	 * subtree changed since the watermark, or returns null if all children
+	 * match.
+	 */
+	static SelectQuery createRelationshipQuery(ObjectId parentId, SubgraphNode child, Object since,
+			boolean projecting) {
+
+		Expression changed = subtreeChanged(child, since);
+		if (changed == null) {
+			return null;
+		}
+
+		ArcProperty incoming = child.getIncomingProperty();
+		ObjEntity parentEntity = (ObjEntity) incoming.getRelationship().getSourceEntity();
+		Expression parent = parentEntity.translateToRelatedEntity(ExpressionFactory.matchAllDbExp(parentId
+				.getIdSnapshot(), Expression.EQUAL_TO), incoming.getName());
+
+		SelectQuery query = new SelectQuery(child.getClassDescriptor().getEntity(), parent.andExp(changed));
+		query.setFetchingDataRows(true);
+		query.setDistinct(isJoining(child));
+
+		if (projecting) {
+			ColumnProjection.project(query, child);
+		}
+
+		return query;
+	}
+
+	private static void addClauses(SubgraphNode node, String path, Object since, List<Expression> clauses) {
+
+		if (node.getWatermarkAttribute() != null) {
+			clauses.add(ExpressionFactory.greaterExp(path + node.getWatermarkAttribute(), since));
+		}
+
+		// referenced objects are not exported, so their changes don't matter
+		for (SubgraphNode child : node.getChildren()) {
+			if (!child.isSerializedByReference()) {
+				addClauses(child, path + child.getIncomingProperty().getName() + "+.", since, clauses);
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.map.DbAttribute;
+import org.apache.cayenne.map.DbJoin;
+import org.apache.cayenne.map.DbRelationship;
+import org.apache.cayenne.map.ObjAttribute;
+import org.apache.cayenne.map.ObjRelationship;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.reflect.AttributeProperty;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Restricts DataRow queries of a node to the columns the node actually
+ * serializes: PK, the remaining attributes, and the FK columns of the node
+ * relationships.
+ */
+class ColumnProjection {
+
+	/**
+	 * Returns true if queries of the node can be projected. Nodes with
+	 * flattened attributes and nodes whose children have serialization
+	 * callbacks are not, as callbacks receive the node DataRows and may need
+	 * any column.
+	 */
+	static boolean isProjectable(SubgraphNode node) {
+
+		for (SubgraphNode child : node.getChildren()) {
+			if (!child.getSerializationCallbacks().isEmpty() || !child.getBatchSerializationCallbacks().isEmpty()) {
+				return false;
+			}
+		}
+
+		for (AttributeProperty property : node.getAttributeProperties()) {
+			if (property.getAttribute().isFlattened()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds node columns to a DataRow query, if the node is projectable.
+	 */
+	static void project(SelectQuery query, SubgraphNode node) {
+
+		if (!isProjectable(node)) {
+			return;
+		}
+
+		for (String column : getColumns(node)) {
+			query.addCustomDbAttribute(column);
+		}
+	}
+
+	/**
+	 * Creates a projected DataRow query of the to-many children of the parent,
+	 * or returns null if the node relationship is not a single join on the
+	 * parent id.
+	 */
+	static SelectQuery createRelationshipQuery(ObjectId parentId, SubgraphNode child) {
+
+		ObjRelationship relationship = child.getIncomingProperty().getRelationship();
+		List<DbRelationship> dbRelationships = relationship.getDbRelationships();
+		if (dbRelationships.size() != 1 || dbRelationships.get(0).getJoins().size() != 1) {
+			return null;
+		}
+
+		DbJoin join = dbRelationships.get(0).getJoins().get(0);
+		Object value = parentId.getIdSnapshot().get(join.getSourceName());
+		if (value == null) {
+			return null;
+		}
+
+		SelectQuery query = new SelectQuery(child.getClassDescriptor().getEntity(), ExpressionFactory.matchDbExp(
+				join.getTargetName(), value));
+		query.setFetchingDataRows(true);
+		project(query, child);
+		return query;
+	}
+
+	private static Collection<String> getColumns(SubgraphNode node) {
+
+		Collection<String> columns = new LinkedHashSet<String>();
+
+		for (DbAttribute pk : node.getClassDescriptor().getEntity().getDbEntity().getPrimaryKeys()) {
+			columns.add(pk.getName());
+		}
+
+		for (AttributeProperty property : node.getAttributeProperties()) {
+			ObjAttribute attribute = property.getAttribute();
+			columns.add(attribute.getDbAttributeName());
+		}
+
+		// read for delta exports even if not serialized
+		if (node.getWatermarkAttribute() != null) {
+			AttributeProperty watermark = (AttributeProperty) node.getClassDescriptor().getProperty(
+					node.getWatermarkAttribute());
+			columns.add(watermark.getAttribute().getDbAttributeName());
+		}
+
+		// FK to the parent, needed to group rows by parent
+		if (node.getIncomingProperty() != null) {
+			List<DbRelationship> dbRelationships = node.getIncomingProperty().getRelationship().getDbRelationships();
+			for (DbJoin join : dbRelationships.get(dbRelationships.size() - 1).getJoins()) {
+				columns.add(join.getTargetName());
+			}
+		}
+
+		// FKs of the relationships to children, needed for to-one references
+		// and to-many queries
+		for (SubgraphNode child : node.getChildren()) {
+			List<DbRelationship> dbRelationships = child.getIncomingProperty().getRelationship().getDbRelationships();
+			for (DbJoin join : dbRelationships.get(0).getJoins()) {
+				columns.add(join.getSourceName());
+			}
+		}
+
+		return columns;
+	}
+}
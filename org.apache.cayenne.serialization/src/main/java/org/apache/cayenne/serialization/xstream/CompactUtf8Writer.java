@@ -0,0 +1,253 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.xml.AbstractXmlWriter;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyReplacer;
+
+/**
+ * A compact XML writer encoding straight to UTF-8 bytes. Its output is the
+ * same as that of XStream CompactWriter. Escaped element and attribute names
+ * are encoded once and looked up in a map shared between runs, which a
+ * serializer fills with the names of a subgraph in advance.
+ */
+class CompactUtf8Writer extends AbstractXmlWriter {
+
+	private static final byte[] AMP = bytes("&amp;");
+	private static final byte[] LT = bytes("&lt;");
+	private static final byte[] GT = bytes("&gt;");
+	private static final byte[] QUOT = bytes("&quot;");
+	private static final byte[] APOS = bytes("&apos;");
+	private static final byte[] CR = bytes("&#x0D;");
+	private static final byte[] NULL = bytes("&#x0;");
+
+	private Utf8Output output;
+	private Map<String, byte[]> names;
+
+	private List<byte[]> elementStack;
+	private boolean tagInProgress;
+	private boolean tagIsEmpty;
+
+	CompactUtf8Writer(Utf8Output output, Map<String, byte[]> names) {
+		this(output, names, new XmlFriendlyReplacer());
+	}
+
+	CompactUtf8Writer(Utf8Output output, Map<String, byte[]> names, XmlFriendlyReplacer replacer) {
+		super(replacer);
+		this.output = output;
+		this.names = names;
+		this.elementStack = new ArrayList<byte[]>();
+	}
+
+	public void startNode(String name) {
+		try {
+			tagIsEmpty = false;
+			finishTag();
+
+			byte[] nameBytes = name(name);
+			output.write('<');
+			output.write(nameBytes);
+			elementStack.add(nameBytes);
+
+			tagInProgress = true;
+			tagIsEmpty = true;
+		} catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+
+	public void addAttribute(String key, String value) {
+		try {
+			output.write(' ');
+			output.write(name(key));
+			output.write('=');
+			output.write('"');
+			writeText(value);
+			output.write('"');
+		} catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+
+	public void setValue(String text) {
+		try {
+			tagIsEmpty = false;
+			finishTag();
+			writeText(text);
+		} catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+
+	public void endNode() {
+		try {
+			byte[] nameBytes = elementStack.remove(elementStack.size() - 1);
+
+			if (tagIsEmpty) {
+				output.write('/');
+				finishTag();
+			} else {
+				finishTag();
+				output.write('<');
+				output.write('/');
+				output.write(nameBytes);
+				output.write('>');
+			}
+
+			tagIsEmpty = false;
+		} catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+
+	/**
+	 * Starts capturing the bytes of the next element, returning a mark to
+	 * pass to {@link #endFragment(int)}.
+	 */
+	int startFragment() {
+		try {
+			// the end of the parent start tag is not a part of the fragment
+			tagIsEmpty = false;
+			finishTag();
+			return output.startCapture();
+		} catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+
+	/**
+	 * Returns the bytes of the complete elements written since the mark.
+	 */
+	byte[] endFragment(int mark) {
+		return output.endCapture(mark);
+	}
+
+	/**
+	 * Writes complete elements previously captured with
+	 * {@link #startFragment()}.
+	 */
+	void writeFragment(byte[] fragment) {
+		try {
+			tagIsEmpty = false;
+			finishTag();
+			output.write(fragment);
+		} catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+
+	public void flush() {
+		try {
+			output.flush();
+		} catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+
+	public void close() {
+		flush();
+	}
+
+	public HierarchicalStreamWriter underlyingWriter() {
+		return this;
+	}
+
+	private void finishTag() throws IOException {
+		if (tagInProgress) {
+			output.write('>');
+			tagInProgress = false;
+		}
+	}
+
+	private byte[] name(String name) {
+		byte[] bytes = names.get(name);
+		if (bytes == null) {
+			bytes = bytes(escapeXmlName(name));
+			names.put(name, bytes);
+		}
+
+		return bytes;
+	}
+
+	private void writeText(String text) throws IOException {
+
+		int length = text.length();
+		int start = 0;
+
+		// copy runs of plain chars in one call
+		for (int i = 0; i < length; i++) {
+
+			byte[] escaped;
+			switch (text.charAt(i)) {
+			case '\0':
+				escaped = NULL;
+				break;
+			case '&':
+				escaped = AMP;
+				break;
+			case '<':
+				escaped = LT;
+				break;
+			case '>':
+				escaped = GT;
+				break;
+			case '"':
+				escaped = QUOT;
+				break;
+			case '\'':
+				escaped = APOS;
+				break;
+			case '\r':
+				escaped = CR;
+				break;
+			default:
+				continue;
+			}
+
+			if (i > start) {
+				output.write(text.subSequence(start, i));
+			}
+
+			output.write(escaped);
+			start = i + 1;
+		}
+
+		if (start == 0) {
+			output.write(text);
+		} else if (start < length) {
+			output.write(text.subSequence(start, length));
+		}
+	}
+
+	static byte[] bytes(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.serialization.ReferenceCache;
+import org.apache.cayenne.serialization.ReferenceLookup;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Per-run state of a deserialization, passed to the stateless converters via
+ * XStream DataHolder, so that a single XStream instance can be shared between
+ * runs and threads.
+ */
+class DeserializationState {
+
+	ObjectContext objectContext;
+	int commitCountThreshold;
+	ReferenceLookup referenceLookup;
+	ReferenceResolver referenceResolver;
+	DeserializerStack stack;
+
+	// new objects of the current commit batch, only tracked when committed
+	// objects are evicted from the context
+	List<NewObject> newObjects;
+
+	// by-value objects of the current root keyed by their local "id"
+	// attribute, resolving "idref" back-references
+	Map<String, Object> sharedObjects = new HashMap<String, Object>();
+
+	DeserializationState(SubgraphNode rootNode, ObjectContext objectContext,
+			int commitCountThreshold) {
+		this(rootNode, objectContext, commitCountThreshold, 0, 0, false);
+	}
+
+	DeserializationState(SubgraphNode rootNode, ObjectContext objectContext,
+			int commitCountThreshold, int referenceBatchSize,
+			int referenceCacheSize, boolean evictingCommittedObjects) {
+
+		this.objectContext = objectContext;
+		this.commitCountThreshold = commitCountThreshold;
+
+		if (evictingCommittedObjects && commitCountThreshold > 0) {
+			this.newObjects = new ArrayList<NewObject>(commitCountThreshold);
+		}
+
+		ReferenceCache referenceCache = referenceCacheSize > 0 ? new ReferenceCache(referenceCacheSize) : null;
+		this.referenceLookup = new ReferenceLookup(objectContext, referenceBatchSize, referenceCache);
+
+		if (referenceBatchSize > 0) {
+			this.referenceResolver = new ReferenceResolver(referenceLookup,
+					referenceBatchSize);
+		}
+
+		this.stack = new DeserializerStack(rootNode, referenceResolver);
+	}
+
+	static class NewObject {
+
+		SubgraphNode node;
+		Persistent object;
+
+		NewObject(SubgraphNode node, Persistent object) {
+			this.node = node;
+			this.object = object;
+		}
+	}
+}
@@ -32,29 +32,50 @@ class DeserializerStack {
 	private FastStack subgraphStack;
 	private FastStack objectStack;
 	private int counter;
+	private ReferenceResolver referenceResolver;
 
 	DeserializerStack(SubgraphNode root) {
+		this(root, null);
+	}
+
+	DeserializerStack(SubgraphNode root, ReferenceResolver referenceResolver) {
 		int maxDepth = root.getMaxDepth();
 		objectStack = new FastStack(maxDepth);
 		subgraphStack = new FastStack(maxDepth);
 		subgraphStack.push(root);
+		this.referenceResolver = referenceResolver;
 	}
 
-	void pushObject(Object object) {
-
-		SubgraphNode node = (SubgraphNode) subgraphStack.peek();
-
-		// connect to parent
+	/**
+	 * Connects an object to its parent via the incoming relationship of the
+	 * node.
+	 */
+	static void connect(SubgraphNode node, Object parent, Object object) {
 		ArcProperty incoming = node.getIncomingProperty();
 		if (incoming != null) {
-			Object peek = objectStack.peek();
-
 			if (incoming instanceof ToManyProperty) {
-				((ToManyProperty) incoming).addTarget(peek, object, true);
+				((ToManyProperty) incoming).addTarget(parent, object, true);
 			} else {
-				incoming.writeProperty(peek, null, object);
+				incoming.writeProperty(parent, null, object);
 			}
 		}
+	}
+
+	static void postDeserialize(SubgraphNode node, Object object) {
+		for (DeserializationCallback callback : node
+				.getDeserializationCallbacks()) {
+			callback.postDeserialize(node, object);
+		}
+	}
+
+	void pushObject(Object object) {
+
+		SubgraphNode node = (SubgraphNode) subgraphStack.peek();
+
+		// connect to parent
+		if (node.getIncomingProperty() != null) {
+			connect(node, objectStack.peek(), object);
+		}
 
 		objectStack.push(object);
 	}
@@ -69,10 +90,12 @@ class DeserializerStack {
 
 			SubgraphNode node = (SubgraphNode) subgraphStack.peek();
 
-			// apply callbacks
-			for (DeserializationCallback callback : node
-					.getDeserializationCallbacks()) {
-				callback.postDeserialize(node, object);
+			// apply callbacks; if some of the object references are still
+			// unresolved, callbacks must wait till they are connected
+			if (referenceResolver != null && referenceResolver.isWaiting(object)) {
+				referenceResolver.deferCallbacks(node, object, peekObject());
+			} else {
+				postDeserialize(node, object);
 			}
 
 			if (object.getPersistenceState() == PersistenceState.NEW) {
@@ -83,6 +106,48 @@ class DeserializerStack {
 		return counter;
 	}
 
+	/**
+	 * Returns the object currently being deserialized or null if the stack is
+	 * empty.
+	 */
+	Object peekObject() {
+		return objectStack.size() > 0 ? objectStack.peek() : null;
+	}
+
+	SubgraphNode peekNode() {
+		return (SubgraphNode) subgraphStack.peek();
+	}
+
+	boolean isEmpty() {
+		return objectStack.size() == 0;
+	}
+
+	boolean containsObject(Object object) {
+		for (int i = 0; i < objectStack.size(); i++) {
+			if (objectStack.get(i) == object) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Turns subgraph relationships of the objects on the stack into faults, so
+	 * that they no longer hold on to the objects evicted from the context.
+	 */
+	void invalidateRelationships() {
+		for (int i = 0; i < objectStack.size(); i++) {
+			Object object = objectStack.get(i);
+
+			// objects and nodes are pushed in pairs, so the same index matches
+			SubgraphNode node = (SubgraphNode) subgraphStack.get(i);
+			for (SubgraphNode child : node.getChildren()) {
+				child.getIncomingProperty().invalidate(object);
+			}
+		}
+	}
+
 	boolean pushPath(String name) {
 
 		SubgraphNode child = ((SubgraphNode) subgraphStack.peek())
@@ -0,0 +1,117 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.cayenne.ObjectContext;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+
+/**
+ * An iterator that lazily deserializes root objects of a document with
+ * multiple roots. The reader is closed when the iterator is exhausted or
+ * closed, whichever comes first.
+ */
+class DeserializingIterator<T> implements Iterator<T>, Closeable {
+
+	private XStream xstream;
+	private HierarchicalStreamReader reader;
+	private DataHolder dataHolder;
+	private ObjectContext committingContext;
+
+	// true if the reader is positioned at the next root
+	private boolean movedDown;
+
+	/**
+	 * @param committingContext a context to commit when the iterator is
+	 *            exhausted, or null if no commit is needed.
+	 */
+	DeserializingIterator(XStream xstream, DataHolder dataHolder, HierarchicalStreamReader reader,
+			ObjectContext committingContext) {
+		this.xstream = xstream;
+		this.dataHolder = dataHolder;
+		this.reader = reader;
+		this.committingContext = committingContext;
+	}
+
+	public boolean hasNext() {
+
+		if (reader == null) {
+			return false;
+		}
+
+		if (movedDown) {
+			return true;
+		}
+
+		while (reader.hasMoreChildren()) {
+			reader.moveDown();
+
+			if (!XStreamDeserializer.WATERMARK_NODE.equals(reader.getNodeName())) {
+				movedDown = true;
+				return true;
+			}
+
+			reader.moveUp();
+		}
+
+		reader.close();
+		reader = null;
+
+		if (committingContext != null) {
+			committingContext.commitChanges();
+		}
+
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		T root = (T) xstream.unmarshal(reader, null, dataHolder);
+		reader.moveUp();
+		movedDown = false;
+		return root;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Closes the reader, stopping the parser thread in pipelined mode. Objects
+	 * deserialized since the last intermediate commit are not committed.
+	 */
+	public void close() {
+		if (reader != null) {
+			reader.close();
+			reader = null;
+			movedDown = false;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A channel that gzips bytes written to it into another channel. With a
+ * single thread, output is a regular gzip stream. With more threads, input is
+ * split in blocks that are compressed in parallel, each into a gzip member of
+ * its own, and the members are written in order. Such multi-member output is
+ * read by gzip tools and by {@link MultiMemberGzipInputStream} like a single
+ * stream, at a small cost in compression ratio.
+ * <p>
+ * {@link #finish()} completes the output, leaving the target channel open.
+ */
+class GzipChannel implements WritableByteChannel {
+
+	private WritableByteChannel out;
+	private int blockSize;
+
+	// single-threaded compression
+	private GzipStream gzip;
+	private byte[] copyBuffer;
+
+	// parallel block compression
+	private ExecutorService executor;
+	private int maxPendingBlocks;
+	private LinkedList<Future<byte[]>> pendingBlocks;
+	private byte[] block;
+	private int blockLength;
+
+	private boolean open;
+
+	GzipChannel(WritableByteChannel out, int threads, int blockSize) throws IOException {
+
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		}
+
+		this.out = out;
+		this.blockSize = blockSize;
+		this.open = true;
+
+		if (threads <= 1) {
+			this.gzip = new GzipStream(Channels.newOutputStream(out), blockSize);
+		} else {
+			this.executor = Executors.newFixedThreadPool(threads);
+
+			// let the compressors get ahead of the writes, but keep memory
+			// use bounded
+			this.maxPendingBlocks = threads * 2;
+			this.pendingBlocks = new LinkedList<Future<byte[]>>();
+			this.block = new byte[blockSize];
+		}
+	}
+
+	public int write(ByteBuffer source) throws IOException {
+
+		int written = source.remaining();
+
+		if (gzip != null) {
+			if (source.hasArray()) {
+				gzip.write(source.array(), source.arrayOffset() + source.position(), written);
+				source.position(source.limit());
+			} else {
+
+				// direct buffers are copied in chunks
+				if (copyBuffer == null) {
+					copyBuffer = new byte[Math.min(blockSize, 64 * 1024)];
+				}
+
+				while (source.hasRemaining()) {
+					int length = Math.min(source.remaining(), copyBuffer.length);
+					source.get(copyBuffer, 0, length);
+					gzip.write(copyBuffer, 0, length);
+				}
+			}
+
+			return written;
+		}
+
+		while (source.hasRemaining()) {
+			int length = Math.min(source.remaining(), blockSize - blockLength);
+			source.get(block, blockLength, length);
+			blockLength += length;
+
+			if (blockLength == blockSize) {
+				submitBlock();
+			}
+		}
+
+		return written;
+	}
+
+	/**
+	 * Compresses and writes all remaining input, and writes the gzip trailer.
+	 */
+	void finish() throws IOException {
+
+		if (gzip != null) {
+			gzip.finish();
+			gzip.flush();
+		} else {
+			if (blockLength > 0) {
+				submitBlock();
+			}
+
+			while (!pendingBlocks.isEmpty()) {
+				writeBlock();
+			}
+		}
+	}
+
+	/**
+	 * Stops compression threads, discarding any pending blocks, and frees the
+	 * native memory of the compressor. The target channel is left open.
+	 */
+	void release() {
+
+		if (!open) {
+			return;
+		}
+
+		open = false;
+
+		if (gzip != null) {
+			gzip.end();
+		}
+
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Finishes the output and releases resources, without closing the target
+	 * channel.
+	 */
+	public void close() throws IOException {
+
+		if (!open) {
+			return;
+		}
+
+		try {
+			finish();
+		} finally {
+			release();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+
+		if (pendingBlocks.size() >= maxPendingBlocks) {
+			writeBlock();
+		}
+
+		final byte[] data = block;
+		final int length = blockLength;
+		pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+
+			public byte[] call() throws Exception {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4);
+				GzipStream member = new GzipStream(compressed, 512);
+				try {
+					member.write(data, 0, length);
+					member.finish();
+				} finally {
+					member.end();
+				}
+
+				return compressed.toByteArray();
+			}
+		}));
+
+		block = new byte[blockSize];
+		blockLength = 0;
+	}
+
+	private void writeBlock() throws IOException {
+
+		byte[] compressed;
+		try {
+			compressed = pendingBlocks.removeFirst().get();
+		} catch (ExecutionException e) {
+			IOException failure = new IOException("Error compressing a block");
+			failure.initCause(e.getCause());
+			throw failure;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for a compressed block");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(compressed);
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * A gzip stream whose Deflater can be released without closing the
+	 * underlying stream, as closing would close the target channel.
+	 */
+	static class GzipStream extends GZIPOutputStream {
+
+		GzipStream(OutputStream out, int size) throws IOException {
+			super(out, size);
+		}
+
+		/**
+		 * Frees the native memory of the Deflater. The stream can't be written
+		 * to afterwards.
+		 */
+		void end() {
+			def.end();
+		}
+	}
+}
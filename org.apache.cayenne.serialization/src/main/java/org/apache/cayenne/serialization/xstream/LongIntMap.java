@@ -0,0 +1,136 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map of primitive long keys to non-zero int values,
+ * with linear probing. Unlike a HashMap of boxed keys, an entry takes 12 bytes
+ * in two flat arrays and no objects are created per entry, which matters when
+ * tracking millions of ids. Entries can't be removed individually.
+ */
+class LongIntMap {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private long[] keys;
+
+	// zero marks an empty slot
+	private int[] values;
+	private int size;
+	private int mask;
+
+	LongIntMap() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns the value of the key, or 0 if there's no such key.
+	 */
+	int get(long key) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			if (values[i] == 0 || keys[i] == key) {
+				return values[i];
+			}
+		}
+	}
+
+	/**
+	 * Stores a non-zero value of the key, replacing the previous value.
+	 */
+	void put(long key, int value) {
+
+		if (value == 0) {
+			throw new IllegalArgumentException("Zero values are not supported");
+		}
+
+		int i = slot(key);
+		while (values[i] != 0 && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+
+		if (values[i] == 0) {
+			keys[i] = key;
+			values[i] = value;
+
+			// keep the table at most half full
+			if (++size * 2 > values.length) {
+				rehash(values.length * 2);
+			}
+		} else {
+			values[i] = value;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all entries. A table grown by a large number of entries is
+	 * released, so that clearing stays cheap for the following small runs.
+	 */
+	void clear() {
+
+		if (size == 0) {
+			return;
+		}
+
+		if (values.length > INITIAL_CAPACITY * 16) {
+			allocate(INITIAL_CAPACITY);
+		} else {
+			Arrays.fill(values, 0);
+		}
+
+		size = 0;
+	}
+
+	private int slot(long key) {
+		// Fibonacci hashing spreads sequential ids over the table
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	private void rehash(int capacity) {
+
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+
+		allocate(capacity);
+
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != 0) {
+				int j = slot(oldKeys[i]);
+				while (values[j] != 0) {
+					j = (j + 1) & mask;
+				}
+
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
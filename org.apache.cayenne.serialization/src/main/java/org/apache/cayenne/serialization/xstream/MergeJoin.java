@@ -0,0 +1,404 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.DataRow;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.ResultIterator;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.exp.Expression;
+import org.apache.cayenne.map.DbAttribute;
+import org.apache.cayenne.map.DbJoin;
+import org.apache.cayenne.map.DbRelationship;
+import org.apache.cayenne.map.ObjEntity;
+import org.apache.cayenne.map.ObjRelationship;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.query.SortOrder;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Reads a subgraph with a single streaming query per to-many node. Each query
+ * is ordered by the keys of all the node ancestors and then by the node key,
+ * i.e. in the same order the objects are serialized, so children of each
+ * parent are taken from the head of the node cursor, same as in a merge join.
+ * Only one row per node is held in memory, regardless of the number of rows.
+ * <p>
+ * Queries run as separate statements, so rows may change in between. Rows of
+ * the root children whose parent key is lower than the key of the current
+ * parent belong to no serialized parent and are skipped with a warning. Below
+ * that level rows are ordered by keys that are not in the rows, so such rows
+ * can't be told from the rows of upcoming parents; they stay at the head of
+ * the cursor, and {@link #finish()} fails if any rows remain unread.
+ * <p>
+ * A node is merge-joined if its parent node is merge-joined or is the root,
+ * it has no serialization callbacks of any kind, and its relationship is a
+ * single join on a single-column parent PK. Other nodes are fetched per
+ * parent object.
+ */
+class MergeJoin {
+
+	private DataContext context;
+	private int statementFetchSize;
+	private boolean materializing;
+	private SelectQuery rootQuery;
+	private Map<SubgraphNode, Cursor> cursors;
+
+	/**
+	 * @param materializing whether children are registered in the context as
+	 *            persistent objects, or returned as DataRows.
+	 */
+	MergeJoin(DataContext context, SubgraphNode rootNode, Expression rootQualifier, int statementFetchSize,
+			boolean materializing) {
+
+		this.context = context;
+		this.statementFetchSize = statementFetchSize;
+		this.materializing = materializing;
+		this.cursors = new HashMap<SubgraphNode, Cursor>();
+
+		ObjEntity rootEntity = rootNode.getClassDescriptor().getEntity();
+		String rootKey = getSinglePK(rootEntity);
+
+		List<String> orderings = new ArrayList<String>(1);
+		if (rootKey != null) {
+			orderings.add(rootKey);
+		}
+
+		this.rootQuery = createQuery(rootEntity, rootQualifier, orderings);
+
+		if (rootKey != null && !rootNode.isSerializedByReference()) {
+			plan(rootNode, rootQualifier, orderings);
+		}
+	}
+
+	/**
+	 * Returns true if at least one node of the subgraph is merge-joined.
+	 */
+	boolean isJoining() {
+		return !cursors.isEmpty();
+	}
+
+	/**
+	 * Returns a query of root objects, ordered by their PK.
+	 */
+	SelectQuery getRootQuery() {
+		return rootQuery;
+	}
+
+	/**
+	 * Returns an iterator over the children of the parent object for the child
+	 * node, or null if the node is not merge-joined. Parents must be passed in
+	 * the order they are serialized.
+	 */
+	Iterator<Object> children(SubgraphNode child, ObjectId parentId) {
+
+		final Cursor cursor = cursors.get(child);
+		if (cursor == null) {
+			return null;
+		}
+
+		final Object key = ToManyPrefetcher.normalize(parentId.getIdSnapshot().get(cursor.join.getSourceName()));
+
+		return new Iterator<Object>() {
+
+			public boolean hasNext() {
+
+				if (key == null) {
+					return false;
+				}
+
+				DataRow row;
+				while ((row = cursor.peek()) != null) {
+
+					Object rowKey = ToManyPrefetcher.normalize(row.get(cursor.join.getTargetName()));
+					if (key.equals(rowKey)) {
+						return true;
+					}
+
+					// a row of the root children sorted before the current
+					// parent has no parent among the serialized roots
+					if (cursor.parentOrdered && compare(rowKey, key) < 0) {
+						cursor.skip();
+						continue;
+					}
+
+					return false;
+				}
+
+				return false;
+			}
+
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				DataRow row = cursor.take();
+				return materializing ? context.objectFromDataRow(cursor.entityName, row) : row;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of rows skipped so far, as they had no serialized
+	 * parent.
+	 */
+	int getSkippedRows() {
+		int skipped = 0;
+		for (Cursor cursor : cursors.values()) {
+			skipped += cursor.skipped;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Checks that all the rows of the opened cursors were read, and throws an
+	 * exception otherwise. Called once all the roots are serialized.
+	 */
+	void finish() {
+		for (Cursor cursor : cursors.values()) {
+
+			if (cursor.skipped > 0) {
+				XStreamSerializer.logger.warn("Skipped " + cursor.skipped + " row(s) of " + cursor.entityName
+						+ " without a serialized parent");
+			}
+
+			if (cursor.result != null || cursor.next != null) {
+				DataRow row = cursor.peek();
+				if (row != null) {
+					throw new CayenneRuntimeException("Unread rows of " + cursor.entityName
+							+ " remain after serialization, first with parent key "
+							+ row.get(cursor.join.getTargetName())
+							+ ". The data may have changed during serialization");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all the open cursors.
+	 */
+	void close() {
+		for (Cursor cursor : cursors.values()) {
+			cursor.close();
+		}
+	}
+
+	private void plan(SubgraphNode parent, Expression parentQualifier, List<String> parentOrderings) {
+
+		// children of cached objects may be skipped, while cursors expect
+		// every parent to consume its rows
+		if (parent.getFragmentCache() != null) {
+			return;
+		}
+
+		ObjEntity parentEntity = parent.getClassDescriptor().getEntity();
+
+		for (SubgraphNode child : parent.getChildren()) {
+
+			DbJoin join = getJoin(child);
+			if (join == null) {
+				continue;
+			}
+
+			DbRelationship reverse = child.getIncomingProperty().getRelationship().getDbRelationships().get(0)
+					.getReverseRelationship();
+			if (reverse == null) {
+				continue;
+			}
+
+			ObjEntity childEntity = child.getClassDescriptor().getEntity();
+			String childKey = getSinglePK(childEntity);
+			if (childKey == null) {
+				continue;
+			}
+
+			// order by ancestor keys reached via the reverse relationship,
+			// then by the child key
+			List<String> orderings = new ArrayList<String>(parentOrderings.size() + 1);
+			for (String ordering : parentOrderings) {
+				orderings.add(reverse.getName() + "." + ordering);
+			}
+			orderings.add(childKey);
+
+			Expression qualifier = parentQualifier != null ? parentEntity.translateToRelatedEntity(
+					parentQualifier, child.getIncomingProperty().getName()) : null;
+
+			SelectQuery query = createQuery(childEntity, qualifier, orderings);
+			if (!materializing) {
+				ColumnProjection.project(query, child);
+			}
+
+			// only children of the root are ordered by the parent key alone
+			cursors.put(child, new Cursor(childEntity.getName(), join, query, parentOrderings.size() == 1));
+
+			if (!child.isSerializedByReference()) {
+				plan(child, qualifier, orderings);
+			}
+		}
+	}
+
+	private SelectQuery createQuery(ObjEntity entity, Expression qualifier, List<String> dbOrderings) {
+		SelectQuery query = new SelectQuery(entity, qualifier);
+		for (String ordering : dbOrderings) {
+			query.addOrdering("db:" + ordering, SortOrder.ASCENDING);
+		}
+
+		query.setFetchingDataRows(true);
+		query.setStatementFetchSize(statementFetchSize);
+		return query;
+	}
+
+	/**
+	 * Returns the join of a to-many node relationship to the single-column
+	 * parent PK, or null if the node can't be merge-joined.
+	 */
+	private static DbJoin getJoin(SubgraphNode child) {
+
+		if (!child.getSerializationCallbacks().isEmpty() || !child.getBatchSerializationCallbacks().isEmpty()) {
+			return null;
+		}
+
+		ObjRelationship relationship = child.getIncomingProperty().getRelationship();
+		if (!relationship.isToMany() || relationship.getDbRelationships().size() != 1) {
+			return null;
+		}
+
+		List<DbJoin> joins = relationship.getDbRelationships().get(0).getJoins();
+		if (joins.size() != 1) {
+			return null;
+		}
+
+		DbJoin join = joins.get(0);
+		String parentKey = getSinglePK((ObjEntity) relationship.getSourceEntity());
+		return join.getSourceName().equals(parentKey) ? join : null;
+	}
+
+	/**
+	 * Compares normalized keys of the same column.
+	 */
+	@SuppressWarnings("unchecked")
+	static int compare(Object key1, Object key2) {
+
+		if (key1 == null) {
+			return key2 == null ? 0 : -1;
+		} else if (key2 == null) {
+			return 1;
+		}
+
+		if (!(key1 instanceof Comparable)) {
+			throw new CayenneRuntimeException("Can't merge-join on a key that is not Comparable: "
+					+ key1.getClass().getName());
+		}
+
+		return ((Comparable<Object>) key1).compareTo(key2);
+	}
+
+	private static String getSinglePK(ObjEntity entity) {
+		Collection<DbAttribute> pks = entity.getDbEntity().getPrimaryKeys();
+		return pks.size() == 1 ? pks.iterator().next().getName() : null;
+	}
+
+	/**
+	 * A streaming query of a single node with one row look-ahead.
+	 */
+	class Cursor {
+
+		String entityName;
+		DbJoin join;
+		SelectQuery query;
+		boolean parentOrdered;
+		ResultIterator result;
+		DataRow next;
+		boolean done;
+		int skipped;
+
+		Cursor(String entityName, DbJoin join, SelectQuery query, boolean parentOrdered) {
+			this.entityName = entityName;
+			this.join = join;
+			this.query = query;
+			this.parentOrdered = parentOrdered;
+		}
+
+		DataRow peek() {
+
+			if (next == null && !done) {
+				try {
+
+					// open lazily, so that nodes without any parents never
+					// run their queries
+					if (result == null) {
+						result = context.performIteratedQuery(query);
+					}
+
+					if (result.hasNextRow()) {
+						next = (DataRow) result.nextRow();
+					} else {
+						done = true;
+						close();
+					}
+				} catch (Exception e) {
+					throw new CayenneRuntimeException("Error reading " + entityName, e);
+				}
+			}
+
+			return next;
+		}
+
+		DataRow take() {
+			DataRow row = peek();
+			next = null;
+			return row;
+		}
+
+		void skip() {
+			if (XStreamSerializer.logger.isDebugEnabled()) {
+				XStreamSerializer.logger.debug("Skipped a row of " + entityName + " without a serialized parent: "
+						+ next);
+			}
+
+			next = null;
+			skipped++;
+		}
+
+		void close() {
+			if (result != null) {
+				try {
+					result.close();
+				} catch (Exception e) {
+					// ignore
+				}
+
+				result = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a gzip stream with any number of members as a single stream.
+ * GZIPInputStream only looks for another member when the underlying stream
+ * reports available bytes, so on pipes and sockets it may stop after the
+ * first member of the output of parallel compression. This stream reads
+ * members until the end of the underlying stream.
+ */
+class MultiMemberGzipInputStream extends InputStream {
+
+	private static final int MAGIC_LOW = GZIPInputStream.GZIP_MAGIC & 0xff;
+	private static final int MAGIC_HIGH = GZIPInputStream.GZIP_MAGIC >> 8;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private PushbackInputStream in;
+	private Inflater inflater;
+	private CRC32 crc;
+	private byte[] buffer;
+	private int bufferLength;
+	private byte[] singleByte;
+	private boolean eof;
+
+	MultiMemberGzipInputStream(InputStream in, int bufferSize) throws IOException {
+		this.in = new PushbackInputStream(in, bufferSize);
+		this.inflater = new Inflater(true);
+		this.crc = new CRC32();
+		this.buffer = new byte[bufferSize];
+		this.singleByte = new byte[1];
+
+		if (!readHeader()) {
+			throw new EOFException("Empty gzip stream");
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		if (eof) {
+			return -1;
+		}
+
+		if (len == 0) {
+			return 0;
+		}
+
+		while (true) {
+
+			int inflated;
+			try {
+				inflated = inflater.inflate(b, off, len);
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage() != null ? e.getMessage() : "Invalid gzip data");
+			}
+
+			if (inflated > 0) {
+				crc.update(b, off, inflated);
+				return inflated;
+			}
+
+			if (inflater.finished()) {
+				readTrailer();
+
+				if (!readHeader()) {
+					eof = true;
+					return -1;
+				}
+			} else if (inflater.needsDictionary()) {
+				throw new ZipException("Unexpected preset dictionary");
+			} else if (inflater.needsInput()) {
+				bufferLength = in.read(buffer, 0, buffer.length);
+				if (bufferLength < 0) {
+					throw new EOFException("Unexpected end of gzip stream");
+				}
+
+				inflater.setInput(buffer, 0, bufferLength);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		eof = true;
+		inflater.end();
+		in.close();
+	}
+
+	/**
+	 * Reads the header of the next member, returning false at the end of the
+	 * stream.
+	 */
+	private boolean readHeader() throws IOException {
+
+		int b1 = in.read();
+		if (b1 < 0) {
+			return false;
+		}
+
+		if (b1 != MAGIC_LOW || readByte() != MAGIC_HIGH) {
+			throw new ZipException("Not in gzip format");
+		}
+
+		if (readByte() != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+
+		int flags = readByte();
+
+		// modification time, extra flags, OS
+		skipBytes(6);
+
+		if ((flags & FEXTRA) != 0) {
+			skipBytes(readByte() | (readByte() << 8));
+		}
+
+		if ((flags & FNAME) != 0) {
+			skipString();
+		}
+
+		if ((flags & FCOMMENT) != 0) {
+			skipString();
+		}
+
+		if ((flags & FHCRC) != 0) {
+			skipBytes(2);
+		}
+
+		inflater.reset();
+		crc.reset();
+		return true;
+	}
+
+	private void readTrailer() throws IOException {
+
+		// bytes past the end of the member belong to the trailer and the
+		// next member
+		int remaining = inflater.getRemaining();
+		if (remaining > 0) {
+			in.unread(buffer, bufferLength - remaining, remaining);
+		}
+
+		long crcValue = readInt();
+		long size = readInt();
+
+		if (crcValue != crc.getValue()) {
+			throw new ZipException("Corrupt gzip member: CRC mismatch");
+		}
+
+		if (size != (inflater.getTotalOut() & 0xffffffffL)) {
+			throw new ZipException("Corrupt gzip member: size mismatch");
+		}
+	}
+
+	private long readInt() throws IOException {
+		return (readByte() | (readByte() << 8) | (readByte() << 16) | ((long) readByte() << 24));
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of gzip stream");
+		}
+
+		return b;
+	}
+
+	private void skipBytes(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			readByte();
+		}
+	}
+
+	private void skipString() throws IOException {
+		while (readByte() != 0) {
+		}
+	}
+}
@@ -41,11 +41,9 @@ import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 
 class ObjectIdConverter implements Converter {
 
-	private EntityResolver entityResolver;
 	private Map<String, Map<String, Class<?>>> idTypesMap;
 
-	ObjectIdConverter(EntityResolver entityResolver) {
-		this.entityResolver = entityResolver;
+	ObjectIdConverter() {
 		this.idTypesMap = new ConcurrentHashMap<String, Map<String, Class<?>>>();
 	}
 
@@ -70,28 +68,52 @@ class ObjectIdConverter implements Converter {
 
 		String entityName = reader.getNodeName();
 
-		Map<String, Class<?>> idTypeMap = getIdTypesMap(entityName);
+		EntityResolver entityResolver = PersistentDeserializeConverter
+				.getState(context).objectContext.getEntityResolver();
+		Map<String, Class<?>> idTypeMap = getIdTypesMap(entityResolver,
+				entityName);
+
+		String firstKey = null;
+		Object firstValue = null;
+		Map<String, Object> id = null;
 
-		Map<String, Object> id = new HashMap<String, Object>();
 		while (reader.hasMoreChildren()) {
 			reader.moveDown();
 
 			String key = reader.getNodeName();
+			Object value = context.convertAnother(null, idTypeMap.get(key));
+
+			// most ids have a single column, so avoid creating a map for them
+			if (firstKey == null) {
+				firstKey = key;
+				firstValue = value;
+			} else {
+				if (id == null) {
+					id = new HashMap<String, Object>();
+					id.put(firstKey, firstValue);
+				}
 
-			Object value = context.convertAnother(id, idTypeMap.get(key));
-			id.put(key, value);
+				id.put(key, value);
+			}
 
 			reader.moveUp();
 		}
 
-		return new ObjectId(entityName, id);
+		if (id != null) {
+			return new ObjectId(entityName, id);
+		}
+
+		return firstKey != null ? new ObjectId(entityName, firstKey,
+				firstValue) : new ObjectId(entityName,
+				new HashMap<String, Object>());
 	}
 
 	public boolean canConvert(Class type) {
 		return ObjectId.class.isAssignableFrom(type);
 	}
 
-	private Map<String, Class<?>> getIdTypesMap(String entityName) {
+	private Map<String, Class<?>> getIdTypesMap(EntityResolver entityResolver,
+			String entityName) {
 
 		Map<String, Class<?>> typesMap = idTypesMap.get(entityName);
 
@@ -0,0 +1,417 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.access.Transaction;
+import org.apache.cayenne.configuration.ObjectContextFactory;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.xstream.ParallelDeserializationException.ChunkFailure;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.copy.HierarchicalStreamCopier;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+
+/**
+ * Splits a document with multiple root objects into chunks of roots and
+ * deserializes them on a pool of worker threads, each with its own
+ * ObjectContext. With atomic chunks, workers commit each chunk in its own
+ * transaction. Otherwise workers only build objects, and all their contexts
+ * are committed at the end on the calling thread in a single transaction.
+ */
+class ParallelDeserialization {
+
+	private static final Chunk END = new Chunk(-1, -1);
+
+	// how often a blocked splitter checks whether workers are still alive
+	private static final long PUT_TIMEOUT_MS = 100;
+
+	private XStreamDeserializer deserializer;
+	private ObjectContextFactory contextFactory;
+	private Subgraph<?> subgraph;
+
+	private BlockingQueue<Chunk> chunks;
+	private List<ChunkFailure> failures;
+	private AtomicInteger committedRoots;
+	private List<Future<List<ObjectContext>>> workers;
+
+	ParallelDeserialization(XStreamDeserializer deserializer, ObjectContextFactory contextFactory,
+			Subgraph<?> subgraph) {
+
+		if (deserializer.getParallelism() <= 0) {
+			throw new IllegalArgumentException("Invalid parallelism: " + deserializer.getParallelism());
+		}
+
+		if (deserializer.getChunkSize() <= 0) {
+			throw new IllegalArgumentException("Invalid chunk size: " + deserializer.getChunkSize());
+		}
+
+		this.deserializer = deserializer;
+		this.contextFactory = contextFactory;
+		this.subgraph = subgraph;
+
+		// allow the splitter to get a little ahead of the workers, but not too
+		// much to keep memory use in check
+		this.chunks = new ArrayBlockingQueue<Chunk>(deserializer.getParallelism());
+		this.failures = Collections.synchronizedList(new ArrayList<ChunkFailure>());
+		this.committedRoots = new AtomicInteger();
+	}
+
+	int run(Reader in) {
+
+		int parallelism = deserializer.getParallelism();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+
+		workers = new ArrayList<Future<List<ObjectContext>>>(parallelism);
+		RuntimeException splitFailure = null;
+
+		try {
+			for (int i = 0; i < parallelism; i++) {
+				workers.add(executor.submit(new Worker()));
+			}
+
+			try {
+				split(in);
+			} catch (RuntimeException e) {
+				splitFailure = e;
+			} finally {
+				for (int i = 0; i < parallelism; i++) {
+					if (!put(END)) {
+						break;
+					}
+				}
+			}
+
+			// wait for all the workers, even if some of them died, so that
+			// none is left running
+			List<ObjectContext> contexts = new ArrayList<ObjectContext>();
+			Throwable workerFailure = null;
+			for (Future<List<ObjectContext>> worker : workers) {
+				try {
+					List<ObjectContext> workerContexts = worker.get();
+					if (workerContexts != null) {
+						contexts.addAll(workerContexts);
+					}
+				} catch (ExecutionException e) {
+					if (workerFailure == null) {
+						workerFailure = e.getCause();
+					}
+				} catch (InterruptedException e) {
+					throw new CayenneRuntimeException("Interrupted", e);
+				}
+			}
+
+			if (workerFailure != null) {
+				throw new CayenneRuntimeException("Worker failed", workerFailure);
+			}
+
+			// contexts are only returned in the all-or-nothing mode, and are
+			// discarded uncommitted if anything failed
+			if (!contexts.isEmpty() && splitFailure == null && failures.isEmpty()) {
+				commit(contexts);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (splitFailure != null) {
+			throw new CayenneRuntimeException("Error reading document", splitFailure);
+		}
+
+		if (!failures.isEmpty()) {
+			List<ChunkFailure> sorted = new ArrayList<ChunkFailure>(failures);
+			Collections.sort(sorted, new Comparator<ChunkFailure>() {
+				public int compare(ChunkFailure f1, ChunkFailure f2) {
+					return f1.getChunkIndex() - f2.getChunkIndex();
+				}
+			});
+
+			throw new ParallelDeserializationException(sorted.size() + " chunk(s) failed to deserialize, first failed "
+					+ sorted.get(0), sorted);
+		}
+
+		return committedRoots.get();
+	}
+
+	/**
+	 * Reads root objects from the document and copies them to chunks. Stops
+	 * early if no worker is left to take the chunks.
+	 */
+	private void split(Reader in) {
+
+		HierarchicalStreamReader reader = new XppDriver().createReader(in);
+		HierarchicalStreamCopier copier = new HierarchicalStreamCopier();
+
+		int chunkSize = deserializer.getChunkSize();
+		int chunkIndex = 0;
+		int rootIndex = 0;
+
+		try {
+			while (reader.hasMoreChildren()) {
+
+				// stop splitting if there's no way to commit anything
+				if (!deserializer.isAtomicChunks() && !failures.isEmpty()) {
+					return;
+				}
+
+				Chunk chunk = new Chunk(chunkIndex++, rootIndex);
+				StringWriter buffer = new StringWriter();
+				CompactWriter writer = new CompactWriter(buffer);
+				writer.startNode(XStreamDeserializer.ROOTS_NODE);
+
+				while (chunk.rootCount < chunkSize && reader.hasMoreChildren()) {
+					reader.moveDown();
+
+					if (!XStreamDeserializer.WATERMARK_NODE.equals(reader.getNodeName())) {
+						copier.copy(reader, writer);
+						chunk.rootCount++;
+					}
+
+					reader.moveUp();
+				}
+
+				writer.endNode();
+				writer.flush();
+
+				chunk.xml = buffer.toString();
+				rootIndex += chunk.rootCount;
+
+				if (!put(chunk)) {
+					return;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Queues a chunk, waiting for a free slot as long as any worker is alive.
+	 * Returns false if all the workers are gone.
+	 */
+	private boolean put(Chunk chunk) {
+		try {
+			while (!chunks.offer(chunk, PUT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				if (allDone(workers)) {
+					return false;
+				}
+			}
+
+			return true;
+		} catch (InterruptedException e) {
+			throw new CayenneRuntimeException("Interrupted", e);
+		}
+	}
+
+	private static boolean allDone(List<? extends Future<?>> futures) {
+		for (Future<?> future : futures) {
+			if (!future.isDone()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Commits the contexts of all the workers in a single transaction on the
+	 * calling thread. Worker contexts are no longer used by the workers, so
+	 * they can be handed over to this thread.
+	 */
+	private void commit(List<ObjectContext> contexts) {
+
+		Transaction tx = createTransaction(contexts.get(0));
+		Transaction.bindThreadTransaction(tx);
+
+		try {
+			for (ObjectContext context : contexts) {
+				context.commitChanges();
+			}
+
+			tx.commit();
+		} catch (Exception e) {
+			tx.setRollbackOnly();
+			throw new CayenneRuntimeException("Error committing deserialized chunks", e);
+		} finally {
+			Transaction.bindThreadTransaction(null);
+
+			if (tx.getStatus() == Transaction.STATUS_MARKED_ROLLEDBACK) {
+				try {
+					tx.rollback();
+				} catch (Exception rollbackEx) {
+				}
+			}
+		}
+	}
+
+	private Transaction createTransaction(ObjectContext context) {
+		return ((DataContext) context).getParentDataDomain().createTransaction();
+	}
+
+	/**
+	 * Deserializes roots of the chunk into the context, and commits them
+	 * unless the commit is deferred.
+	 */
+	private int deserializeChunk(ObjectContext context, Chunk chunk, boolean committing) {
+		XStream xstream = deserializer.getXStream(subgraph);
+		DeserializationState state = deserializer.createState(context, subgraph);
+
+		// intermediate commits would bypass the deferred transaction
+		if (!committing) {
+			state.commitCountThreshold = 0;
+		}
+
+		DataHolder dataHolder = PersistentDeserializeConverter.newDataHolder(xstream, state);
+
+		HierarchicalStreamReader reader = new XppDriver().createReader(new StringReader(chunk.xml));
+		try {
+			int count = deserializer.unmarshalRoots(xstream, dataHolder, reader);
+
+			if (committing) {
+				context.commitChanges();
+			}
+
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+
+	static class Chunk {
+
+		int index;
+		int firstRootIndex;
+		int rootCount;
+		String xml;
+
+		Chunk(int index, int firstRootIndex) {
+			this.index = index;
+			this.firstRootIndex = firstRootIndex;
+		}
+	}
+
+	/**
+	 * A worker that takes chunks from the queue until it gets the END marker.
+	 * With atomic chunks, each chunk is committed in its own transaction,
+	 * otherwise all chunks of the worker are deserialized into a single
+	 * context that is returned uncommitted. Failures of context or
+	 * transaction creation are reported as failures of the chunk, so a worker
+	 * keeps draining the queue till the end.
+	 */
+	class Worker implements Callable<List<ObjectContext>> {
+
+		public List<ObjectContext> call() throws Exception {
+			return deserializer.isAtomicChunks() ? processAtomicChunks() : processChunks();
+		}
+
+		private List<ObjectContext> processAtomicChunks() throws InterruptedException {
+
+			Chunk chunk;
+			while ((chunk = chunks.take()) != END) {
+
+				Transaction tx = null;
+
+				try {
+
+					// each chunk gets a fresh context, so that a failed chunk
+					// doesn't leave stale objects behind
+					ObjectContext context = contextFactory.createContext();
+					tx = createTransaction(context);
+					Transaction.bindThreadTransaction(tx);
+
+					deserializeChunk(context, chunk, true);
+					tx.commit();
+					committedRoots.addAndGet(chunk.rootCount);
+				} catch (Throwable th) {
+					if (tx != null) {
+						tx.setRollbackOnly();
+					}
+
+					failures.add(new ChunkFailure(chunk.index, chunk.firstRootIndex, chunk.rootCount, th));
+				} finally {
+					Transaction.bindThreadTransaction(null);
+
+					if (tx != null && tx.getStatus() == Transaction.STATUS_MARKED_ROLLEDBACK) {
+						try {
+							tx.rollback();
+						} catch (Exception rollbackEx) {
+						}
+					}
+				}
+			}
+
+			return null;
+		}
+
+		private List<ObjectContext> processChunks() throws InterruptedException {
+
+			ObjectContext context = null;
+			int roots = 0;
+
+			Chunk chunk;
+			while ((chunk = chunks.take()) != END) {
+
+				// once anything fails, nothing will be committed, so just
+				// drain the queue
+				if (!failures.isEmpty()) {
+					continue;
+				}
+
+				try {
+					if (context == null) {
+						context = contextFactory.createContext();
+					}
+
+					roots += deserializeChunk(context, chunk, false);
+				} catch (Throwable th) {
+					failures.add(new ChunkFailure(chunk.index, chunk.firstRootIndex, chunk.rootCount, th));
+				}
+			}
+
+			if (context == null) {
+				return null;
+			}
+
+			committedRoots.addAndGet(roots);
+			return Collections.singletonList(context);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cayenne.CayenneRuntimeException;
+
+/**
+ * An exception thrown by parallel deserialization, that lists failed chunks
+ * of root objects ordered by their position in the document.
+ */
+public class ParallelDeserializationException extends CayenneRuntimeException {
+
+	private static final long serialVersionUID = 2887530187237466339L;
+
+	private List<ChunkFailure> failures;
+
+	ParallelDeserializationException(String message, List<ChunkFailure> failures) {
+		super(message, failures.isEmpty() ? null : failures.get(0).getCause());
+		this.failures = Collections.unmodifiableList(failures);
+	}
+
+	public List<ChunkFailure> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Describes a chunk of root objects that failed to deserialize.
+	 */
+	public static class ChunkFailure {
+
+		private int chunkIndex;
+		private int firstRootIndex;
+		private int rootCount;
+		private Throwable cause;
+
+		ChunkFailure(int chunkIndex, int firstRootIndex, int rootCount, Throwable cause) {
+			this.chunkIndex = chunkIndex;
+			this.firstRootIndex = firstRootIndex;
+			this.rootCount = rootCount;
+			this.cause = cause;
+		}
+
+		/**
+		 * Returns a zero-based index of the chunk in the document.
+		 */
+		public int getChunkIndex() {
+			return chunkIndex;
+		}
+
+		/**
+		 * Returns a zero-based index of the first root object of the chunk in
+		 * the document.
+		 */
+		public int getFirstRootIndex() {
+			return firstRootIndex;
+		}
+
+		public int getRootCount() {
+			return rootCount;
+		}
+
+		public Throwable getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return "chunk " + chunkIndex + " (roots " + firstRootIndex + ".." + (firstRootIndex + rootCount - 1) + "): "
+					+ cause;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+import com.thoughtworks.xstream.io.xml.XppReader;
+
+/**
+ * A list of the part files of a split export, written by
+ * {@link XStreamSerializer#serializeParts(org.apache.cayenne.ObjectContext, org.apache.cayenne.query.Query, org.apache.cayenne.serialization.Subgraph, File, String)}
+ * next to the parts. Each part is a complete document with its own root
+ * objects, so importers can process parts in parallel, and retry a single part
+ * after a failure.
+ * <p>
+ * The manifest is read and written element by element rather than with
+ * general purpose XStream unmarshalling, so that reading a manifest never
+ * instantiates classes named in the file.
+ */
+public class PartManifest {
+
+	static final String MANIFEST_NODE = "manifest";
+	static final String PART_NODE = "part";
+	static final String MIN_ID_NODE = "minId";
+	static final String MAX_ID_NODE = "maxId";
+
+	// names of the supported PK value types, same as XStream aliases
+	private static final Map<String, Class<?>> ID_TYPES;
+	private static final Map<Class<?>, String> ID_TYPE_NAMES;
+
+	static {
+		ID_TYPES = new HashMap<String, Class<?>>();
+		ID_TYPES.put("int", Integer.class);
+		ID_TYPES.put("long", Long.class);
+		ID_TYPES.put("short", Short.class);
+		ID_TYPES.put("byte", Byte.class);
+		ID_TYPES.put("big-int", BigInteger.class);
+		ID_TYPES.put("big-decimal", BigDecimal.class);
+		ID_TYPES.put("string", String.class);
+
+		ID_TYPE_NAMES = new HashMap<Class<?>, String>();
+		for (Map.Entry<String, Class<?>> entry : ID_TYPES.entrySet()) {
+			ID_TYPE_NAMES.put(entry.getValue(), entry.getKey());
+		}
+	}
+
+	private List<Part> parts = new ArrayList<Part>();
+
+	/**
+	 * Reads a manifest from a file.
+	 */
+	public static PartManifest read(File file) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			return read(new XppReader(in));
+		} catch (StreamException e) {
+			IOException ioe = new IOException("Error reading manifest " + file);
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			in.close();
+		}
+	}
+
+	static PartManifest read(HierarchicalStreamReader reader) throws IOException {
+
+		if (!MANIFEST_NODE.equals(reader.getNodeName())) {
+			throw new IOException("Not a part manifest: " + reader.getNodeName());
+		}
+
+		PartManifest manifest = new PartManifest();
+
+		while (reader.hasMoreChildren()) {
+			reader.moveDown();
+
+			if (PART_NODE.equals(reader.getNodeName())) {
+				String file = reader.getAttribute("file");
+				if (file == null) {
+					throw new IOException("Part has no file");
+				}
+
+				int rootCount;
+				long sizeInBytes;
+				try {
+					rootCount = Integer.parseInt(reader.getAttribute("rootCount"));
+					sizeInBytes = Long.parseLong(reader.getAttribute("sizeInBytes"));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid part " + file + ": " + e.getMessage());
+				}
+
+				Object minId = null;
+				Object maxId = null;
+				while (reader.hasMoreChildren()) {
+					reader.moveDown();
+
+					if (MIN_ID_NODE.equals(reader.getNodeName())) {
+						minId = readId(reader);
+					} else if (MAX_ID_NODE.equals(reader.getNodeName())) {
+						maxId = readId(reader);
+					}
+
+					reader.moveUp();
+				}
+
+				manifest.addPart(file, rootCount, sizeInBytes, minId, maxId);
+			}
+
+			reader.moveUp();
+		}
+
+		return manifest;
+	}
+
+	private static Object readId(HierarchicalStreamReader reader) throws IOException {
+
+		String typeName = reader.getAttribute("class");
+		Class<?> type = ID_TYPES.get(typeName);
+		if (type == null) {
+			throw new IOException("Unsupported id type: " + typeName);
+		}
+
+		String value = reader.getValue();
+		try {
+			if (type == String.class) {
+				return value;
+			} else if (type == Integer.class) {
+				return Integer.valueOf(value);
+			} else if (type == Long.class) {
+				return Long.valueOf(value);
+			} else if (type == Short.class) {
+				return Short.valueOf(value);
+			} else if (type == Byte.class) {
+				return Byte.valueOf(value);
+			} else if (type == BigInteger.class) {
+				return new BigInteger(value);
+			} else {
+				return new BigDecimal(value);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid " + typeName + " id: " + value);
+		}
+	}
+
+	/**
+	 * Writes the manifest to a file.
+	 */
+	public void write(File file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			write(new PrettyPrintWriter(out));
+		} finally {
+			out.close();
+		}
+	}
+
+	void write(HierarchicalStreamWriter writer) {
+
+		writer.startNode(MANIFEST_NODE);
+
+		for (Part part : getParts()) {
+			writer.startNode(PART_NODE);
+			writer.addAttribute("file", part.getFile());
+			writer.addAttribute("rootCount", String.valueOf(part.getRootCount()));
+			writer.addAttribute("sizeInBytes", String.valueOf(part.getSizeInBytes()));
+			writeId(writer, MIN_ID_NODE, part.getMinId());
+			writeId(writer, MAX_ID_NODE, part.getMaxId());
+			writer.endNode();
+		}
+
+		writer.endNode();
+		writer.flush();
+	}
+
+	private static void writeId(HierarchicalStreamWriter writer, String name, Object id) {
+
+		String typeName = id != null ? ID_TYPE_NAMES.get(id.getClass()) : null;
+		if (typeName == null) {
+			return;
+		}
+
+		writer.startNode(name);
+		writer.addAttribute("class", typeName);
+		writer.setValue(id.toString());
+		writer.endNode();
+	}
+
+	void addPart(String file, int rootCount, long sizeInBytes, Object minId, Object maxId) {
+		parts.add(new Part(file, rootCount, sizeInBytes, minId, maxId));
+	}
+
+	/**
+	 * Returns the parts in the order they were written.
+	 */
+	public List<Part> getParts() {
+		return Collections.unmodifiableList(parts);
+	}
+
+	/**
+	 * Returns the number of root objects in all parts.
+	 */
+	public int getRootCount() {
+		int count = 0;
+		for (Part part : getParts()) {
+			count += part.getRootCount();
+		}
+
+		return count;
+	}
+
+	/**
+	 * A part file of a split export.
+	 */
+	public static class Part {
+
+		private String file;
+		private int rootCount;
+		private long sizeInBytes;
+		private Object minId;
+		private Object maxId;
+
+		Part(String file, int rootCount, long sizeInBytes, Object minId, Object maxId) {
+			this.file = file;
+			this.rootCount = rootCount;
+			this.sizeInBytes = sizeInBytes;
+			this.minId = minId;
+			this.maxId = maxId;
+		}
+
+		/**
+		 * Returns the file name of the part, relative to the manifest
+		 * directory.
+		 */
+		public String getFile() {
+			return file;
+		}
+
+		public int getRootCount() {
+			return rootCount;
+		}
+
+		/**
+		 * Returns the file size of the part, which is the compressed size if
+		 * the export was gzipped.
+		 */
+		public long getSizeInBytes() {
+			return sizeInBytes;
+		}
+
+		/**
+		 * Returns the smallest PK value of the part roots, or null if the root
+		 * entity has a compound PK, or a PK that is neither a number nor a
+		 * string.
+		 */
+		public Object getMinId() {
+			return minId;
+		}
+
+		/**
+		 * Returns the greatest PK value of the part roots, or null if the root
+		 * entity has a compound PK, or a PK that is neither a number nor a
+		 * string.
+		 */
+		public Object getMaxId() {
+			return maxId;
+		}
+	}
+}
@@ -18,39 +18,61 @@
  ****************************************************************/
 package org.apache.cayenne.serialization.xstream;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.cayenne.Cayenne;
+import org.apache.cayenne.CayenneRuntimeException;
 import org.apache.cayenne.ObjectContext;
 import org.apache.cayenne.ObjectId;
 import org.apache.cayenne.Persistent;
+import org.apache.cayenne.access.DataContext;
 import org.apache.cayenne.reflect.ArcProperty;
 import org.apache.cayenne.reflect.AttributeProperty;
 import org.apache.cayenne.reflect.ClassDescriptor;
 import org.apache.cayenne.reflect.Property;
 import org.apache.cayenne.reflect.ToManyProperty;
 import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.cayenne.serialization.xstream.DeserializationState.NewObject;
 
+import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.DataHolder;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 
+/**
+ * A stateless converter of persistent objects. Per-run state is taken from the
+ * {@link DeserializationState} stored in the unmarshalling context.
+ */
 class PersistentDeserializeConverter implements Converter {
 
-	private static final String STACK_KEY = PersistentDeserializeConverter.class
-			.getName()
-			+ "_STACK";
+	private static final String STATE_KEY = DeserializationState.class
+			.getName();
+
+	/**
+	 * Creates a DataHolder to pass to XStream unmarshal methods. Runs that
+	 * share the holder share the state, so commit batches may span multiple
+	 * root objects.
+	 */
+	static DataHolder newDataHolder(XStream xstream, DeserializationState state) {
+		DataHolder dataHolder = xstream.newDataHolder();
+		dataHolder.put(STATE_KEY, state);
+		return dataHolder;
+	}
 
-	private ObjectContext objectContext;
-	private int commitCountThreshold;
-	private SubgraphNode rootNode;
+	static DeserializationState getState(UnmarshallingContext context) {
+		DeserializationState state = (DeserializationState) context
+				.get(STATE_KEY);
 
-	public PersistentDeserializeConverter(SubgraphNode rootNode,
-			ObjectContext objectContext, int commitCountThreshold) {
+		if (state == null) {
+			throw new IllegalStateException(
+					"No deserialization state in the context");
+		}
 
-		this.rootNode = rootNode;
-		this.objectContext = objectContext;
-		this.commitCountThreshold = commitCountThreshold;
+		return state;
 	}
 
 	@SuppressWarnings("all")
@@ -69,21 +91,69 @@ class PersistentDeserializeConverter implements Converter {
 		String ref = reader.getAttribute(Attributes.ref.name());
 		if ("true".equals(ref)) {
 			return deserializeExisting(reader, context);
-		} else {
-			return deserializeNew(reader, context);
 		}
+
+		String idref = reader.getAttribute(Attributes.idref.name());
+		if (idref != null) {
+			return deserializeShared(context, idref);
+		}
+
+		return deserializeNew(reader, context);
+	}
+
+	/**
+	 * Connects an object deserialized earlier under the same root to the
+	 * current parent.
+	 */
+	private Object deserializeShared(UnmarshallingContext context, String idref) {
+
+		DeserializationState state = getState(context);
+		Object object = sharedObject(state, idref);
+		if (object == null) {
+			throw new CayenneRuntimeException("Unknown object id: " + idref);
+		}
+
+		DeserializerStack stack = state.stack;
+		DeserializerStack.connect(stack.peekNode(), stack.peekObject(), object);
+		return object;
+	}
+
+	/**
+	 * Returns an object deserialized under the current root with the local id,
+	 * or null if there's no such object.
+	 */
+	private Object sharedObject(DeserializationState state, String id) {
+
+		Persistent object = (Persistent) state.sharedObjects.get(id);
+
+		// the object may have been committed and evicted from the context
+		// since it was read
+		if (object != null && object.getObjectContext() != state.objectContext) {
+			object = (Persistent) Cayenne.objectForPK(state.objectContext, object.getObjectId());
+			state.sharedObjects.put(id, object);
+		}
+
+		return object;
 	}
 
 	private Object deserializeExisting(HierarchicalStreamReader reader,
 			UnmarshallingContext context) {
 
 		ObjectId id = (ObjectId) context.convertAnother(null, ObjectId.class);
+		DeserializationState state = getState(context);
+		ReferenceResolver referenceResolver = state.referenceResolver;
+		DeserializerStack stack = state.stack;
+
+		// postpone resolving references of other objects till the batch is
+		// full
+		if (referenceResolver != null && !stack.isEmpty()) {
+			referenceResolver.addReference(stack.peekNode(), stack
+					.peekObject(), id);
+			return null;
+		}
 
-		Object object = Cayenne.objectForPK(objectContext, id);
-		// TODO: handle deleted objects that no longer exist...
-
+		Object object = state.referenceLookup.lookup(id);
 		if (object != null) {
-			DeserializerStack stack = getStack(context);
 			stack.pushObject(object);
 			stack.popObject();
 		}
@@ -94,14 +164,32 @@ class PersistentDeserializeConverter implements Converter {
 	private Object deserializeNew(HierarchicalStreamReader reader,
 			UnmarshallingContext context) {
 
+		DeserializationState state = getState(context);
+		ObjectContext objectContext = state.objectContext;
+		DeserializerStack stack = state.stack;
+
 		String entityName = reader.getNodeName();
 		ClassDescriptor descriptor = objectContext.getEntityResolver()
 				.getClassDescriptor(entityName);
 
-		DeserializerStack stack = getStack(context);
+		// an object shared between subgraph nodes is written in full under
+		// each node, and properties of all nodes are read into one object
+		String id = reader.getAttribute(Attributes.id.name());
+		Object object = id != null ? sharedObject(state, id) : null;
+
+		if (object == null) {
+			object = descriptor.createObject();
+			objectContext.registerNewObject(object);
 
-		Object object = descriptor.createObject();
-		objectContext.registerNewObject(object);
+			if (state.newObjects != null) {
+				state.newObjects.add(new NewObject(stack.peekNode(),
+						(Persistent) object));
+			}
+
+			if (id != null) {
+				state.sharedObjects.put(id, object);
+			}
+		}
 
 		stack.pushObject(object);
 
@@ -133,14 +221,76 @@ class PersistentDeserializeConverter implements Converter {
 		}
 
 		int count = stack.popObject();
+		boolean commit = state.commitCountThreshold > 0
+				&& count % state.commitCountThreshold == 0;
+
+		// references must be connected before commit, and before returning
+		// the root object
+		if (state.referenceResolver != null && (commit || stack.isEmpty())) {
+			state.referenceResolver.resolvePending();
+		}
 
-		if (commitCountThreshold > 0 && count % commitCountThreshold == 0) {
+		if (commit) {
 			objectContext.commitChanges();
+
+			if (state.newObjects != null) {
+				evictCommittedObjects(state);
+			}
+		}
+
+		// ids are local to a root object
+		if (stack.isEmpty()) {
+			state.sharedObjects.clear();
 		}
 
 		return object;
 	}
 
+	/**
+	 * Unregisters committed objects that are no longer on the stack, and
+	 * makes sure that the objects remaining in the context do not reference
+	 * them.
+	 */
+	private void evictCommittedObjects(DeserializationState state) {
+
+		DeserializerStack stack = state.stack;
+		List<Persistent> evicted = new ArrayList<Persistent>(state.newObjects
+				.size());
+		List<NewObject> retained = new ArrayList<NewObject>();
+
+		for (NewObject newObject : state.newObjects) {
+			if (stack.containsObject(newObject.object)) {
+				retained.add(newObject);
+				continue;
+			}
+
+			evicted.add(newObject.object);
+
+			// to-one targets (e.g. references) stay in the context, and their
+			// reverse to-many lists still contain the evicted object
+			for (SubgraphNode child : newObject.node.getChildren()) {
+				ArcProperty arc = child.getIncomingProperty();
+				if (arc.getRelationship().isToMany()) {
+					continue;
+				}
+
+				ArcProperty reverse = arc.getComplimentaryReverseArc();
+				if (reverse != null) {
+					Object target = arc.readPropertyDirectly(newObject.object);
+					if (target instanceof Persistent) {
+						reverse.invalidate(target);
+					}
+				}
+			}
+		}
+
+		stack.invalidateRelationships();
+		((DataContext) state.objectContext).getObjectStore()
+				.objectsUnregistered(evicted);
+
+		state.newObjects = retained;
+	}
+
 	private void deserializeAttribute(HierarchicalStreamReader reader,
 			UnmarshallingContext context, Object parentObject,
 			AttributeProperty property) {
@@ -176,15 +326,4 @@ class PersistentDeserializeConverter implements Converter {
 			reader.moveUp();
 		}
 	}
-
-	private DeserializerStack getStack(UnmarshallingContext context) {
-		DeserializerStack stack = (DeserializerStack) context.get(STACK_KEY);
-
-		if (stack == null) {
-			stack = new DeserializerStack(rootNode);
-			context.put(STACK_KEY, stack);
-		}
-
-		return stack;
-	}
 }
@@ -18,106 +18,276 @@
  ****************************************************************/
 package org.apache.cayenne.serialization.xstream;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.cayenne.Cayenne;
 import org.apache.cayenne.CayenneRuntimeException;
-import org.apache.cayenne.DataObject;
 import org.apache.cayenne.DataRow;
-import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.Fault;
+import org.apache.cayenne.ObjectId;
 import org.apache.cayenne.Persistent;
-import org.apache.cayenne.access.DataContext;
 import org.apache.cayenne.ResultIterator;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.map.DbAttribute;
+import org.apache.cayenne.map.DbRelationship;
+import org.apache.cayenne.map.ObjAttribute;
+import org.apache.cayenne.map.ObjEntity;
+import org.apache.cayenne.query.ObjectIdQuery;
 import org.apache.cayenne.query.Query;
 import org.apache.cayenne.query.RelationshipQuery;
+import org.apache.cayenne.query.SelectQuery;
 import org.apache.cayenne.reflect.ArcProperty;
 import org.apache.cayenne.reflect.AttributeProperty;
-import org.apache.cayenne.reflect.PropertyDescriptor;
+import org.apache.cayenne.reflect.Property;
+import org.apache.cayenne.serialization.BatchSerializationCallback;
+import org.apache.cayenne.serialization.FragmentCache;
+import org.apache.cayenne.serialization.ResultObjectIterator;
 import org.apache.cayenne.serialization.SerializationCallback;
 import org.apache.cayenne.serialization.Subgraph;
 import org.apache.cayenne.serialization.SubgraphNode;
 
+import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.DataHolder;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
-import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
 
+/**
+ * A stateless converter of persistent objects. Per-run state is taken from the
+ * {@link SerializationState} stored in the marshalling context, so a single
+ * instance can be shared between runs and threads. When serializing DataRows,
+ * objects below the root are DataRows fetched by the converter.
+ */
 class PersistentSerializeConverter implements Converter {
 
-	private static final String STACK_KEY = PersistentSerializeConverter.class.getName() + "_STACK";
+	private static final String STATE_KEY = SerializationState.class.getName();
+
+	/**
+	 * Creates a DataHolder to pass to XStream marshal methods. Runs that share
+	 * the holder share the state.
+	 */
+	static DataHolder newDataHolder(XStream xstream, SerializationState state) {
+		DataHolder dataHolder = xstream.newDataHolder();
+		dataHolder.put(STATE_KEY, state);
+		return dataHolder;
+	}
+
+	static SerializationState getState(DataHolder context) {
+		SerializationState state = (SerializationState) context.get(STATE_KEY);
+
+		if (state == null) {
+			throw new IllegalStateException("No serialization state in the context");
+		}
+
+		return state;
+	}
+
+	/**
+	 * Returns an ObjectId of a persistent object or a DataRow of the node. An
+	 * ObjectId is returned as is.
+	 */
+	static ObjectId objectId(Object object, SubgraphNode node) {
+
+		if (object instanceof ObjectId) {
+			return (ObjectId) object;
+		}
+
+		if (object instanceof Persistent) {
+			return ((Persistent) object).getObjectId();
+		}
+
+		DataRow row = (DataRow) object;
+		ObjEntity entity = node.getClassDescriptor().getEntity();
+		String entityName = row.getEntityName() != null ? row.getEntityName() : entity.getName();
+		Collection<DbAttribute> pks = entity.getDbEntity().getPrimaryKeys();
+
+		// most ids have a single column, so avoid creating a map for them
+		if (pks.size() == 1) {
+			String pk = pks.iterator().next().getName();
+			return new ObjectId(entityName, pk, row.get(pk));
+		}
 
-	private Subgraph<?> subgraph;
-	private int statementFetchSize;
+		Map<String, Object> id = new HashMap<String, Object>();
+		for (DbAttribute pk : pks) {
+			id.put(pk.getName(), row.get(pk.getName()));
+		}
 
-	public PersistentSerializeConverter(Subgraph<?> subgraph, int statementFetchSize) {
-		this.subgraph = subgraph;
-		this.statementFetchSize = statementFetchSize;
+		return new ObjectId(entityName, id);
 	}
 
 	public void marshal(Object object, HierarchicalStreamWriter writer, MarshallingContext context) {
 
-		if (subgraph.getRootNode().isSerializedByReference()) {
-			Persistent persistent = (Persistent) object;
-			((PrettyPrintWriter)writer).addAttribute(Attributes.ref.name(), "true");
-			for (Map.Entry<String, Object> entry : persistent.getObjectId().getIdSnapshot().entrySet()) {
+		SerializationState state = getState(context);
+		SerializerStack serializerContext = state.stack;
+		SubgraphNode node = serializerContext.peekNode();
+
+		if (object instanceof Persistent && state.dataContext == null) {
+			state.dataContext = (DataContext) ((Persistent) object).getObjectContext();
+		}
+
+		if (serializerContext.getRootNode().isSerializedByReference()) {
+			writer.addAttribute(Attributes.ref.name(), "true");
+			for (Map.Entry<String, Object> entry : objectId(object, node).getIdSnapshot().entrySet()) {
 
 				writer.startNode(entry.getKey());
 				context.convertAnother(entry.getValue());
 				writer.endNode();
 			}
+		} else if (node.getIncomingProperty() != null && node.getFragmentCache() != null
+				&& state.sharedObjects == null && !state.trackingWatermark
+				&& writer.underlyingWriter() instanceof CompactUtf8Writer) {
+			marshalCached(object, node, writer, context);
 		} else {
-			SerializerStack serializerContext = getStack(context);
+			marshalObject(object, node, writer, context);
+		}
+	}
 
-			SubgraphNode node = serializerContext.peekNode();
+	/**
+	 * Writes a cached fragment of the object, or marshals the object and caches
+	 * the bytes written. Fragments are only used with the compact UTF-8
+	 * writer, and not when shared objects are written as back-references, as
+	 * the ids are local to a root, nor in delta exports, as watermarks of the
+	 * cached objects would be missed.
+	 */
+	private void marshalCached(Object object, SubgraphNode node, HierarchicalStreamWriter writer, MarshallingContext context) {
+
+		CompactUtf8Writer fragmentWriter = (CompactUtf8Writer) writer.underlyingWriter();
+		FragmentCache cache = node.getFragmentCache();
+		ObjectId id = objectId(object, node);
+		Object version = version(object, node, cache);
+
+		byte[] fragment = cache.get(id, version);
+		if (fragment != null) {
+			fragmentWriter.writeFragment(fragment);
+			return;
+		}
 
-			// don't generate tags for the root node, as they are generated via the
-			// 'alias' mechanism
-			if (node.getIncomingProperty() != null) {
-				Persistent persistent = (Persistent) object;
-				writer.startNode(persistent.getObjectId().getEntityName());
-			}
+		int mark = fragmentWriter.startFragment();
+		marshalObject(object, node, writer, context);
+		cache.put(id, version, fragmentWriter.endFragment(mark));
+	}
+
+	/**
+	 * Returns the value of the cache version property of the object, or null
+	 * if the cache has no version property.
+	 */
+	private static Object version(Object object, SubgraphNode node, FragmentCache cache) {
+
+		String name = cache.getVersionProperty();
+		if (name == null) {
+			return null;
+		}
+
+		Property property = node.getClassDescriptor().getProperty(name);
+		if (!(property instanceof AttributeProperty)) {
+			throw new CayenneRuntimeException("Invalid version property '" + name + "' of "
+					+ node.getClassDescriptor().getEntity().getName());
+		}
+
+		return readAttribute(object, (AttributeProperty) property);
+	}
+
+	/**
+	 * Reads an attribute of a persistent object or a DataRow.
+	 */
+	static Object readAttribute(Object object, AttributeProperty property) {
+
+		if (!(object instanceof DataRow)) {
+			return property.readProperty(object);
+		}
+
+		ObjAttribute attribute = property.getAttribute();
+		if (attribute.isFlattened()) {
+			throw new CayenneRuntimeException("Flattened attribute '" + attribute.getName()
+					+ "' can't be serialized from a DataRow");
+		}
+
+		Object value = ((DataRow) object).get(attribute.getDbAttributeName());
+
+		// DataRows of projected queries have JDBC types, e.g. java.sql.Date,
+		// which XStream writes differently
+		if (value instanceof Date && attribute.getJavaClass() == Date.class && value.getClass() != Date.class) {
+			value = new Date(((Date) value).getTime());
+		}
+
+		return value;
+	}
+
+	private void marshalObject(Object object, SubgraphNode node, HierarchicalStreamWriter writer, MarshallingContext context) {
+
+		SerializationState state = getState(context);
+		SerializerStack serializerContext = state.stack;
+
+		SharedObjects sharedObjects = state.sharedObjects;
 
-			for (AttributeProperty property : node.getAttributeProperties()) {
-				marshalAttribute(object, property, writer, context);
+		// don't generate tags for the root node, as they are generated via the
+		// 'alias' mechanism
+		if (node.getIncomingProperty() != null) {
+			ObjectId id = objectId(object, node);
+			writer.startNode(id.getEntityName());
+
+			// an object already written under the same node is only
+			// referenced
+			if (sharedObjects != null && !sharedObjects.writeId(writer, id, node)) {
+				writer.endNode();
+				return;
 			}
+		} else if (sharedObjects != null) {
+			sharedObjects.clear();
+			sharedObjects.writeId(writer, objectId(object, node), node);
+		}
 
-			// marshal specified related entities
-			for (SubgraphNode child : node.getChildren()) {
+		if (state.trackingWatermark && node.getWatermarkAttribute() != null) {
+			state.raiseWatermark(readAttribute(object, (AttributeProperty) node.getClassDescriptor().getProperty(
+					node.getWatermarkAttribute())));
+		}
 
-				serializerContext.pushNode(child);
+		for (AttributeProperty property : node.getAttributeProperties()) {
+			marshalAttribute(object, property, writer, context);
+		}
 
-				Query query = null;
-				for (SerializationCallback callback : child.getSerializationCallbacks()) {
-					query = callback.relationshipQuery(child, object);
-					if (query != null) {
-						break;
-					}
-				}
+		// marshal specified related entities
+		for (SubgraphNode child : node.getChildren()) {
 
-				ArcProperty incoming = child.getIncomingProperty();
-				boolean byReference = child.isSerializedByReference();
+			serializerContext.pushNode(child);
 
-				if (incoming.getRelationship().isToMany()) {
-					marshalToMany(object, incoming, writer, context, byReference, query);
-				} else {
-					marshalToOne(object, incoming, writer, context, byReference, query);
+			Query query = null;
+			for (SerializationCallback callback : child.getSerializationCallbacks()) {
+				query = callback.relationshipQuery(child, object);
+				if (query != null) {
+					break;
 				}
-
-				serializerContext.popNode();
 			}
 
-			if (node.getIncomingProperty() != null) {
-				writer.endNode();
+			ArcProperty incoming = child.getIncomingProperty();
+			boolean byReference = child.isSerializedByReference();
+
+			if (incoming.getRelationship().isToMany()) {
+				marshalToMany(object, node, incoming, writer, context, byReference, query);
+			} else {
+				marshalToOne(object, incoming, writer, context, byReference, query);
 			}
+
+			serializerContext.popNode();
 		}
-	}
 
-	private void marshalAttribute(Object object, PropertyDescriptor property, HierarchicalStreamWriter writer, MarshallingContext context) {
+		if (node.getIncomingProperty() != null) {
+			writer.endNode();
+		}
+	}
 
-		Object value = property.readProperty(object);
+	private void marshalAttribute(Object object, AttributeProperty property, HierarchicalStreamWriter writer, MarshallingContext context) {
 
+		Object value = readAttribute(object, property);
 		if (value != null) {
 			writer.startNode(property.getName());
 			context.convertAnother(value);
@@ -127,13 +297,30 @@ class PersistentSerializeConverter implements Converter {
 
 	private void marshalToOne(Object object, ArcProperty arc, HierarchicalStreamWriter writer, MarshallingContext context, boolean byReference, Query query) {
 
-		Persistent value = null;
+		SerializationState state = getState(context);
+		Object value = null;
 
 		if (query != null) {
-			ObjectContext objectContext = ((Persistent) object).getObjectContext();
-			value = (Persistent) Cayenne.objectForQuery(objectContext, query);
+			if (state.serializingDataRows) {
+				List<?> result = dataContext(object, state).performQuery(query);
+				value = result.isEmpty() ? null : result.get(0);
+			} else {
+				value = Cayenne.objectForQuery(((Persistent) object).getObjectContext(), query);
+			}
+		} else if (object instanceof DataRow) {
+			ObjectId id = targetObjectId((DataRow) object, arc);
+
+			if (id != null && !byReference) {
+				List<?> result = dataContext(object, state).performQuery(
+						new ObjectIdQuery(id, true, ObjectIdQuery.CACHE));
+				value = result.isEmpty() ? null : result.get(0);
+			} else {
+				value = id;
+			}
+		} else if (byReference) {
+			value = targetReference((Persistent) object, arc);
 		} else {
-			value = (Persistent) arc.readProperty(object);
+			value = arc.readProperty(object);
 		}
 
 		// note that we don't even write an empty tag for NULL to-one. This may
@@ -141,61 +328,197 @@ class PersistentSerializeConverter implements Converter {
 		// reference-serialized nodes
 		if (value != null) {
 			writer.startNode(arc.getName());
-			context.convertAnother(byReference ? value.getObjectId() : value);
+			context.convertAnother(byReference ? objectId(value, state.stack.peekNode()) : value);
 			writer.endNode();
 		}
 	}
 
-	private void marshalToMany(Object object, ArcProperty arc, HierarchicalStreamWriter writer, MarshallingContext context, boolean byReference, Query query) {
+	/**
+	 * Returns an ObjectId of the to-one target based on the FK stored in the
+	 * DataRow, or null if the FK is null.
+	 */
+	private ObjectId targetObjectId(DataRow row, ArcProperty arc) {
+
+		DbRelationship dbRelationship = getToPKRelationship(arc);
+		if (dbRelationship == null) {
+			throw new CayenneRuntimeException("To-one relationship '" + arc.getName()
+					+ "' can't be serialized from a DataRow");
+		}
+
+		return row.createTargetObjectId(arc.getTargetDescriptor().getEntity().getName(), dbRelationship);
+	}
+
+	/**
+	 * Returns a to-one target or its ObjectId, without resolving the target if
+	 * it is a fault. In that case the ObjectId is built from the FK in the
+	 * cached snapshot of the source object, falling back to resolving the
+	 * target if there's no snapshot.
+	 */
+	private Object targetReference(Persistent object, ArcProperty arc) {
+
+		Object target = arc.readPropertyDirectly(object);
+		if (!(target instanceof Fault)) {
+			return target;
+		}
+
+		DbRelationship dbRelationship = getToPKRelationship(arc);
+		if (dbRelationship != null) {
+			DataRow snapshot = ((DataContext) object.getObjectContext()).getObjectStore().getSnapshot(
+					object.getObjectId());
+
+			if (snapshot != null) {
+				return snapshot.createTargetObjectId(arc.getTargetDescriptor().getEntity().getName(), dbRelationship);
+			}
+		}
+
+		return arc.readProperty(object);
+	}
+
+	/**
+	 * Returns a DbRelationship of a to-one arc if the FK is in the source
+	 * table, or null for flattened relationships and relationships to
+	 * dependent PKs.
+	 */
+	private static DbRelationship getToPKRelationship(ArcProperty arc) {
+		List<DbRelationship> dbRelationships = arc.getRelationship().getDbRelationships();
+		return dbRelationships.size() == 1 && dbRelationships.get(0).isToPK() ? dbRelationships.get(0) : null;
+	}
+
+	private void marshalToMany(Object object, SubgraphNode parentNode, ArcProperty arc, HierarchicalStreamWriter writer, MarshallingContext context, boolean byReference, Query query) {
 
 		writer.startNode(arc.getName());
 
-		Persistent persistent = (Persistent) object;
+		SerializationState state = getState(context);
+		SubgraphNode node = state.stack.peekNode();
+		ObjectId id = objectId(object, parentNode);
 
-		if (query == null) {
-			RelationshipQuery relationshipQuery = new RelationshipQuery(persistent.getObjectId(), arc.getName());
+		Iterator<?> merged = null;
+		List<Object> prefetched = null;
 
-			// "fetchSize" is absolutely critical to avoid storing the entire
-			// ResultSet in memory.
-			relationshipQuery.setStatementFetchSize(statementFetchSize);
-			query = relationshipQuery;
+		if (query == null) {
+			if (state.mergeJoin != null) {
+				merged = state.mergeJoin.children(node, id);
+			} else {
+				prefetched = state.prefetcher.takePrefetched(node, id);
+			}
 		}
 
-		DataContext dataContext = (DataContext) persistent.getObjectContext();
+		if (merged != null) {
+			marshalTargets(merged, node, context, byReference);
+		} else if (prefetched != null) {
+			marshalTargets(prefetched.iterator(), node, context, byReference);
+		} else {
+
+			if (query == null) {
+
+				// batch callbacks are invoked per parent if it wasn't prefetched
+				for (BatchSerializationCallback callback : node.getBatchSerializationCallbacks()) {
+					query = callback.relationshipQuery(node, Collections.singletonList(object));
+					if (query != null) {
+						break;
+					}
+				}
+			}
+
+			if (query == null && state.since != null) {
+
+				// only children whose subtree changed
+				SelectQuery selectQuery = ChangeQualifier.createRelationshipQuery(id, node, state.since,
+						state.serializingDataRows);
+				if (selectQuery != null) {
+					selectQuery.setStatementFetchSize(state.statementFetchSize);
+					query = selectQuery;
+				}
+			}
+
+			if (query == null && state.serializingDataRows) {
+
+				// fetch only the columns of the node
+				SelectQuery selectQuery = ColumnProjection.createRelationshipQuery(id, node);
+				if (selectQuery != null) {
+					selectQuery.setStatementFetchSize(state.statementFetchSize);
+					query = selectQuery;
+				}
+			}
+
+			if (query == null) {
+				RelationshipQuery relationshipQuery = new RelationshipQuery(id, arc.getName());
 
-		try {
+				// "fetchSize" is absolutely critical to avoid storing the
+				// entire ResultSet in memory.
+				relationshipQuery.setStatementFetchSize(state.statementFetchSize);
+				query = relationshipQuery;
+			}
 
-			// use ResultIterator for to-many to avoid huge fetches
-			// in memory
-			ResultIterator it = dataContext.performIteratedQuery(query);
+			DataContext dataContext = dataContext(object, state);
 
 			try {
-				while (it.hasNextRow()) {
-					DataRow next = (DataRow) it.nextRow();
 
-					DataObject target = dataContext.objectFromDataRow(next.getEntityName(), next);
+				// use ResultIterator for to-many to avoid huge fetches
+				// in memory
+				ResultIterator it = dataContext.performIteratedQuery(query);
 
-					context.convertAnother(byReference ? target.getObjectId() : target);
+				try {
+					Iterator<?> targets = state.serializingDataRows ? new ResultRowIterator(it)
+							: new ResultObjectIterator(it, dataContext);
+					marshalTargets(targets, node, context, byReference);
+				} finally {
+					it.close();
 				}
-			} finally {
-				it.close();
+			} catch (Exception e) {
+				throw new CayenneRuntimeException("Error reading relationship " + arc.getName(), e);
 			}
-		} catch (Exception e) {
-			throw new CayenneRuntimeException("Error reading relationship " + arc.getName(), e);
 		}
 
 		writer.endNode();
 	}
 
-	private SerializerStack getStack(MarshallingContext context) {
-		SerializerStack stack = (SerializerStack) context.get(STACK_KEY);
+	/**
+	 * Returns a context of a persistent object, or the root context for
+	 * DataRows.
+	 */
+	private DataContext dataContext(Object object, SerializationState state) {
+		return object instanceof Persistent ? (DataContext) ((Persistent) object).getObjectContext()
+				: state.dataContext;
+	}
+
+	/**
+	 * Marshals related objects of a to-many node. If the node has children
+	 * that can be prefetched, objects are marshalled in windows, fetching
+	 * children of the entire window before marshalling it.
+	 */
+	private void marshalTargets(Iterator<?> targets, SubgraphNode node, MarshallingContext context, boolean byReference) {
+
+		SerializationState state = getState(context);
+		ToManyPrefetcher prefetcher = state.prefetcher;
+
+		if (byReference || !prefetcher.isPrefetching(node)) {
+			while (targets.hasNext()) {
+				Object target = targets.next();
+				context.convertAnother(byReference ? objectId(target, node) : target);
+			}
 
-		if (stack == null) {
-			stack = new SerializerStack(subgraph.getRootNode());
-			context.put(STACK_KEY, stack);
+			return;
 		}
 
-		return stack;
+		List<Object> window = new ArrayList<Object>(prefetcher.getWindowSize());
+		List<ObjectId> windowIds = new ArrayList<ObjectId>(prefetcher.getWindowSize());
+		while (targets.hasNext()) {
+			Object target = targets.next();
+			window.add(target);
+			windowIds.add(objectId(target, node));
+
+			if (window.size() == prefetcher.getWindowSize() || !targets.hasNext()) {
+				prefetcher.prefetch(state.dataContext, node, window, windowIds);
+
+				for (Object windowTarget : window) {
+					context.convertAnother(windowTarget);
+				}
+
+				window.clear();
+				windowIds.clear();
+			}
+		}
 	}
 
 	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
@@ -204,7 +527,7 @@ class PersistentSerializeConverter implements Converter {
 
 	@SuppressWarnings("all")
 	public boolean canConvert(Class objectClass) {
-		return Persistent.class.isAssignableFrom(objectClass);
+		return Persistent.class.isAssignableFrom(objectClass) || DataRow.class.isAssignableFrom(objectClass);
 	}
 
 }
@@ -0,0 +1,288 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import com.thoughtworks.xstream.converters.ErrorWriter;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.xml.AbstractPullReader;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyReplacer;
+
+/**
+ * A reader that parses XML on a separate thread. The parser thread pulls
+ * events from an XPP parser and hands them over in chunks via a bounded
+ * queue, so parsing overlaps with building objects and committing them on the
+ * calling thread, while the queue capacity limits memory use.
+ */
+class PipelinedXppReader extends AbstractPullReader {
+
+	static final int CHUNK_SIZE = 512;
+
+	private Reader in;
+	private BlockingQueue<EventChunk> queue;
+	private Thread parserThread;
+
+	private EventChunk chunk;
+	private int position;
+
+	private EventChunk startChunk;
+	private int startPosition;
+
+	PipelinedXppReader(Reader in, int queueSize) {
+		this(in, queueSize, new XmlFriendlyReplacer());
+	}
+
+	PipelinedXppReader(Reader in, int queueSize, XmlFriendlyReplacer replacer) {
+		super(replacer);
+
+		if (queueSize <= 0) {
+			throw new IllegalArgumentException("Invalid queue size: "
+					+ queueSize);
+		}
+
+		this.in = in;
+		this.queue = new ArrayBlockingQueue<EventChunk>(queueSize);
+		this.parserThread = new Thread(new Parser(in, queue),
+				"cayenne-serialization-parser");
+		this.parserThread.setDaemon(true);
+		this.parserThread.start();
+
+		try {
+			moveDown();
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	protected int pullNextEvent() {
+
+		if (chunk == null || position >= chunk.size) {
+
+			if (chunk != null && chunk.last) {
+				throw new StreamException("Unexpected end of document");
+			}
+
+			try {
+				chunk = queue.take();
+			} catch (InterruptedException e) {
+				throw new StreamException(e);
+			}
+
+			if (chunk.error != null) {
+				throw new StreamException(chunk.error);
+			}
+
+			position = 0;
+
+			if (chunk.size == 0) {
+				throw new StreamException("Unexpected end of document");
+			}
+		}
+
+		int type = chunk.types[position];
+		if (type == START_NODE) {
+			startChunk = chunk;
+			startPosition = position;
+		}
+
+		return chunk.types[position++];
+	}
+
+	@Override
+	protected String pullElementName() {
+		return chunk.values[position - 1];
+	}
+
+	@Override
+	protected String pullText() {
+		return chunk.values[position - 1];
+	}
+
+	public String getAttribute(String name) {
+		String[] attributes = currentAttributes();
+		if (attributes != null) {
+
+			// attribute names are stored as parsed, i.e. escaped
+			String escapedName = escapeXmlName(name);
+			for (int i = 0; i < attributes.length; i += 2) {
+				if (attributes[i].equals(escapedName)) {
+					return attributes[i + 1];
+				}
+			}
+		}
+
+		return null;
+	}
+
+	public String getAttribute(int index) {
+		String[] attributes = currentAttributes();
+		return attributes != null ? attributes[index * 2 + 1] : null;
+	}
+
+	public int getAttributeCount() {
+		String[] attributes = currentAttributes();
+		return attributes != null ? attributes.length / 2 : 0;
+	}
+
+	public String getAttributeName(int index) {
+		return unescapeXmlName(currentAttributes()[index * 2]);
+	}
+
+	public void appendErrors(ErrorWriter errorWriter) {
+		int line = chunk != null && position > 0 ? chunk.lines[position - 1] : -1;
+		errorWriter.add("line number", line >= 0 ? String.valueOf(line) : "unknown");
+	}
+
+	/**
+	 * Stops the parser thread and closes the underlying reader, which also
+	 * stops a parser blocked reading input.
+	 */
+	public void close() {
+		parserThread.interrupt();
+		queue.clear();
+
+		try {
+			in.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	public HierarchicalStreamReader underlyingReader() {
+		return this;
+	}
+
+	private String[] currentAttributes() {
+		return startChunk != null ? startChunk.attributes[startPosition] : null;
+	}
+
+	/**
+	 * A fixed size batch of parser events passed through the queue. Element
+	 * names and text are stored in the values array, and each start element
+	 * stores its attributes as an array of name/value pairs.
+	 */
+	static class EventChunk {
+
+		int[] types;
+		int[] lines;
+		String[] values;
+		String[][] attributes;
+		int size;
+		boolean last;
+		Throwable error;
+
+		EventChunk(int capacity) {
+			types = new int[capacity];
+			lines = new int[capacity];
+			values = new String[capacity];
+			attributes = new String[capacity][];
+		}
+
+		boolean isFull() {
+			return size == types.length;
+		}
+
+		void add(int type, int line, String value, String[] attributes) {
+			this.types[size] = type;
+			this.lines[size] = line;
+			this.values[size] = value;
+			this.attributes[size] = attributes;
+			size++;
+		}
+	}
+
+	static class Parser implements Runnable {
+
+		private Reader in;
+		private BlockingQueue<EventChunk> queue;
+
+		Parser(Reader in, BlockingQueue<EventChunk> queue) {
+			this.in = in;
+			this.queue = queue;
+		}
+
+		public void run() {
+
+			EventChunk chunk = new EventChunk(CHUNK_SIZE);
+
+			try {
+				XmlPullParser parser = new MXParser();
+				parser.setInput(in);
+
+				int event;
+				while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+
+					switch (event) {
+					case XmlPullParser.START_TAG:
+						String[] attributes = null;
+						int count = parser.getAttributeCount();
+						if (count > 0) {
+							attributes = new String[count * 2];
+							for (int i = 0; i < count; i++) {
+								attributes[i * 2] = parser.getAttributeName(i);
+								attributes[i * 2 + 1] = parser
+										.getAttributeValue(i);
+							}
+						}
+
+						chunk.add(START_NODE, parser.getLineNumber(), parser.getName(), attributes);
+						break;
+					case XmlPullParser.END_TAG:
+						chunk.add(END_NODE, parser.getLineNumber(), null, null);
+						break;
+					case XmlPullParser.TEXT:
+						chunk.add(TEXT, parser.getLineNumber(), parser.getText(), null);
+						break;
+					default:
+						continue;
+					}
+
+					if (chunk.isFull()) {
+						queue.put(chunk);
+						chunk = new EventChunk(CHUNK_SIZE);
+					}
+				}
+
+				chunk.last = true;
+				queue.put(chunk);
+			} catch (InterruptedException e) {
+				// reader was closed, just exit...
+			} catch (Throwable th) {
+				EventChunk error = new EventChunk(0);
+				error.error = th;
+
+				try {
+					queue.put(error);
+				} catch (InterruptedException e) {
+					// reader was closed, just exit...
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.access.DataDomain;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Reads windows of root objects ahead of serialization and fetches their
+ * to-many children on a pool of worker threads, so that database fetches
+ * overlap with writing of the previous windows. Windows are returned in the
+ * order of the roots, with their children installed in the prefetcher.
+ * <p>
+ * Workers run DataRow queries directly against the DataDomain, and never
+ * use the DataContext of the roots. Roots are read and children are
+ * registered in the context on the serializing thread, as DataContext is
+ * not thread-safe.
+ */
+class PrefetchPipeline implements Iterator<List<Persistent>> {
+
+	private Iterator<?> roots;
+	private SubgraphNode rootNode;
+	private ToManyPrefetcher prefetcher;
+	private int windowSize;
+	private int readAhead;
+
+	private ExecutorService executor;
+	private LinkedList<Window> windows;
+
+	PrefetchPipeline(Iterator<?> roots, SubgraphNode rootNode, ToManyPrefetcher prefetcher, int windowSize,
+			int threads, int readAhead) {
+
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("Invalid window size: " + windowSize);
+		}
+
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+
+		this.roots = roots;
+		this.rootNode = rootNode;
+		this.prefetcher = prefetcher;
+		this.windowSize = windowSize;
+
+		// at least one window must be fetched ahead to get any overlap
+		this.readAhead = Math.max(readAhead, 1);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.windows = new LinkedList<Window>();
+	}
+
+	public boolean hasNext() {
+		readAhead();
+		return !windows.isEmpty();
+	}
+
+	public List<Persistent> next() {
+
+		readAhead();
+		Window window = windows.removeFirst();
+
+		// keep the workers busy while this window is serialized
+		readAhead();
+
+		try {
+			window.future.get();
+		} catch (ExecutionException e) {
+			throw new CayenneRuntimeException("Error prefetching relationships", e.getCause());
+		} catch (InterruptedException e) {
+			throw new CayenneRuntimeException("Interrupted", e);
+		}
+
+		prefetcher.install(window.context, window.fetches);
+		return window.roots;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops the workers, abandoning windows that were not returned.
+	 */
+	void close() {
+		executor.shutdownNow();
+	}
+
+	private void readAhead() {
+
+		while (windows.size() < readAhead && roots.hasNext()) {
+
+			List<Persistent> window = new ArrayList<Persistent>(windowSize);
+			List<ObjectId> windowIds = new ArrayList<ObjectId>(windowSize);
+			while (window.size() < windowSize && roots.hasNext()) {
+				Persistent root = (Persistent) roots.next();
+				window.add(root);
+				windowIds.add(root.getObjectId());
+			}
+
+			DataContext context = (DataContext) window.get(0).getObjectContext();
+			windows.add(new Window(window, context, prefetcher.createFetches(rootNode, window, windowIds)));
+		}
+	}
+
+	private class Window {
+
+		private List<Persistent> roots;
+		private DataContext context;
+		private List<ToManyPrefetcher.ChildFetch> fetches;
+		private Future<?> future;
+
+		Window(List<Persistent> roots, DataContext context, List<ToManyPrefetcher.ChildFetch> fetches) {
+			this.roots = roots;
+			this.context = context;
+			this.fetches = fetches;
+
+			final DataDomain domain = context.getParentDataDomain();
+			final List<ToManyPrefetcher.ChildFetch> windowFetches = fetches;
+			this.future = executor.submit(new Callable<Object>() {
+
+				public Object call() throws Exception {
+					for (ToManyPrefetcher.ChildFetch fetch : windowFetches) {
+						fetch.run(domain);
+					}
+
+					return null;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.serialization.ReferenceLookup;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Collects by-reference objects read during deserialization and resolves them
+ * in batches, with one IN query per entity per batch, instead of running a
+ * query per reference. Once resolved, objects are connected to their parents
+ * and the deserialization callbacks are invoked. References to objects that
+ * no longer exist are skipped and counted by the {@link ReferenceLookup}.
+ */
+class ReferenceResolver {
+
+	private ReferenceLookup lookup;
+	private int batchSize;
+	private List<PendingReference> references;
+	private Map<String, Set<ObjectId>> idsByEntity;
+	private List<PendingReference> deferredCallbacks;
+
+	// objects whose callbacks must wait for the pending references: parents
+	// of the references and parents of the objects with deferred callbacks,
+	// so that callbacks of related objects keep their order
+	private Map<Object, Object> waiting;
+
+	ReferenceResolver(ReferenceLookup lookup, int batchSize) {
+
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Invalid batch size: "
+					+ batchSize);
+		}
+
+		this.lookup = lookup;
+		this.batchSize = batchSize;
+		this.references = new ArrayList<PendingReference>(batchSize);
+		this.idsByEntity = new LinkedHashMap<String, Set<ObjectId>>();
+		this.deferredCallbacks = new ArrayList<PendingReference>();
+		this.waiting = new IdentityHashMap<Object, Object>();
+	}
+
+	/**
+	 * Returns true if there are unresolved references or callbacks waiting
+	 * for them.
+	 */
+	boolean hasPending() {
+		return !references.isEmpty() || !deferredCallbacks.isEmpty();
+	}
+
+	/**
+	 * Returns true if callbacks of the object must be deferred until the
+	 * pending references are resolved.
+	 */
+	boolean isWaiting(Object object) {
+		return waiting.containsKey(object);
+	}
+
+	/**
+	 * Registers a reference to be connected to the parent object via the
+	 * node's incoming relationship once resolved. Resolves the batch when it
+	 * reaches the max size.
+	 */
+	void addReference(SubgraphNode node, Object parent, ObjectId id) {
+		references.add(new PendingReference(node, parent, id));
+		waiting.put(parent, parent);
+
+		Set<ObjectId> ids = idsByEntity.get(id.getEntityName());
+		if (ids == null) {
+			ids = new LinkedHashSet<ObjectId>();
+			idsByEntity.put(id.getEntityName(), ids);
+		}
+		ids.add(id);
+
+		if (references.size() >= batchSize) {
+			resolvePending();
+		}
+	}
+
+	/**
+	 * Postpones callbacks of an object until the pending references are
+	 * resolved, so that callbacks see all object relationships set. Callbacks
+	 * of the parent, if any, are postponed as well.
+	 */
+	void deferCallbacks(SubgraphNode node, Object object, Object parent) {
+		deferredCallbacks.add(new PendingReference(node, object, null));
+
+		if (parent != null) {
+			waiting.put(parent, parent);
+		}
+	}
+
+	/**
+	 * Resolves all pending references, connects them to their parents in the
+	 * order they were read, and invokes postponed callbacks.
+	 */
+	void resolvePending() {
+
+		if (!references.isEmpty()) {
+
+			Map<ObjectId, Object> objects = new HashMap<ObjectId, Object>();
+			for (Set<ObjectId> ids : idsByEntity.values()) {
+				lookup.lookup(ids, objects);
+			}
+
+			for (PendingReference reference : references) {
+				Object object = objects.get(reference.id);
+
+				if (object != null) {
+					DeserializerStack.connect(reference.node, reference.object,
+							object);
+					DeserializerStack.postDeserialize(reference.node, object);
+				} else {
+					lookup.skipMissing(reference.id);
+				}
+			}
+
+			references.clear();
+			idsByEntity.clear();
+		}
+
+		if (!deferredCallbacks.isEmpty()) {
+			for (PendingReference deferred : deferredCallbacks) {
+				DeserializerStack.postDeserialize(deferred.node,
+						deferred.object);
+			}
+
+			deferredCallbacks.clear();
+		}
+
+		waiting.clear();
+	}
+
+	static class PendingReference {
+
+		SubgraphNode node;
+		Object object;
+		ObjectId id;
+
+		PendingReference(SubgraphNode node, Object object, ObjectId id) {
+			this.node = node;
+			this.object = object;
+			this.id = id;
+		}
+	}
+}
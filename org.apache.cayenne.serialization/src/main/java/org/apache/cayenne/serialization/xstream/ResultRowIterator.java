@@ -0,0 +1,57 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.Iterator;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.DataRow;
+import org.apache.cayenne.ResultIterator;
+
+/**
+ * Adapts a ResultIterator over DataRows to an Iterator.
+ */
+class ResultRowIterator implements Iterator<DataRow> {
+
+	private ResultIterator result;
+
+	ResultRowIterator(ResultIterator result) {
+		this.result = result;
+	}
+
+	public boolean hasNext() {
+		try {
+			return result.hasNextRow();
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error reading rows", e);
+		}
+	}
+
+	public DataRow next() {
+		try {
+			return (DataRow) result.nextRow();
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error reading rows", e);
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
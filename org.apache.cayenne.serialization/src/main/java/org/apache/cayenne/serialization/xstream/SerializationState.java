@@ -0,0 +1,85 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Per-run state of a serialization, passed to the stateless converters via
+ * XStream DataHolder, so that a single XStream instance can be shared between
+ * runs and threads.
+ */
+class SerializationState {
+
+	SerializerStack stack;
+	int statementFetchSize;
+	boolean serializingDataRows;
+	ToManyPrefetcher prefetcher;
+	MergeJoin mergeJoin;
+
+	// by-value objects written under the current root, or null if shared
+	// objects are written in full every time
+	SharedObjects sharedObjects;
+
+	// a context of the root objects, used to fetch related DataRows
+	DataContext dataContext;
+
+	// set in delta exports: the watermark of the previous export, or null to
+	// export everything, and the greatest watermark attribute value written
+	boolean trackingWatermark;
+	Object since;
+	Object highWatermark;
+
+	SerializationState(SubgraphNode rootNode, int statementFetchSize, int prefetchWindowSize,
+			boolean serializingDataRows) {
+		this.stack = new SerializerStack(rootNode);
+		this.statementFetchSize = statementFetchSize;
+		this.serializingDataRows = serializingDataRows;
+		this.prefetcher = new ToManyPrefetcher(prefetchWindowSize, statementFetchSize, !serializingDataRows);
+	}
+
+	/**
+	 * Switches to a delta export, writing only objects whose subtree changed
+	 * since the watermark.
+	 */
+	void trackWatermark(Object since) {
+		this.trackingWatermark = true;
+		this.since = since;
+		this.prefetcher.setSince(since);
+	}
+
+	/**
+	 * Records a watermark attribute value of a written object.
+	 */
+	@SuppressWarnings("unchecked")
+	void raiseWatermark(Object value) {
+		if (value != null && (highWatermark == null || ((Comparable<Object>) value).compareTo(highWatermark) > 0)) {
+			highWatermark = value;
+		}
+	}
+
+	/**
+	 * Returns the watermark to use in the next delta export, or null if
+	 * nothing was written and there was no previous watermark.
+	 */
+	Object getNextWatermark() {
+		return highWatermark != null ? highWatermark : since;
+	}
+}
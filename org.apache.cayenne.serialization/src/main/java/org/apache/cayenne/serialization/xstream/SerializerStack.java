@@ -29,12 +29,18 @@ import com.thoughtworks.xstream.core.util.FastStack;
 class SerializerStack {
 
 	private FastStack stack;
+	private SubgraphNode root;
 
 	public SerializerStack(SubgraphNode root) {
+		this.root = root;
 		stack = new FastStack(root.getMaxDepth());
 		stack.push(root);
 	}
 
+	public SubgraphNode getRootNode() {
+		return root;
+	}
+
 	public void pushNode(SubgraphNode node) {
 		stack.push(node);
 	}
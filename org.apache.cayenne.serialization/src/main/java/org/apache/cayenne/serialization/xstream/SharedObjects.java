@@ -0,0 +1,140 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * A dictionary of the by-value objects written under the current root, keyed
+ * by ObjectId. The first occurrence of an object is written in full with a
+ * local "id" attribute, and later occurrences under the same subgraph node
+ * are written as empty elements with an "idref" attribute. An object reached
+ * via a different node is written in full again with the same id, as the
+ * node may include other properties. This also takes care of cycles, as an
+ * object can only be written in full once per node. Ids are local to a root
+ * object, so roots can still be deserialized independently.
+ * <p>
+ * Objects with a single integer PK column, which is the common case, are
+ * tracked in primitive {@link LongIntMap} tables per entity, and other
+ * ObjectIds in a HashMap.
+ */
+class SharedObjects {
+
+	private Map<String, LongIntMap> idsByEntity;
+	private Map<ObjectId, Integer> otherIds;
+	private int lastId;
+
+	// local ids combined with node indexes of the objects written in full
+	private LongIntMap written;
+	private Map<SubgraphNode, Integer> nodeIndexes;
+
+	SharedObjects() {
+		this.idsByEntity = new HashMap<String, LongIntMap>();
+		this.otherIds = new HashMap<ObjectId, Integer>();
+		this.written = new LongIntMap();
+		this.nodeIndexes = new IdentityHashMap<SubgraphNode, Integer>();
+	}
+
+	/**
+	 * Starts a new root object, forgetting all objects written so far.
+	 */
+	void clear() {
+		for (LongIntMap ids : idsByEntity.values()) {
+			ids.clear();
+		}
+
+		otherIds.clear();
+		written.clear();
+		lastId = 0;
+	}
+
+	/**
+	 * Writes an id or idref attribute of the object to the current element,
+	 * returning true if the object was not written under the node before, and
+	 * its properties have to be written.
+	 */
+	boolean writeId(HierarchicalStreamWriter writer, ObjectId id, SubgraphNode node) {
+
+		int localId = localId(id);
+		long key = (long) localId << 32 | nodeIndex(node);
+
+		if (written.get(key) != 0) {
+			writer.addAttribute(Attributes.idref.name(), String.valueOf(localId));
+			return false;
+		}
+
+		written.put(key, 1);
+		writer.addAttribute(Attributes.id.name(), String.valueOf(localId));
+		return true;
+	}
+
+	/**
+	 * Returns the local id of the object, assigning a new one on first
+	 * access.
+	 */
+	private int localId(ObjectId id) {
+
+		Map<String, Object> snapshot = id.getIdSnapshot();
+		if (snapshot.size() == 1) {
+			Object pk = snapshot.values().iterator().next();
+
+			if (pk instanceof Integer || pk instanceof Long || pk instanceof Short || pk instanceof Byte) {
+				LongIntMap ids = idsByEntity.get(id.getEntityName());
+				if (ids == null) {
+					ids = new LongIntMap();
+					idsByEntity.put(id.getEntityName(), ids);
+				}
+
+				long value = ((Number) pk).longValue();
+				int localId = ids.get(value);
+				if (localId == 0) {
+					localId = ++lastId;
+					ids.put(value, localId);
+				}
+
+				return localId;
+			}
+		}
+
+		Integer localId = otherIds.get(id);
+		if (localId == null) {
+			localId = ++lastId;
+			otherIds.put(id, localId);
+		}
+
+		return localId;
+	}
+
+	private int nodeIndex(SubgraphNode node) {
+		Integer index = nodeIndexes.get(node);
+		if (index == null) {
+			index = nodeIndexes.size();
+			nodeIndexes.put(node, index);
+		}
+
+		return index;
+	}
+}
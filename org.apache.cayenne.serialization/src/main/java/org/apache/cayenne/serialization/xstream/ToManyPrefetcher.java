@@ -0,0 +1,313 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.DataRow;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.QueryResponse;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.access.DataDomain;
+import org.apache.cayenne.exp.Expression;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.map.DbJoin;
+import org.apache.cayenne.map.DbRelationship;
+import org.apache.cayenne.map.ObjRelationship;
+import org.apache.cayenne.query.Query;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.serialization.BatchSerializationCallback;
+import org.apache.cayenne.serialization.SubgraphNode;
+
+/**
+ * Fetches to-many children of a window of sibling parent objects with a single
+ * query per child node, instead of a query per parent. Fetched children are
+ * grouped by parent and handed out as the parents are serialized. Memory use is
+ * bounded by the window size.
+ */
+class ToManyPrefetcher {
+
+	private int windowSize;
+	private int statementFetchSize;
+	private boolean materializing;
+
+	// the watermark of a delta export, or null if all children are fetched
+	private Object since;
+
+	// children of the current window by child node and parent key
+	private Map<SubgraphNode, Map<Object, List<Object>>> prefetched;
+
+	/**
+	 * @param materializing whether fetched children are registered in the
+	 *            context as persistent objects, or returned as DataRows.
+	 */
+	ToManyPrefetcher(int windowSize, int statementFetchSize, boolean materializing) {
+		this.windowSize = windowSize;
+		this.statementFetchSize = statementFetchSize;
+		this.materializing = materializing;
+		this.prefetched = new HashMap<SubgraphNode, Map<Object, List<Object>>>();
+	}
+
+	/**
+	 * Restricts fetches to children whose subtree changed since the
+	 * watermark.
+	 */
+	void setSince(Object since) {
+		this.since = since;
+	}
+
+	int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Returns true if objects of the node should be serialized in windows, i.e.
+	 * if prefetching is enabled and the node has children that can be fetched
+	 * in batches.
+	 */
+	boolean isPrefetching(SubgraphNode node) {
+		return windowSize > 0 && hasBatchableChildren(node);
+	}
+
+	/**
+	 * Returns true if the node has children that can be fetched in batches.
+	 */
+	static boolean hasBatchableChildren(SubgraphNode node) {
+
+		// children of cached objects are usually not read at all
+		if (node.isSerializedByReference() || node.getFragmentCache() != null) {
+			return false;
+		}
+
+		for (SubgraphNode child : node.getChildren()) {
+			if (getJoin(child) != null) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Fetches children of all batchable to-many child nodes for a window of
+	 * parent objects of the node. Parents are persistent objects or DataRows,
+	 * and their ids are passed in the same order.
+	 */
+	void prefetch(DataContext context, SubgraphNode node, List<?> parents, List<ObjectId> parentIds) {
+
+		List<ChildFetch> fetches = createFetches(node, parents, parentIds);
+		for (ChildFetch fetch : fetches) {
+			fetch.run(context.getParentDataDomain());
+		}
+
+		install(context, fetches);
+	}
+
+	/**
+	 * Creates fetches of all batchable to-many child nodes for a window of
+	 * parent objects of the node, invoking batch callbacks of the nodes.
+	 * Fetches may then run on any thread, and must be installed on the
+	 * serializing thread before the window is serialized.
+	 */
+	List<ChildFetch> createFetches(SubgraphNode node, List<?> parents, List<ObjectId> parentIds) {
+
+		List<ChildFetch> fetches = new ArrayList<ChildFetch>();
+		for (SubgraphNode child : node.getChildren()) {
+			DbJoin join = getJoin(child);
+			if (join != null) {
+				fetches.add(createFetch(child, join, parents, parentIds));
+			}
+		}
+
+		return fetches;
+	}
+
+	/**
+	 * Makes fetched children available to {@link #takePrefetched(SubgraphNode, ObjectId)},
+	 * replacing children of the previous window. When materializing, DataRows
+	 * are registered in the context as persistent objects.
+	 */
+	void install(DataContext context, List<ChildFetch> fetches) {
+
+		for (ChildFetch fetch : fetches) {
+
+			if (materializing) {
+				String entityName = fetch.child.getIncomingProperty().getRelationship().getTargetEntityName();
+
+				for (List<Object> children : fetch.byParent.values()) {
+					for (int i = 0; i < children.size(); i++) {
+						DataRow row = (DataRow) children.get(i);
+						children.set(i, context.objectFromDataRow(row.getEntityName() != null ? row
+								.getEntityName() : entityName, row));
+					}
+				}
+			}
+
+			prefetched.put(fetch.child, fetch.byParent);
+		}
+	}
+
+	/**
+	 * Returns prefetched children of the parent for the child node, or null if
+	 * they were not prefetched.
+	 */
+	List<Object> takePrefetched(SubgraphNode child, ObjectId parentId) {
+
+		Map<Object, List<Object>> byParent = prefetched.get(child);
+		if (byParent == null) {
+			return null;
+		}
+
+		Object key = normalize(parentId.getIdSnapshot().get(getJoin(child).getSourceName()));
+		return key != null ? byParent.remove(key) : null;
+	}
+
+	private ChildFetch createFetch(SubgraphNode child, DbJoin join, List<?> parents, List<ObjectId> parentIds) {
+
+		ChildFetch fetch = new ChildFetch(child, join);
+		List<Object> values = new ArrayList<Object>(parentIds.size());
+
+		// parents without children still need an entry, so that they don't
+		// fall back to a query of their own
+		for (ObjectId parentId : parentIds) {
+			Object value = parentId.getIdSnapshot().get(join.getSourceName());
+			if (value != null && !fetch.byParent.containsKey(normalize(value))) {
+				fetch.byParent.put(normalize(value), new ArrayList<Object>());
+				values.add(value);
+			}
+		}
+
+		if (values.isEmpty()) {
+			return fetch;
+		}
+
+		for (BatchSerializationCallback callback : child.getBatchSerializationCallbacks()) {
+			fetch.query = callback.relationshipQuery(child, parents);
+			if (fetch.query != null) {
+				return fetch;
+			}
+		}
+
+		Expression qualifier = ExpressionFactory.inDbExp(join.getTargetName(), values);
+		Expression changed = ChangeQualifier.subtreeChanged(child, since);
+		if (changed != null) {
+			qualifier = qualifier.andExp(changed);
+		}
+
+		ObjRelationship relationship = child.getIncomingProperty().getRelationship();
+		SelectQuery query = new SelectQuery(relationship.getTargetEntity(), qualifier);
+		query.setFetchingDataRows(true);
+		query.setDistinct(changed != null && ChangeQualifier.isJoining(child));
+		query.setStatementFetchSize(statementFetchSize);
+
+		if (!materializing) {
+			ColumnProjection.project(query, child);
+		}
+
+		fetch.query = query;
+		return fetch;
+	}
+
+	/**
+	 * Returns the join of a to-many child node that can be fetched in batches,
+	 * or null if the node children are fetched per parent. That's the case for
+	 * nodes with per-parent callbacks that may provide custom queries, and for
+	 * flattened or compound relationships.
+	 */
+	private static DbJoin getJoin(SubgraphNode child) {
+
+		if (!child.getSerializationCallbacks().isEmpty()) {
+			return null;
+		}
+
+		ObjRelationship relationship = child.getIncomingProperty().getRelationship();
+		if (!relationship.isToMany()) {
+			return null;
+		}
+
+		List<DbRelationship> dbRelationships = relationship.getDbRelationships();
+		if (dbRelationships.size() != 1) {
+			return null;
+		}
+
+		List<DbJoin> joins = dbRelationships.get(0).getJoins();
+		return joins.size() == 1 ? joins.get(0) : null;
+	}
+
+	/**
+	 * Makes key values comparable regardless of the numeric type used by the
+	 * parent id and the child FK column.
+	 */
+	static Object normalize(Object value) {
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			return Long.valueOf(((Number) value).longValue());
+		}
+
+		return value;
+	}
+
+	/**
+	 * Children of a single child node for a window of parents, fetched as
+	 * DataRows and grouped by parent key.
+	 */
+	static class ChildFetch {
+
+		private SubgraphNode child;
+		private DbJoin join;
+		private Query query;
+		private Map<Object, List<Object>> byParent;
+
+		ChildFetch(SubgraphNode child, DbJoin join) {
+			this.child = child;
+			this.join = join;
+			this.byParent = new HashMap<Object, List<Object>>();
+		}
+
+		/**
+		 * Runs the query against the DataDomain. Only DataRows are read, and
+		 * no ObjectContext is involved, so a fetch may run on any thread.
+		 */
+		void run(DataDomain domain) {
+
+			if (query == null) {
+				return;
+			}
+
+			try {
+				QueryResponse response = domain.onQuery(null, query);
+
+				for (Object result : response.firstList()) {
+					DataRow row = (DataRow) result;
+					List<Object> children = byParent.get(normalize(row.get(join.getTargetName())));
+
+					if (children != null) {
+						children.add(row);
+					}
+				}
+			} catch (Exception e) {
+				throw new CayenneRuntimeException("Error prefetching relationship "
+						+ child.getIncomingProperty().getName(), e);
+			}
+		}
+	}
+}
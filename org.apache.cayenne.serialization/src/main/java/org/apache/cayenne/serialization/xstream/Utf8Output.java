@@ -0,0 +1,382 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A UTF-8 sink over a WritableByteChannel that encodes characters straight
+ * into large direct buffers taken from a pool. With background writing, a
+ * full buffer is written to the channel by a separate thread while the next
+ * one is being filled. Output may be gzipped on the way to the channel.
+ */
+class Utf8Output {
+
+	// a buffer must fit the longest encoded char
+	private static final int MAX_CHAR_BYTES = 4;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private WritableByteChannel channel;
+	private GzipChannel compressor;
+	private BufferPool pool;
+	private ByteBuffer buffer;
+
+	private BlockingQueue<ByteBuffer> writes;
+	private BlockingQueue<ByteBuffer> written;
+	private Thread writerThread;
+	private volatile IOException failure;
+
+	// bytes handed to the channel so far, before compression
+	private long drainedBytes;
+
+	// bytes written since the outermost capture started, copied out of the
+	// buffers before they are written to the channel
+	private ByteArrayOutputStream captured;
+	private int captureStart;
+	private int captureDepth;
+
+	Utf8Output(WritableByteChannel channel, BufferPool pool, boolean backgroundWriting) {
+		this(channel, null, pool, backgroundWriting);
+	}
+
+	/**
+	 * Creates an output that writes through a compressor into the channel.
+	 */
+	Utf8Output(WritableByteChannel channel, GzipChannel compressor, BufferPool pool, boolean backgroundWriting) {
+		this.channel = compressor != null ? compressor : channel;
+		this.compressor = compressor;
+		this.pool = pool;
+		this.buffer = pool.take();
+
+		if (backgroundWriting) {
+			this.writes = new LinkedBlockingQueue<ByteBuffer>();
+			this.written = new LinkedBlockingQueue<ByteBuffer>();
+			this.written.add(pool.take());
+
+			this.writerThread = new Thread(new BackgroundWriter(), "cayenne-serialization-writer");
+			this.writerThread.setDaemon(true);
+			this.writerThread.start();
+		}
+	}
+
+	void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+
+		buffer.put((byte) b);
+	}
+
+	void write(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	void write(char[] chars, int offset, int length) throws IOException {
+		write(CharBuffer.wrap(chars, offset, length));
+	}
+
+	void write(CharSequence chars) throws IOException {
+
+		int length = chars.length();
+		for (int i = 0; i < length; i++) {
+
+			if (buffer.remaining() < MAX_CHAR_BYTES) {
+				drain();
+			}
+
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			} else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+				buffer.put((byte) (0xe0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+				buffer.put((byte) (0xf0 | codePoint >> 18));
+				buffer.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+				buffer.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+				buffer.put((byte) (0x80 | codePoint & 0x3f));
+			} else {
+				// unpaired surrogate, replaced the same way as by the JDK
+				// encoder
+				buffer.put((byte) '?');
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written so far, before compression.
+	 */
+	long size() {
+		return drainedBytes + buffer.position();
+	}
+
+	/**
+	 * Starts recording the bytes that are written from now on, returning a
+	 * mark to pass to {@link #endCapture(int)}. Captures can be nested.
+	 */
+	int startCapture() {
+
+		if (captureDepth++ == 0) {
+			if (captured == null) {
+				captured = new ByteArrayOutputStream();
+			}
+
+			captureStart = buffer.position();
+		}
+
+		return captured.size() + buffer.position() - captureStart;
+	}
+
+	/**
+	 * Returns the bytes written since the capture with the mark was started.
+	 */
+	byte[] endCapture(int mark) {
+
+		copyCaptured();
+
+		byte[] all = captured.toByteArray();
+		byte[] bytes = new byte[all.length - mark];
+		System.arraycopy(all, mark, bytes, 0, bytes.length);
+
+		if (--captureDepth == 0) {
+			captured.reset();
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Copies captured bytes out of the current buffer before it is written.
+	 */
+	private void copyCaptured() {
+		if (captureDepth > 0) {
+			ByteBuffer pending = buffer.duplicate();
+			pending.limit(buffer.position());
+			pending.position(captureStart);
+
+			byte[] bytes = new byte[pending.remaining()];
+			pending.get(bytes);
+			captured.write(bytes, 0, bytes.length);
+
+			captureStart = buffer.position();
+		}
+	}
+
+	/**
+	 * Writes all buffered bytes to the channel, waiting for background writes
+	 * to complete.
+	 */
+	void flush() throws IOException {
+
+		copyCaptured();
+		captureStart = 0;
+		drainedBytes += buffer.position();
+
+		if (writerThread == null) {
+			writeBuffer(buffer);
+			return;
+		}
+
+		// once both buffers are back, everything is written
+		put(buffer);
+		buffer = take();
+		written.add(take());
+
+		checkFailure();
+	}
+
+	/**
+	 * Flushes the output and completes compressed output, if any. The
+	 * channel is left open.
+	 */
+	void finish() throws IOException {
+		flush();
+
+		if (compressor != null) {
+			compressor.finish();
+		}
+	}
+
+	/**
+	 * Stops background writing and returns buffers to the pool, discarding
+	 * bytes that were not flushed. The channel is left open.
+	 */
+	void release() {
+
+		if (writerThread != null) {
+			writes.add(END);
+
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				writerThread.interrupt();
+				Thread.currentThread().interrupt();
+			}
+
+			ByteBuffer spare;
+			while ((spare = written.poll()) != null) {
+				pool.give(spare);
+			}
+		}
+
+		if (buffer != null) {
+			pool.give(buffer);
+			buffer = null;
+		}
+
+		if (compressor != null) {
+			compressor.release();
+		}
+	}
+
+	private void drain() throws IOException {
+
+		copyCaptured();
+		captureStart = 0;
+		drainedBytes += buffer.position();
+
+		if (writerThread == null) {
+			writeBuffer(buffer);
+			return;
+		}
+
+		put(buffer);
+		buffer = take();
+		checkFailure();
+	}
+
+	private void writeBuffer(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	private void put(ByteBuffer buffer) {
+		writes.add(buffer);
+	}
+
+	private ByteBuffer take() throws IOException {
+		try {
+			return written.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for a buffer");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Writes full buffers in order and hands them back for reuse. After a
+	 * failure, buffers are returned without writing, so that the serializing
+	 * thread never blocks and gets the error on the next buffer switch.
+	 */
+	private class BackgroundWriter implements Runnable {
+
+		public void run() {
+			while (true) {
+
+				ByteBuffer next;
+				try {
+					next = writes.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (next == END) {
+					return;
+				}
+
+				try {
+					if (failure == null) {
+						writeBuffer(next);
+					}
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					written.add(next);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A pool of equally sized direct buffers reused across serialization runs.
+	 */
+	static class BufferPool {
+
+		private int bufferSize;
+		private ConcurrentLinkedQueue<ByteBuffer> buffers;
+
+		BufferPool(int bufferSize) {
+
+			if (bufferSize < MAX_CHAR_BYTES) {
+				throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+			}
+
+			this.bufferSize = bufferSize;
+			this.buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+
+		int getBufferSize() {
+			return bufferSize;
+		}
+
+		ByteBuffer take() {
+			ByteBuffer buffer = buffers.poll();
+			return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		void give(ByteBuffer buffer) {
+			buffer.clear();
+			buffers.offer(buffer);
+		}
+	}
+}
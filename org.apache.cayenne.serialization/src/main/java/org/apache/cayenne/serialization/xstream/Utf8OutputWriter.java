@@ -0,0 +1,69 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A Writer over {@link Utf8Output}, for XStream writers that take a Writer.
+ * Closing it flushes the output, leaving the underlying channel open.
+ */
+class Utf8OutputWriter extends Writer {
+
+	private Utf8Output output;
+
+	Utf8OutputWriter(Utf8Output output) {
+		this.output = output;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (c < 0x80) {
+			output.write(c);
+		} else {
+			output.write(String.valueOf((char) c));
+		}
+	}
+
+	@Override
+	public void write(char[] chars, int offset, int length) throws IOException {
+		output.write(chars, offset, length);
+	}
+
+	@Override
+	public void write(String string) throws IOException {
+		output.write(string);
+	}
+
+	@Override
+	public void write(String string, int offset, int length) throws IOException {
+		output.write(string.subSequence(offset, offset + length));
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		output.flush();
+	}
+}
@@ -18,12 +18,21 @@
  ****************************************************************/
 package org.apache.cayenne.serialization.xstream;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.cayenne.CayenneRuntimeException;
 import org.apache.cayenne.ObjectContext;
 import org.apache.cayenne.access.DataContext;
 import org.apache.cayenne.access.Transaction;
+import org.apache.cayenne.configuration.ObjectContextFactory;
 import org.apache.cayenne.reflect.ClassDescriptor;
 import org.apache.cayenne.serialization.BaseDeserializer;
 import org.apache.cayenne.serialization.Subgraph;
@@ -31,41 +40,230 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.DataHolder;
 import com.thoughtworks.xstream.core.util.CompositeClassLoader;
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.xml.DomDriver;
+import com.thoughtworks.xstream.io.xml.XppDriver;
 
+/**
+ * A deserializer of XML produced by {@link XStreamSerializer}. Once configured,
+ * an instance can be shared between threads, reusing XStream setup across
+ * calls.
+ */
 public class XStreamDeserializer extends BaseDeserializer {
 
 	static final Log logger = LogFactory.getLog(XStreamDeserializer.class);
 
+	/**
+	 * The name of the document root element of documents with multiple root
+	 * objects.
+	 */
+	static final String ROOTS_NODE = "object-stream";
+
+	/**
+	 * The name of the element that ends delta exports, holding the watermark
+	 * of the next export. It is skipped when reading root objects.
+	 */
+	static final String WATERMARK_NODE = "watermark";
+
+	static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+	protected boolean streaming = true;
+	protected int pipelineQueueSize;
+	protected int parallelism = 1;
+	protected int chunkSize = 100;
+	protected boolean atomicChunks = true;
+
+	private Map<ClassDescriptor, XStream> xstreams = new ConcurrentHashMap<ClassDescriptor, XStream>();
+
 	@SuppressWarnings("all")
 	@Override
 	public <T> T deserialize(ObjectContext context, Subgraph<T> subgraph, Reader in) {
 
 		long t0 = System.currentTimeMillis();
 
-		XStream xstream = createXStream(subgraph.getRootNode().getClassDescriptor());
-
-		int commitCountThreshold = isCommitting() ? getCommitCountThreshold() : 0;
-
-		xstream.registerConverter(new PersistentDeserializeConverter(subgraph.getRootNode(), context, commitCountThreshold));
-		xstream.registerConverter(new ObjectIdConverter(context.getEntityResolver()));
+		XStream xstream = getXStream(subgraph);
+		DeserializationState state = createState(context, subgraph);
+		DataHolder dataHolder = PersistentDeserializeConverter.newDataHolder(xstream, state);
 
 		T object;
 
 		if (isCommitting()) {
-			object = (T) deserializeInTransaction(context, xstream, in);
+			object = (T) deserializeInTransaction(context, xstream, dataHolder, in);
 		} else {
-			object = (T) deserialize(xstream, in);
+			object = (T) deserialize(xstream, dataHolder, in);
 		}
 
 		long t1 = System.currentTimeMillis();
 		logger.info("Deserialized in " + (t1 - t0) + " ms.");
 
+		state.referenceLookup.logSummary();
+
 		return object;
 	}
 
-	protected Object deserializeInTransaction(ObjectContext context, XStream xstream, Reader in) {
+	/**
+	 * Returns an iterator over the root objects of a document whose root
+	 * element contains root objects as its children, same as the
+	 * "object-stream" produced by XStream object streams. Roots are
+	 * deserialized one at a time as the iterator advances, so documents with
+	 * any number of roots can be processed in one pass.
+	 * <p>
+	 * In "committing" mode objects are committed in batches per
+	 * "commitCountThreshold", and the last batch is committed once the iterator
+	 * is exhausted. Unlike
+	 * {@link #deserialize(ObjectContext, Subgraph, Reader)}, the commits are
+	 * not wrapped in a single transaction, as the caller controls the pace of
+	 * iteration.
+	 * <p>
+	 * The returned iterator implements {@link java.io.Closeable}. Callers
+	 * that stop before it is exhausted must close it to release the reader,
+	 * and in pipelined mode the parser thread.
+	 */
+	@Override
+	public <T> Iterator<T> deserializeIterator(ObjectContext context, Subgraph<T> subgraph, Reader in) {
+		XStream xstream = getXStream(subgraph);
+		DataHolder dataHolder = PersistentDeserializeConverter.newDataHolder(xstream, createState(context, subgraph));
+		return new DeserializingIterator<T>(xstream, dataHolder, createReader(in), isCommitting() ? context : null);
+	}
+
+	/**
+	 * Deserializes a document with multiple independent root objects, splitting
+	 * it into chunks of roots that are deserialized in parallel, each worker
+	 * thread using its own ObjectContext created by the factory. The document
+	 * root element contains root objects as its children, same as the
+	 * "object-stream" produced by XStream object streams. Returns the number of
+	 * deserialized root objects.
+	 * <p>
+	 * Depending on the "atomicChunks" setting, each chunk is committed in its
+	 * own transaction, or all chunks are committed together in a single
+	 * transaction on the calling thread after all of them are deserialized.
+	 * On failure {@link ParallelDeserializationException} is
+	 * thrown, listing failed chunks ordered by their position in the document.
+	 */
+	public <T> int deserializeInParallel(ObjectContextFactory contextFactory, Subgraph<T> subgraph, Reader in) {
+
+		if (!isCommitting()) {
+			throw new IllegalStateException("Parallel deserialization only works in 'committing' mode");
+		}
+
+		long t0 = System.currentTimeMillis();
+
+		int count = new ParallelDeserialization(this, contextFactory, subgraph).run(in);
+
+		long t1 = System.currentTimeMillis();
+		logger.info("Deserialized " + count + " roots in " + (t1 - t0) + " ms.");
+
+		return count;
+	}
+
+	/**
+	 * Deserializes a UTF-8 encoded document read from the stream, which may
+	 * be gzipped, as written by {@link XStreamSerializer} in "compressing"
+	 * mode. Compression is detected from the stream header.
+	 */
+	@Override
+	public <T> T deserialize(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+		return deserialize(context, subgraph, openReader(in));
+	}
+
+	/**
+	 * Same as {@link #deserializeIterator(ObjectContext, Subgraph, Reader)},
+	 * reading a UTF-8 encoded document from the stream, which may be gzipped.
+	 */
+	@Override
+	public <T> Iterator<T> deserializeIterator(ObjectContext context, Subgraph<T> subgraph, InputStream in) {
+		return deserializeIterator(context, subgraph, openReader(in));
+	}
+
+	/**
+	 * Same as
+	 * {@link #deserializeInParallel(ObjectContextFactory, Subgraph, Reader)},
+	 * reading a UTF-8 encoded document from the stream, which may be gzipped.
+	 */
+	public <T> int deserializeInParallel(ObjectContextFactory contextFactory, Subgraph<T> subgraph, InputStream in) {
+		return deserializeInParallel(contextFactory, subgraph, openReader(in));
+	}
+
+	/**
+	 * Returns a reader of the stream, decompressing it if it starts with the
+	 * gzip magic number. Multi-member gzip streams are read as one, until the
+	 * end of the stream.
+	 */
+	Reader openReader(InputStream in) {
+
+		try {
+			BufferedInputStream buffered = new BufferedInputStream(in, INPUT_BUFFER_SIZE);
+
+			buffered.mark(2);
+			int b1 = buffered.read();
+			int b2 = buffered.read();
+			buffered.reset();
+
+			InputStream data = b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8)
+					? new MultiMemberGzipInputStream(buffered, INPUT_BUFFER_SIZE)
+					: buffered;
+
+			return new InputStreamReader(data, "UTF-8");
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error reading input", e);
+		}
+	}
+
+	DeserializationState createState(ObjectContext context, Subgraph<?> subgraph) {
+		int commitCountThreshold = isCommitting() ? getCommitCountThreshold() : 0;
+		return new DeserializationState(subgraph.getRootNode(), context, commitCountThreshold,
+				getReferenceBatchSize(), getReferenceCacheSize(), isEvictingCommittedObjects());
+	}
+
+	/**
+	 * Returns a configured XStream for the subgraph root entity, creating it
+	 * on first access. As converters keep no per-run state, XStream instances
+	 * are shared by all subgraphs with the same root, and by concurrent runs.
+	 */
+	XStream getXStream(Subgraph<?> subgraph) {
+		ClassDescriptor rootDescriptor = subgraph.getRootNode().getClassDescriptor();
+
+		XStream xstream = xstreams.get(rootDescriptor);
+		if (xstream == null) {
+			xstream = createXStream(rootDescriptor);
+			xstream.registerConverter(new PersistentDeserializeConverter());
+			xstream.registerConverter(new ObjectIdConverter());
+
+			// a concurrent run may have created it as well, and either one
+			// will do
+			xstreams.put(rootDescriptor, xstream);
+		}
+
+		return xstream;
+	}
+
+	/**
+	 * Deserializes all children of the current reader node as root objects.
+	 * Per-run state of the converters is shared between the roots, so commit
+	 * batches span multiple roots.
+	 */
+	int unmarshalRoots(XStream xstream, DataHolder dataHolder, HierarchicalStreamReader reader) {
+
+		int count = 0;
+		while (reader.hasMoreChildren()) {
+			reader.moveDown();
+
+			if (!WATERMARK_NODE.equals(reader.getNodeName())) {
+				xstream.unmarshal(reader, null, dataHolder);
+				count++;
+			}
+
+			reader.moveUp();
+		}
+
+		return count;
+	}
+
+	protected Object deserializeInTransaction(ObjectContext context, XStream xstream, DataHolder dataHolder,
+			Reader in) {
 
 		// since multiple intermediate context commits are possible, wrap them
 		// in a manual transaction to allow for atomic rollback
@@ -75,7 +273,7 @@ public class XStreamDeserializer extends BaseDeserializer {
 		Transaction.bindThreadTransaction(tx);
 
 		try {
-			Object result = deserialize(xstream, in);
+			Object result = deserialize(xstream, dataHolder, in);
 			context.commitChanges();
 			tx.commit();
 			return result;
@@ -95,23 +293,133 @@ public class XStreamDeserializer extends BaseDeserializer {
 		}
 	}
 
-	protected Object deserialize(XStream xstream, Reader in) {
-		return xstream.fromXML(in);
+	protected Object deserialize(XStream xstream, DataHolder dataHolder, Reader in) {
+
+		HierarchicalStreamReader reader = createReader(in);
+		try {
+			return xstream.unmarshal(reader, null, dataHolder);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Creates a reader positioned at the document root element.
+	 */
+	protected HierarchicalStreamReader createReader(Reader in) {
+		return pipelineQueueSize > 0 ? new PipelinedXppReader(in, pipelineQueueSize) : createDriver()
+				.createReader(in);
 	}
 
 	protected XStream createXStream(ClassDescriptor rootDescriptor) {
-		XStream xstream = new XStream(new DomDriver());
+		XStream xstream = new XStream(createDriver());
 
 		// this is required to get a real streaming API an release all
 		// serialized objects...
 		xstream.setMode(XStream.NO_REFERENCES);
 
 		((CompositeClassLoader) xstream.getClassLoader()).add(rootDescriptor.getObjectClass().getClassLoader());
-		// TODO: we need to implement our own algorithm for object cycle
-		// detection... XStream also supports Immutable classes. we may classify
-		// objects according to their participation in a cycle.
+		// "idref" back-references, present only if the serializer was
+		// "sharingObjects", are resolved by the converters per root, see
+		// SharedObjects; otherwise each occurrence is a new object
 
 		xstream.alias(rootDescriptor.getEntity().getName(), rootDescriptor.getObjectClass());
 		return xstream;
 	}
+
+	/**
+	 * Creates a driver for reading XML. In streaming mode this is an XPP pull
+	 * parser driver that hands nodes to the converters as they are read, so
+	 * heap use depends on the subgraph depth and the commit batch size, and
+	 * not on the size of the document.
+	 */
+	protected HierarchicalStreamDriver createDriver() {
+		return streaming ? new XppDriver() : new DomDriver();
+	}
+
+	/**
+	 * Returns true if deserializer reads XML with a streaming pull parser.
+	 * True is the default.
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Sets whether deserializer should read XML with a streaming pull parser,
+	 * or build an in-memory DOM of the entire document before processing it.
+	 * The latter is only practical for small documents.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Returns the capacity of the queue between the parser thread and the
+	 * deserializing thread, in chunks of parser events. The default is 0,
+	 * meaning that XML is parsed on the deserializing thread.
+	 */
+	public int getPipelineQueueSize() {
+		return pipelineQueueSize;
+	}
+
+	/**
+	 * Sets the capacity of the queue between the parser thread and the
+	 * deserializing thread, in chunks of parser events. When it is greater
+	 * than zero, XML is parsed on a separate thread, so that parsing overlaps
+	 * with creating and committing objects. Objects are still created and
+	 * committed on the calling thread, within the same transaction, as
+	 * ObjectContext is not thread-safe. This setting overrides the "streaming"
+	 * flag.
+	 */
+	public void setPipelineQueueSize(int pipelineQueueSize) {
+		this.pipelineQueueSize = pipelineQueueSize;
+	}
+
+	/**
+	 * Returns the number of worker threads used by
+	 * {@link #deserializeInParallel(ObjectContextFactory, Subgraph, Reader)}.
+	 * The default is 1.
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Returns the max number of root objects in a chunk processed by a single
+	 * worker during parallel deserialization. The default is 100.
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Returns true if each chunk of a parallel deserialization is committed in
+	 * its own transaction, so that a failed chunk does not affect the others.
+	 * True is the default.
+	 */
+	public boolean isAtomicChunks() {
+		return atomicChunks;
+	}
+
+	/**
+	 * Sets whether each chunk of a parallel deserialization is committed in
+	 * its own transaction, or all chunks are committed or rolled back
+	 * together. In the latter case workers only deserialize objects into their
+	 * contexts, and nothing is written to the database until all chunks are
+	 * deserialized, when all worker contexts are committed in a single
+	 * transaction. So the whole document must fit in memory, and intermediate
+	 * commits are disabled.
+	 */
+	public void setAtomicChunks(boolean atomicChunks) {
+		this.atomicChunks = atomicChunks;
+	}
 }
@@ -18,46 +18,878 @@
  ****************************************************************/
 package org.apache.cayenne.serialization.xstream;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.Persistent;
+import org.apache.cayenne.ResultIterator;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.exp.Expression;
+import org.apache.cayenne.map.DbAttribute;
+import org.apache.cayenne.query.Query;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.reflect.AttributeProperty;
 import org.apache.cayenne.reflect.ClassDescriptor;
 import org.apache.cayenne.serialization.BaseSerializer;
+import org.apache.cayenne.serialization.ResultObjectIterator;
 import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.DomDriver;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.converters.SingleValueConverter;
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyReplacer;
+import com.thoughtworks.xstream.io.xml.XppDriver;
 
+/**
+ * A serializer that writes subgraphs as XML. Once configured, an instance can
+ * be shared between threads, reusing XStream setup across calls.
+ * <p>
+ * Fragment caches of subgraph nodes (see
+ * {@link org.apache.cayenne.serialization.SubgraphBuilder#setFragmentCache(org.apache.cayenne.serialization.FragmentCache)})
+ * are used when compact XML is written to an OutputStream or a
+ * WritableByteChannel, and are ignored otherwise, as well as in
+ * "sharingObjects" mode.
+ */
 public class XStreamSerializer extends BaseSerializer {
 
+	static final Log logger = LogFactory.getLog(XStreamSerializer.class);
+
 	protected boolean creatingCompactXML;
+	protected int prefetchWindowSize;
+	protected boolean mergeJoining;
+	protected boolean serializingDataRows;
+	protected boolean sharingObjects;
+	protected int pipelineThreads;
+	protected int pipelineReadAhead = 2;
+
+	protected int outputBufferSize = 256 * 1024;
+	protected boolean backgroundWriting;
+	protected boolean compressing;
+	protected int compressionThreads = 1;
+	protected int compressionBlockSize = 1024 * 1024;
+	protected long maxPartSize;
+	protected int maxPartRoots;
+
+	private Map<ClassDescriptor, XStream> xstreams = new ConcurrentHashMap<ClassDescriptor, XStream>();
+
+	// UTF-8 encoded element and attribute names, shared by all runs
+	private Map<String, byte[]> names = new ConcurrentHashMap<String, byte[]>();
+	private volatile Utf8Output.BufferPool bufferPool;
 
 	@Override
 	public <T> void serialize(T object, Subgraph<T> subgraph, Writer out) {
+		marshal(object, subgraph, createDriver().createWriter(out));
+	}
+
+	/**
+	 * Serializes the object as UTF-8 encoded XML written to the stream. The
+	 * stream is not closed.
+	 */
+	@Override
+	public <T> void serialize(T object, Subgraph<T> subgraph, OutputStream out) {
+		serialize(object, subgraph, Channels.newChannel(out));
+	}
+
+	/**
+	 * Serializes the object as UTF-8 encoded XML written to the channel. The
+	 * channel is not closed.
+	 */
+	public <T> void serialize(T object, Subgraph<T> subgraph, WritableByteChannel out) {
+
+		Utf8Output output = createOutput(out);
+		try {
+			marshal(object, subgraph, createWriter(output, subgraph));
+			output.finish();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		} finally {
+			output.release();
+		}
+	}
+
+	private void marshal(Object object, Subgraph<?> subgraph, HierarchicalStreamWriter writer) {
+
+		XStream xstream = getXStream(subgraph);
+
+		xstream.marshal(object, writer, PersistentSerializeConverter.newDataHolder(xstream, createState(subgraph)));
+		writer.flush();
+	}
+
+	/**
+	 * Serializes all root objects returned by the iterator as children of a
+	 * single "object-stream" element, the format understood by
+	 * {@link XStreamDeserializer#deserializeIterator(ObjectContext, Subgraph, java.io.Reader)}
+	 * and XStream object streams.
+	 */
+	@Override
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, Writer out) {
+		marshalRoots(roots, subgraph, createDriver().createWriter(out));
+	}
+
+	/**
+	 * Serializes root objects returned by the iterator as UTF-8 encoded XML
+	 * written to the stream. The stream is not closed.
+	 */
+	@Override
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, OutputStream out) {
+		serialize(roots, subgraph, Channels.newChannel(out));
+	}
+
+	/**
+	 * Serializes root objects returned by the iterator as UTF-8 encoded XML
+	 * written to the channel. The channel is not closed.
+	 */
+	public <T> void serialize(Iterator<? extends T> roots, Subgraph<T> subgraph, WritableByteChannel out) {
+
+		Utf8Output output = createOutput(out);
+		try {
+			marshalRoots(roots, subgraph, createWriter(output, subgraph));
+			output.finish();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		} finally {
+			output.release();
+		}
+	}
+
+	private void marshalRoots(Iterator<?> roots, Subgraph<?> subgraph, HierarchicalStreamWriter writer) {
+
+		XStream xstream = getXStream(subgraph);
 
-		// TODO: make sure all the converters are stateless... then we can cache
-		// xstream instances by subgraph and reuse them
-		XStream xstream = createXStream(subgraph.getRootNode().getClassDescriptor());
-		xstream.registerConverter(new PersistentSerializeConverter(subgraph, statementFetchSize));
-		xstream.registerConverter(new ObjectIdConverter(null));
+		// share converter state between the roots
+		DataHolder dataHolder = PersistentSerializeConverter.newDataHolder(xstream, createState(subgraph));
 
-		xstream.toXML(object, out);
+		marshalRoots(xstream, dataHolder, roots, subgraph, writer);
+	}
+
+	private void marshalRoots(XStream xstream, DataHolder dataHolder, Iterator<?> roots, Subgraph<?> subgraph,
+			HierarchicalStreamWriter writer) {
+
+		SerializationState state = PersistentSerializeConverter.getState(dataHolder);
+		ToManyPrefetcher prefetcher = state.prefetcher;
+		SubgraphNode rootNode = subgraph.getRootNode();
+
+		writer.startNode(XStreamDeserializer.ROOTS_NODE);
+
+		if (pipelineThreads > 0 && state.mergeJoin == null && ToManyPrefetcher.hasBatchableChildren(rootNode)) {
+
+			// fetch children of the upcoming roots while writing the current
+			// ones
+			PrefetchPipeline pipeline = new PrefetchPipeline(roots, rootNode, prefetcher, Math.max(
+					prefetchWindowSize, 1), pipelineThreads, pipelineReadAhead);
+
+			try {
+				while (pipeline.hasNext()) {
+					for (Persistent root : pipeline.next()) {
+						xstream.marshal(root, writer, dataHolder);
+					}
+				}
+			} finally {
+				pipeline.close();
+			}
+		} else if (prefetcher.isPrefetching(rootNode)) {
+
+			// fetch children of a window of roots at once
+			List<Persistent> window = new ArrayList<Persistent>(prefetchWindowSize);
+			List<ObjectId> windowIds = new ArrayList<ObjectId>(prefetchWindowSize);
+			while (roots.hasNext()) {
+				Persistent root = (Persistent) roots.next();
+				window.add(root);
+				windowIds.add(root.getObjectId());
+
+				if (window.size() == prefetchWindowSize || !roots.hasNext()) {
+					prefetcher.prefetch((DataContext) root.getObjectContext(), rootNode, window, windowIds);
+
+					for (Persistent windowRoot : window) {
+						xstream.marshal(windowRoot, writer, dataHolder);
+					}
+
+					window.clear();
+					windowIds.clear();
+				}
+			}
+		} else {
+			while (roots.hasNext()) {
+				xstream.marshal(roots.next(), writer, dataHolder);
+			}
+		}
+
+		// delta exports end with the watermark of the next export
+		Object watermark = state.trackingWatermark ? state.getNextWatermark() : null;
+		if (watermark != null) {
+			// watermark attributes are plain values with single value
+			// converters, so no marshalling context is needed
+			Converter converter = xstream.getConverterLookup().lookupConverterForType(watermark.getClass());
+			if (!(converter instanceof SingleValueConverter)) {
+				throw new CayenneRuntimeException("Unsupported watermark type: " + watermark.getClass().getName());
+			}
+
+			writer.startNode(XStreamDeserializer.WATERMARK_NODE);
+			writer.setValue(((SingleValueConverter) converter).toString(watermark));
+			writer.endNode();
+		}
+
+		writer.endNode();
+		writer.flush();
+	}
+
+	/**
+	 * Serializes all root objects fetched by the query into a single document.
+	 * Roots are fetched via a ResultIterator, and if the query is a
+	 * SelectQuery, the serializer "statementFetchSize" is applied to a copy
+	 * of it.
+	 */
+	@Override
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, Writer out) {
+		marshalQuery(context, rootsQuery, subgraph, createDriver().createWriter(out));
+	}
+
+	/**
+	 * Serializes root objects fetched by the query as UTF-8 encoded XML
+	 * written to the stream. The stream is not closed.
+	 */
+	@Override
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, OutputStream out) {
+		serialize(context, rootsQuery, subgraph, Channels.newChannel(out));
+	}
+
+	/**
+	 * Serializes root objects fetched by the query as UTF-8 encoded XML
+	 * written to the channel. The channel is not closed.
+	 */
+	public <T> void serialize(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph, WritableByteChannel out) {
+
+		Utf8Output output = createOutput(out);
+		try {
+			marshalQuery(context, rootsQuery, subgraph, createWriter(output, subgraph));
+			output.finish();
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		} finally {
+			output.release();
+		}
+	}
+
+	/**
+	 * Serializes root objects fetched by the query whose subtree changed since
+	 * the watermark of the previous export, e.g. for incremental replication.
+	 * Changes are detected by watermark attributes of the subgraph nodes (see
+	 * {@link org.apache.cayenne.serialization.SubgraphBuilder#setWatermarkAttribute(String)}),
+	 * which are pushed down into the roots query, as well as into the queries
+	 * of to-many relationships, so that unchanged branches are skipped as
+	 * well. To-one relationships and attributes of the written objects are
+	 * written in full. The document ends with a "watermark" element holding
+	 * the greatest watermark attribute value written, which is also returned
+	 * to pass to the next export. A null watermark exports all roots. As a
+	 * single watermark is kept for all nodes, watermark attributes of several
+	 * nodes must be timestamps of the same type.
+	 * <p>
+	 * Nodes are not merge-joined in delta exports, and fragment caches are not
+	 * used. Children fetched by queries of serialization callbacks are not
+	 * filtered.
+	 */
+	public <T> Object serializeChanges(ObjectContext context, SelectQuery rootsQuery, Subgraph<T> subgraph,
+			Object since, Writer out) {
+		return marshalChanges(context, rootsQuery, subgraph, since, createDriver().createWriter(out));
+	}
+
+	/**
+	 * Serializes root objects fetched by the query whose subtree changed since
+	 * the watermark as UTF-8 encoded XML written to the stream, returning the
+	 * watermark of the next export. The stream is not closed.
+	 */
+	public <T> Object serializeChanges(ObjectContext context, SelectQuery rootsQuery, Subgraph<T> subgraph,
+			Object since, OutputStream out) {
+		return serializeChanges(context, rootsQuery, subgraph, since, Channels.newChannel(out));
+	}
+
+	/**
+	 * Serializes root objects fetched by the query whose subtree changed since
+	 * the watermark as UTF-8 encoded XML written to the channel, returning the
+	 * watermark of the next export. The channel is not closed.
+	 */
+	public <T> Object serializeChanges(ObjectContext context, SelectQuery rootsQuery, Subgraph<T> subgraph,
+			Object since, WritableByteChannel out) {
+
+		Utf8Output output = createOutput(out);
+		try {
+			Object watermark = marshalChanges(context, rootsQuery, subgraph, since, createWriter(output, subgraph));
+			output.finish();
+			return watermark;
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing output", e);
+		} finally {
+			output.release();
+		}
+	}
+
+	private Object marshalChanges(ObjectContext context, SelectQuery rootsQuery, Subgraph<?> subgraph,
+			Object since, HierarchicalStreamWriter writer) {
+
+		SubgraphNode rootNode = subgraph.getRootNode();
+		if (!ChangeQualifier.hasWatermarks(rootNode)) {
+			throw new IllegalArgumentException("Subgraph has no watermark attributes");
+		}
+
+		SelectQuery changedRootsQuery = rootsQuery;
+		Expression changed = ChangeQualifier.subtreeChanged(rootNode, since);
+		if (changed != null) {
+
+			// a copy, so that the caller query is left intact
+			changedRootsQuery = rootsQuery.queryWithParameters(Collections.<String, Object> emptyMap());
+			changedRootsQuery.andQualifier(changed);
+			changedRootsQuery.setDistinct(rootsQuery.isDistinct() || ChangeQualifier.isJoining(rootNode));
+		}
+
+		SerializationState state = createState(subgraph);
+		state.trackWatermark(since);
+
+		marshalQuery(context, changedRootsQuery, subgraph, state, documentWriter(subgraph, writer));
+		return state.getNextWatermark();
+	}
+
+	/**
+	 * Serializes root objects fetched by the query into a series of part
+	 * files in the directory, each being a complete document of the same
+	 * format as written by
+	 * {@link #serialize(ObjectContext, Query, Subgraph, OutputStream)}. A new
+	 * part is started once the current one has "maxPartRoots" roots or
+	 * "maxPartSize" bytes, always on a root boundary (see
+	 * {@link #setMaxPartSize(long)} on how far a part may exceed the size).
+	 * Parts are named after the name prefix, e.g. "export-00001.xml", or
+	 * "export-00001.xml.gz" if compressing, and are listed with their root
+	 * counts, sizes and root PK ranges in a manifest, "export-manifest.xml",
+	 * written last. Importers can then process the parts in parallel, and
+	 * retry a single part after a failure.
+	 */
+	public <T> PartManifest serializeParts(ObjectContext context, Query rootsQuery, Subgraph<T> subgraph,
+			File directory, String name) {
+
+		PartManifest manifest = new PartManifest();
+		marshalQuery(context, rootsQuery, subgraph, partWriter(subgraph, directory, name, manifest));
+
+		try {
+			manifest.write(new File(directory, name + "-manifest.xml"));
+		} catch (IOException e) {
+			throw new CayenneRuntimeException("Error writing manifest", e);
+		}
+
+		return manifest;
+	}
+
+	private RootsWriter documentWriter(final Subgraph<?> subgraph, final HierarchicalStreamWriter writer) {
+		return new RootsWriter() {
+
+			public void write(XStream xstream, DataHolder dataHolder, Iterator<?> roots) {
+				marshalRoots(xstream, dataHolder, roots, subgraph, writer);
+			}
+		};
+	}
+
+	private RootsWriter partWriter(final Subgraph<?> subgraph, final File directory, final String name,
+			final PartManifest manifest) {
+		return new RootsWriter() {
+
+			public void write(XStream xstream, DataHolder dataHolder, Iterator<?> roots) throws IOException {
+
+				// roots are shared by the parts, and so is the converter
+				// state, including merge join cursors
+				while (roots.hasNext()) {
+					String file = name + "-" + String.format("%05d", manifest.getParts().size() + 1)
+							+ (compressing ? ".xml.gz" : ".xml");
+					FileOutputStream out = new FileOutputStream(new File(directory, file));
+
+					try {
+						Utf8Output output = createOutput(out.getChannel());
+						try {
+							PartRoots partRoots = new PartRoots(roots, output, subgraph.getRootNode());
+							marshalRoots(xstream, dataHolder, partRoots, subgraph, createWriter(output, subgraph));
+							output.finish();
+
+							manifest.addPart(file, partRoots.count, out.getChannel().size(), partRoots.minId,
+									partRoots.maxId);
+						} finally {
+							output.release();
+						}
+					} finally {
+						out.close();
+					}
+				}
+			}
+		};
+	}
+
+	private void marshalQuery(ObjectContext context, Query rootsQuery, Subgraph<?> subgraph,
+			HierarchicalStreamWriter writer) {
+		marshalQuery(context, rootsQuery, subgraph, documentWriter(subgraph, writer));
+	}
+
+	private void marshalQuery(ObjectContext context, Query rootsQuery, Subgraph<?> subgraph, RootsWriter rootsWriter) {
+
+		if (mergeJoining && rootsQuery instanceof SelectQuery) {
+			serializeMergeJoined((DataContext) context, (SelectQuery) rootsQuery, subgraph, rootsWriter);
+			return;
+		}
+
+		marshalQuery(context, rootsQuery, subgraph, createState(subgraph), rootsWriter);
+	}
+
+	private void marshalQuery(ObjectContext context, Query rootsQuery, Subgraph<?> subgraph,
+			SerializationState state, RootsWriter rootsWriter) {
+
+		DataContext dataContext = (DataContext) context;
+
+		try {
+			ResultIterator it = dataContext.performIteratedQuery(withStatementFetchSize(rootsQuery));
+
+			try {
+				XStream xstream = getXStream(subgraph);
+				rootsWriter.write(xstream, PersistentSerializeConverter.newDataHolder(xstream, state),
+						new ResultObjectIterator(it, dataContext));
+			} finally {
+				it.close();
+			}
+		} catch (CayenneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error serializing roots", e);
+		}
+	}
+
+	private void serializeMergeJoined(DataContext context, SelectQuery rootsQuery, Subgraph<?> subgraph,
+			RootsWriter rootsWriter) {
+
+		MergeJoin mergeJoin = new MergeJoin(context, subgraph.getRootNode(), rootsQuery.getQualifier(),
+				statementFetchSize, !serializingDataRows);
+
+		// prefetching is redundant for merge-joined nodes
+		SerializationState state = new SerializationState(subgraph.getRootNode(), statementFetchSize, 0,
+				serializingDataRows);
+		state.mergeJoin = mergeJoin;
+
+		if (sharingObjects) {
+			state.sharedObjects = new SharedObjects();
+		}
+
+		XStream xstream = getXStream(subgraph);
+		DataHolder dataHolder = PersistentSerializeConverter.newDataHolder(xstream, state);
+
+		try {
+			ResultIterator it = context.performIteratedQuery(mergeJoin.getRootQuery());
+
+			try {
+				rootsWriter.write(xstream, dataHolder, new ResultObjectIterator(it, context));
+			} finally {
+				it.close();
+			}
+
+			mergeJoin.finish();
+		} catch (CayenneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CayenneRuntimeException("Error serializing roots", e);
+		} finally {
+			mergeJoin.close();
+		}
+	}
+
+	Utf8Output createOutput(WritableByteChannel out) {
+
+		Utf8Output.BufferPool pool = bufferPool;
+		if (pool == null || pool.getBufferSize() != outputBufferSize) {
+			pool = new Utf8Output.BufferPool(outputBufferSize);
+			bufferPool = pool;
+		}
+
+		GzipChannel compressor = null;
+		if (compressing) {
+			try {
+				compressor = new GzipChannel(out, compressionThreads, compressionBlockSize);
+			} catch (IOException e) {
+				throw new CayenneRuntimeException("Error writing output", e);
+			}
+		}
+
+		return new Utf8Output(out, compressor, pool, backgroundWriting);
+	}
+
+	HierarchicalStreamWriter createWriter(Utf8Output output, Subgraph<?> subgraph) {
+
+		if (!creatingCompactXML) {
+			return createDriver().createWriter(new Utf8OutputWriter(output));
+		}
+
+		addNames(subgraph.getRootNode());
+		return new CompactUtf8Writer(output, names);
+	}
+
+	/**
+	 * Encodes element and attribute names of the node and its children ahead
+	 * of writing.
+	 */
+	private void addNames(SubgraphNode node) {
+
+		addName(node.getClassDescriptor().getEntity().getName());
+
+		if (node.getIncomingProperty() != null) {
+			addName(node.getIncomingProperty().getName());
+		}
+
+		for (AttributeProperty property : node.getAttributeProperties()) {
+			addName(property.getName());
+		}
+
+		for (DbAttribute pk : node.getClassDescriptor().getEntity().getDbEntity().getPrimaryKeys()) {
+			addName(pk.getName());
+		}
+
+		for (SubgraphNode child : node.getChildren()) {
+			addNames(child);
+		}
+	}
+
+	private void addName(String name) {
+		if (!names.containsKey(name)) {
+			names.put(name, CompactUtf8Writer.bytes(new XmlFriendlyReplacer().escapeName(name)));
+		}
+	}
+
+	SerializationState createState(Subgraph<?> subgraph) {
+		SerializationState state = new SerializationState(subgraph.getRootNode(), statementFetchSize,
+				prefetchWindowSize, serializingDataRows);
+
+		if (sharingObjects) {
+			state.sharedObjects = new SharedObjects();
+		}
+
+		return state;
+	}
+
+	/**
+	 * Returns a configured XStream for the subgraph root entity, creating it
+	 * on first access. As converters keep no per-run state, XStream instances
+	 * are shared by all subgraphs with the same root, and by concurrent runs.
+	 */
+	XStream getXStream(Subgraph<?> subgraph) {
+		ClassDescriptor rootDescriptor = subgraph.getRootNode().getClassDescriptor();
+
+		XStream xstream = xstreams.get(rootDescriptor);
+		if (xstream == null) {
+			xstream = createXStream(rootDescriptor);
+			xstream.registerConverter(new PersistentSerializeConverter());
+			xstream.registerConverter(new ObjectIdConverter());
+
+			// a concurrent run may have created it as well, and either one
+			// will do
+			xstreams.put(rootDescriptor, xstream);
+		}
+
+		return xstream;
 	}
 
 	protected XStream createXStream(ClassDescriptor rootDescriptor) {
-		XStream xstream = new XStream(new DomDriver());
+		XStream xstream = new XStream(createDriver());
 
 		// this is required to get a real streaming API an release all
 		// serialized objects...
 		xstream.setMode(XStream.NO_REFERENCES);
 
-		// TODO: we need to implement our own algorithm for object cycle
-		// detection... XStream also supports Immutable classes. we may classify
-		// objects according to their participation in a cycle.
+		// by default an object reached more than once is written in full
+		// each time, and cycles end with the subgraph definition; only with
+		// "sharingObjects" set, SharedObjects writes repeated objects of a
+		// root as idrefs, without the cost of XStream reference tracking,
+		// which keeps every marshalled object in memory
 
 		xstream.alias(rootDescriptor.getEntity().getName(), rootDescriptor.getObjectClass());
 		return xstream;
 	}
 
+	/**
+	 * Creates a driver for writing XML. Both compact and pretty-printing
+	 * writers stream directly to the output without building any intermediate
+	 * tree structures.
+	 */
+	protected HierarchicalStreamDriver createDriver() {
+		return creatingCompactXML ? new CompactXPPDriver() : new XppDriver();
+	}
+
+	/**
+	 * Returns the number of sibling objects whose to-many children are fetched
+	 * with a single query. The default is 0, meaning that children are fetched
+	 * with a query per parent object.
+	 */
+	public int getPrefetchWindowSize() {
+		return prefetchWindowSize;
+	}
+
+	/**
+	 * Sets the number of sibling objects whose to-many children are fetched
+	 * with a single query. Children of the whole window are kept in memory
+	 * until the window is serialized, so the window size bounds memory use,
+	 * while larger windows mean fewer queries. Children of nodes with
+	 * serialization callbacks and of flattened or compound relationships are
+	 * still fetched per parent.
+	 */
+	public void setPrefetchWindowSize(int prefetchWindowSize) {
+		this.prefetchWindowSize = prefetchWindowSize;
+	}
+
+	/**
+	 * Returns true if query-based serialization reads to-many nodes with one
+	 * ordered query per node, merge-joining them with their parents. False is
+	 * the default.
+	 */
+	public boolean isMergeJoining() {
+		return mergeJoining;
+	}
+
+	/**
+	 * Sets whether serialization of roots fetched by a SelectQuery reads each
+	 * to-many node of the subgraph with a single streaming query ordered by
+	 * parent keys, instead of a query per parent object. This suits full
+	 * exports of deep subgraphs. Roots are serialized in PK order, ignoring the
+	 * query orderings. Each node keeps a cursor open during serialization, so
+	 * a connection pool must have a connection per to-many node plus one. This
+	 * setting takes precedence over "prefetchWindowSize".
+	 */
+	public void setMergeJoining(boolean mergeJoining) {
+		this.mergeJoining = mergeJoining;
+	}
+
+	/**
+	 * Returns true if objects below the root are serialized straight from
+	 * fetched DataRows, without creating persistent objects. False is the
+	 * default.
+	 */
+	public boolean isSerializingDataRows() {
+		return serializingDataRows;
+	}
+
+	/**
+	 * Sets whether objects below the root are serialized straight from fetched
+	 * DataRows, without creating persistent objects and registering them in
+	 * the context, so the context does not grow during large exports. Root
+	 * objects are serialized as usual. To-one relationships are resolved from
+	 * the FKs stored in the DataRows, and serialization callbacks receive
+	 * DataRows as source objects. Subgraphs with flattened attributes or
+	 * flattened to-one relationships below the root can't be serialized in
+	 * this mode.
+	 */
+	public void setSerializingDataRows(boolean serializingDataRows) {
+		this.serializingDataRows = serializingDataRows;
+	}
+
+	/**
+	 * Returns true if by-value objects reached more than once under the same
+	 * root are written in full only once. False is the default.
+	 */
+	public boolean isSharingObjects() {
+		return sharingObjects;
+	}
+
+	/**
+	 * Sets whether by-value objects reached more than once under the same
+	 * root, e.g. a parent shared by several children of a to-many, are
+	 * written in full only once. The first occurrence gets a local "id"
+	 * attribute, and later occurrences are written as empty elements with an
+	 * "idref" attribute, which {@link XStreamDeserializer} resolves to the same
+	 * new object instead of creating duplicates. The same applies to cycles,
+	 * e.g. a path that leads back to the root via a reverse relationship. Ids
+	 * are scoped to a single root, so objects shared between roots are still
+	 * written once per root.
+	 */
+	public void setSharingObjects(boolean sharingObjects) {
+		this.sharingObjects = sharingObjects;
+	}
+
+	/**
+	 * Returns the number of worker threads fetching to-many children of root
+	 * objects ahead of writing. The default is 0, meaning that children are
+	 * fetched on the serializing thread.
+	 */
+	public int getPipelineThreads() {
+		return pipelineThreads;
+	}
+
+	/**
+	 * Sets the number of worker threads fetching to-many children of upcoming
+	 * root objects while the current ones are written, so that database
+	 * latency overlaps with output I/O. Roots are handed to workers in windows
+	 * of "prefetchWindowSize" roots, or one by one if the window size is 0.
+	 * The document is identical to the one written without pipelining.
+	 * Children below the first level, and children not fetched in batches per
+	 * {@link #setPrefetchWindowSize(int)}, are still fetched on the
+	 * serializing thread. Each worker uses a connection of its own. This
+	 * setting is ignored when merge-joining.
+	 */
+	public void setPipelineThreads(int pipelineThreads) {
+		this.pipelineThreads = pipelineThreads;
+	}
+
+	/**
+	 * Returns the max number of root windows fetched ahead of writing when
+	 * pipelining. The default is 2.
+	 */
+	public int getPipelineReadAhead() {
+		return pipelineReadAhead;
+	}
+
+	/**
+	 * Sets the max number of root windows fetched ahead of writing when
+	 * pipelining. Roots and children of these windows are kept in memory
+	 * until written.
+	 */
+	public void setPipelineReadAhead(int pipelineReadAhead) {
+		this.pipelineReadAhead = pipelineReadAhead;
+	}
+
+	/**
+	 * Returns the size in bytes of the buffers used when writing to an
+	 * OutputStream or a WritableByteChannel. The default is 256K.
+	 */
+	public int getOutputBufferSize() {
+		return outputBufferSize;
+	}
+
+	/**
+	 * Sets the size in bytes of the direct buffers that XML is encoded into
+	 * when writing to an OutputStream or a WritableByteChannel. Buffers are
+	 * pooled and reused across calls.
+	 */
+	public void setOutputBufferSize(int outputBufferSize) {
+		this.outputBufferSize = outputBufferSize;
+	}
+
+	/**
+	 * Returns true if full output buffers are written to an OutputStream or a
+	 * WritableByteChannel by a background thread. False is the default.
+	 */
+	public boolean isBackgroundWriting() {
+		return backgroundWriting;
+	}
+
+	/**
+	 * Sets whether full output buffers are written to an OutputStream or a
+	 * WritableByteChannel by a background thread, so that encoding of the
+	 * next buffer overlaps with I/O. This doubles the buffer memory per call,
+	 * and has no effect on serialization to a Writer.
+	 */
+	public void setBackgroundWriting(boolean backgroundWriting) {
+		this.backgroundWriting = backgroundWriting;
+	}
+
+	/**
+	 * Returns true if output written to an OutputStream or a
+	 * WritableByteChannel is gzipped. False is the default.
+	 */
+	public boolean isCompressing() {
+		return compressing;
+	}
+
+	/**
+	 * Sets whether output written to an OutputStream or a WritableByteChannel
+	 * is gzipped on the fly, avoiding a separate compression pass.
+	 * {@link XStreamDeserializer} reads such output transparently.
+	 */
+	public void setCompressing(boolean compressing) {
+		this.compressing = compressing;
+	}
+
+	/**
+	 * Returns the number of threads compressing output. The default is 1.
+	 */
+	public int getCompressionThreads() {
+		return compressionThreads;
+	}
+
+	/**
+	 * Sets the number of threads compressing output. With more than one
+	 * thread, output is split in blocks of "compressionBlockSize" bytes that
+	 * are compressed in parallel into consecutive gzip members. Standard gzip
+	 * tools and GZIPInputStream read them as a single stream.
+	 */
+	public void setCompressionThreads(int compressionThreads) {
+		this.compressionThreads = compressionThreads;
+	}
+
+	/**
+	 * Returns the size in bytes of uncompressed blocks compressed in
+	 * parallel. The default is 1M.
+	 */
+	public int getCompressionBlockSize() {
+		return compressionBlockSize;
+	}
+
+	/**
+	 * Sets the size in bytes of uncompressed blocks compressed in parallel.
+	 * Larger blocks compress better, while up to twice the number of threads
+	 * blocks are kept in memory.
+	 */
+	public void setCompressionBlockSize(int compressionBlockSize) {
+		this.compressionBlockSize = compressionBlockSize;
+	}
+
+	/**
+	 * Returns the size in bytes of uncompressed XML after which part files are
+	 * rolled. The default is 0, meaning no size limit.
+	 */
+	public long getMaxPartSize() {
+		return maxPartSize;
+	}
+
+	/**
+	 * Sets the size in bytes of uncompressed XML after which
+	 * {@link #serializeParts(ObjectContext, Query, Subgraph, File, String)}
+	 * starts a new part. As parts are only split between roots, a part
+	 * exceeds the limit by up to a root, or by up to a prefetch window of
+	 * roots when prefetching. With "pipelineThreads" set, roots are read
+	 * ahead of writing, and the size is checked before the roots read ahead
+	 * are written, so a part may exceed the limit by up to
+	 * "pipelineReadAhead" prefetch windows of roots.
+	 */
+	public void setMaxPartSize(long maxPartSize) {
+		this.maxPartSize = maxPartSize;
+	}
+
+	/**
+	 * Returns the max number of root objects per part file. The default is 0,
+	 * meaning no limit.
+	 */
+	public int getMaxPartRoots() {
+		return maxPartRoots;
+	}
+
+	/**
+	 * Sets the max number of root objects per part file written by
+	 * {@link #serializeParts(ObjectContext, Query, Subgraph, File, String)}.
+	 * Roots are counted as they are read, so the limit is exact also when
+	 * roots are read ahead of writing.
+	 */
+	public void setMaxPartRoots(int maxPartRoots) {
+		this.maxPartRoots = maxPartRoots;
+	}
+
 	public boolean isCreatingCompactXML() {
 		return creatingCompactXML;
 	}
@@ -68,4 +900,78 @@ public class XStreamSerializer extends BaseSerializer {
 	public void setCreatingCompactXML(boolean createCompactXML) {
 		this.creatingCompactXML = createCompactXML;
 	}
+
+	/**
+	 * Writes root objects of a query run, e.g. into a single document or into
+	 * a series of part files.
+	 */
+	private interface RootsWriter {
+
+		void write(XStream xstream, DataHolder dataHolder, Iterator<?> roots) throws IOException;
+	}
+
+	/**
+	 * Roots of a single part file, ending once the part is full, and keeping
+	 * track of the root PK range.
+	 */
+	private class PartRoots implements Iterator<Object> {
+
+		private Iterator<?> roots;
+		private Utf8Output output;
+		private SubgraphNode rootNode;
+
+		int count;
+		Object minId;
+		Object maxId;
+
+		PartRoots(Iterator<?> roots, Utf8Output output, SubgraphNode rootNode) {
+			this.roots = roots;
+			this.output = output;
+			this.rootNode = rootNode;
+		}
+
+		public boolean hasNext() {
+
+			if (!roots.hasNext()) {
+				return false;
+			}
+
+			// each part has at least one root
+			if (count == 0) {
+				return true;
+			}
+
+			return (maxPartRoots <= 0 || count < maxPartRoots) && (maxPartSize <= 0 || output.size() < maxPartSize);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object next() {
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			Object root = roots.next();
+			count++;
+
+			Map<String, Object> id = PersistentSerializeConverter.objectId(root, rootNode).getIdSnapshot();
+			Object value = id.size() == 1 ? id.values().iterator().next() : null;
+
+			if (value instanceof Comparable) {
+				if (minId == null || ((Comparable<Object>) value).compareTo(minId) < 0) {
+					minId = value;
+				}
+
+				if (maxId == null || ((Comparable<Object>) value).compareTo(maxId) > 0) {
+					maxId = value;
+				}
+			}
+
+			return root;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
 }
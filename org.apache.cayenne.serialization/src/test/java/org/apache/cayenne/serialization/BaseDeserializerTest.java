@@ -18,7 +18,10 @@
  ****************************************************************/
 package org.apache.cayenne.serialization;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.Reader;
+import java.io.StringWriter;
 
 import junit.framework.TestCase;
 
@@ -39,4 +42,36 @@ public class BaseDeserializerTest extends TestCase {
 		deserializer.setCommitCountThreshold(3);
 		assertEquals(3, deserializer.getCommitCountThreshold());
 	}
+
+	public void testDeserializeInputStream() throws IOException {
+		final StringWriter read = new StringWriter();
+
+		BaseDeserializer deserializer = new BaseDeserializer() {
+			@Override
+			public <T> T deserialize(ObjectContext context,
+					Subgraph<T> subgraph, Reader in) {
+				try {
+					int c;
+					while ((c = in.read()) >= 0) {
+						read.write(c);
+					}
+				} catch (IOException e) {
+					fail(e.getMessage());
+				}
+				return null;
+			}
+		};
+
+		deserializer.deserialize(null, null, new ByteArrayInputStream(
+				"\u00e9t\u00e9".getBytes("UTF-8")));
+		assertEquals("\u00e9t\u00e9", read.toString());
+
+		try {
+			deserializer.deserializeIterator(null, null, new ByteArrayInputStream(
+					new byte[0]));
+			fail("Multi-root documents are not supported by default");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
 }
@@ -0,0 +1,71 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.apache.cayenne.ObjectId;
+
+public class FragmentCacheTest extends TestCase {
+
+	public void testVersion() {
+		FragmentCache cache = new FragmentCache(100, "version");
+
+		ObjectId id = new ObjectId("Table1", "PK", 1);
+		byte[] fragment = new byte[] { 1, 2, 3 };
+		cache.put(id, new Date(1000), fragment);
+
+		assertSame(fragment, cache.get(id, new Timestamp(1000)));
+		assertNull(cache.get(id, new Date(2000)));
+
+		// a stale fragment is removed
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getSizeInBytes());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testEviction() {
+		FragmentCache cache = new FragmentCache(10);
+
+		ObjectId id1 = new ObjectId("Table1", "PK", 1);
+		ObjectId id2 = new ObjectId("Table1", "PK", 2);
+		ObjectId id3 = new ObjectId("Table1", "PK", 3);
+
+		cache.put(id1, null, new byte[4]);
+		cache.put(id2, null, new byte[4]);
+
+		// touch the first entry, so that the second one is evicted
+		assertNotNull(cache.get(id1, null));
+		cache.put(id3, null, new byte[4]);
+
+		assertEquals(2, cache.size());
+		assertEquals(8, cache.getSizeInBytes());
+		assertNotNull(cache.get(id1, null));
+		assertNull(cache.get(id2, null));
+		assertNotNull(cache.get(id3, null));
+
+		// too large to cache
+		cache.put(id2, null, new byte[11]);
+		assertNull(cache.get(id2, null));
+	}
+}
@@ -0,0 +1,62 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import junit.framework.TestCase;
+
+import org.apache.cayenne.ObjectId;
+
+public class ReferenceCacheTest extends TestCase {
+
+	public void testHitsAndMisses() {
+		ReferenceCache cache = new ReferenceCache(10);
+
+		ObjectId id = new ObjectId("Table1", "PK", 1);
+		assertNull(cache.get(id));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		Object o = new Object();
+		cache.put(id, o);
+
+		assertSame(o, cache.get(new ObjectId("Table1", "PK", 1)));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testEviction() {
+		ReferenceCache cache = new ReferenceCache(2);
+
+		ObjectId id1 = new ObjectId("Table1", "PK", 1);
+		ObjectId id2 = new ObjectId("Table1", "PK", 2);
+		ObjectId id3 = new ObjectId("Table1", "PK", 3);
+
+		cache.put(id1, new Object());
+		cache.put(id2, new Object());
+
+		// touch the first entry, so that the second one is evicted
+		assertNotNull(cache.get(id1));
+		cache.put(id3, new Object());
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(id1));
+		assertNull(cache.get(id2));
+		assertNotNull(cache.get(id3));
+	}
+}
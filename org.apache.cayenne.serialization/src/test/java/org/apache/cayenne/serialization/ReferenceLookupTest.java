@@ -0,0 +1,82 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.unit.QueryCounter;
+import org.apache.cayenne.serialization.unit.SerializationCase;
+
+public class ReferenceLookupTest extends SerializationCase {
+
+	public void testLookupMissing() {
+
+		ObjectContext context = newContext();
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("lookup_t21");
+		context.commitChanges();
+
+		ObjectId missing = new ObjectId("Table2", Table2.PK_PK_COLUMN, Integer.MAX_VALUE);
+
+		ReferenceLookup lookup = new ReferenceLookup(newContext(), 0, null);
+		assertEquals("lookup_t21", ((Table2) lookup.lookup(t21.getObjectId())).getName());
+		assertNull(lookup.lookup(missing));
+		assertEquals(1, lookup.getMissingReferences());
+	}
+
+	public void testLookupBatch() {
+
+		ObjectContext context = newContext();
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("lookup_t21");
+		Table2 t22 = context.newObject(Table2.class);
+		t22.setName("lookup_t22");
+		context.commitChanges();
+
+		ObjectId missing = new ObjectId("Table2", Table2.PK_PK_COLUMN, Integer.MAX_VALUE);
+		ReferenceLookup lookup = new ReferenceLookup(newContext(), 10, new ReferenceCache(10));
+		Map<ObjectId, Object> objects = new HashMap<ObjectId, Object>();
+
+		QueryCounter counter = QueryCounter.install(dataNode());
+		try {
+			lookup.lookup(Arrays.asList(t21.getObjectId(), t22.getObjectId(), missing), objects);
+			assertEquals(1, counter.getCount());
+			assertEquals(2, objects.size());
+			assertFalse(objects.containsKey(missing));
+
+			// the objects found are cached
+			counter.reset();
+			assertSame(objects.get(t21.getObjectId()), lookup.lookup(t21.getObjectId()));
+			assertEquals(0, counter.getCount());
+			assertEquals(1, lookup.getReferenceCache().getHits());
+		} finally {
+			counter.uninstall();
+		}
+
+		// missing ids are counted by the caller, once per reference
+		assertEquals(0, lookup.getMissingReferences());
+		lookup.skipMissing(missing);
+		assertEquals(1, lookup.getMissingReferences());
+	}
+}
@@ -93,4 +93,33 @@ public class SubgraphTest extends SerializationCase {
 		SubgraphNode child = node.getChildren().iterator().next();
 		assertTrue(child.isSerializedByReference());
 	}
+
+	public void testSetWatermarkAttribute() {
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class,
+				newContext().getEntityResolver());
+
+		// a single watermark may be of any type
+		SubgraphBuilder child = subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+		child.setWatermarkAttribute(Table2.DOUBLE_COLUMN_PROPERTY);
+		assertEquals(Table2.DOUBLE_COLUMN_PROPERTY, subgraph.getRootNode()
+				.getChild(Table1.TABLE2S_PROPERTY, false)
+				.getWatermarkAttribute());
+
+		// while watermarks of several nodes must be timestamps
+		try {
+			subgraph.setWatermarkAttribute(Table1.NAME_PROPERTY);
+			fail("Watermarks of different types must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		assertNull(subgraph.getRootNode().getWatermarkAttribute());
+
+		// replacing the watermark of the same node is not checked against
+		// itself
+		child.setWatermarkAttribute(Table2.DATE_COLUMN_PROPERTY);
+		assertEquals(Table2.DATE_COLUMN_PROPERTY, subgraph.getRootNode()
+				.getChild(Table1.TABLE2S_PROPERTY, false)
+				.getWatermarkAttribute());
+	}
 }
@@ -0,0 +1,119 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.persistent.Table1;
+import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.unit.SerializationCase;
+import org.apache.cayenne.serialization.xstream.XStreamDeserializer;
+import org.apache.cayenne.serialization.xstream.XStreamSerializer;
+
+/**
+ * Compares document size and serialization and deserialization speed of the
+ * binary format with compact XML. Not a unit test, run it via the "main"
+ * method.
+ */
+public class BinarySerializerBenchmark extends SerializationCase {
+
+	static final int CHILDREN = 1000;
+	static final int WARMUP_CALLS = 100;
+	static final int CALLS = 500;
+
+	public static void main(String[] args) {
+		new BinarySerializerBenchmark().run();
+	}
+
+	void run() {
+
+		ObjectContext context = newContext();
+		Table1 root = context.newObject(Table1.class);
+		root.setName("benchmark");
+
+		for (int i = 0; i < CHILDREN; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("benchmark_" + i);
+			t2.setDateColumn(new Date());
+			t2.setDoubleColumn(i * 1.5);
+			t2.setTable1(root);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		XStreamSerializer xmlSerializer = new XStreamSerializer();
+		xmlSerializer.setCreatingCompactXML(true);
+		XStreamDeserializer xmlDeserializer = new XStreamDeserializer();
+		xmlDeserializer.setCommitting(false);
+
+		BinarySerializer binarySerializer = new BinarySerializer();
+		BinaryDeserializer binaryDeserializer = new BinaryDeserializer();
+		binaryDeserializer.setCommitting(false);
+
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		xmlSerializer.serialize(root, subgraph, xml);
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		binarySerializer.serialize(root, subgraph, binary);
+
+		// warm up all code paths
+		for (int i = 0; i < WARMUP_CALLS; i++) {
+			xmlSerializer.serialize(root, subgraph, new ByteArrayOutputStream());
+			binarySerializer.serialize(root, subgraph, new ByteArrayOutputStream());
+			xmlDeserializer.deserialize(newContext(), subgraph, new ByteArrayInputStream(xml.toByteArray()));
+			binaryDeserializer.deserialize(newContext(), subgraph, new ByteArrayInputStream(binary.toByteArray()));
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			xmlSerializer.serialize(root, subgraph, new ByteArrayOutputStream());
+		}
+
+		long t1 = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			binarySerializer.serialize(root, subgraph, new ByteArrayOutputStream());
+		}
+
+		long t2 = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			xmlDeserializer.deserialize(newContext(), subgraph, new ByteArrayInputStream(xml.toByteArray()));
+		}
+
+		long t3 = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			binaryDeserializer.deserialize(newContext(), subgraph, new ByteArrayInputStream(binary.toByteArray()));
+		}
+
+		long t4 = System.nanoTime();
+
+		System.out.println("Objects per call: " + (CHILDREN + 1) + ", calls: " + CALLS);
+		System.out.println("Size, XML:    " + xml.size() + " bytes");
+		System.out.println("Size, binary: " + binary.size() + " bytes");
+		System.out.println("Serialize, XML:      " + (t1 - t0) / CALLS / 1000 + " us/call");
+		System.out.println("Serialize, binary:   " + (t2 - t1) / CALLS / 1000 + " us/call");
+		System.out.println("Deserialize, XML:    " + (t3 - t2) / CALLS / 1000 + " us/call");
+		System.out.println("Deserialize, binary: " + (t4 - t3) / CALLS / 1000 + " us/call");
+	}
+}
@@ -0,0 +1,210 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.PersistenceState;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.query.SortOrder;
+import org.apache.cayenne.serialization.DeserializationCallback;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.cayenne.serialization.persistent.Table1;
+import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.unit.SerializationCase;
+
+public class BinarySerializerTest extends SerializationCase {
+
+	public void testCloneToMany() {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("binary_clone \u00e9\u4e2d");
+
+		Date date = new GregorianCalendar(2010, 0, 1).getTime();
+		for (int i = 0; i < 3; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("binary_clone_child_" + i);
+			t2.setDateColumn(date);
+			t2.setDoubleColumn(i - 1.5);
+			t2.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BinarySerializer().serialize(t1, subgraph, out);
+
+		BinaryDeserializer deserializer = new BinaryDeserializer();
+		deserializer.setCommitting(false);
+
+		ObjectContext targetContext = newContext();
+		Table1 clone = deserializer.deserialize(targetContext, subgraph,
+				new ByteArrayInputStream(out.toByteArray()));
+
+		assertNotSame(t1, clone);
+		assertEquals(PersistenceState.NEW, clone.getPersistenceState());
+		assertEquals(t1.getName(), clone.getName());
+		assertEquals(3, clone.getTable2s().size());
+
+		List<String> names = new ArrayList<String>();
+		List<Double> doubles = new ArrayList<Double>();
+		for (Table2 t2 : clone.getTable2s()) {
+			names.add(t2.getName());
+			doubles.add(t2.getDoubleColumn());
+			assertEquals(date, t2.getDateColumn());
+			assertSame(clone, t2.getTable1());
+		}
+
+		assertTrue(names.contains("binary_clone_child_0"));
+		assertTrue(names.contains("binary_clone_child_2"));
+		assertTrue(doubles.contains(-1.5));
+		assertTrue(doubles.contains(0.5));
+	}
+
+	public void testReferenceToOne() {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("binary_ref");
+
+		Table2 t2 = context.newObject(Table2.class);
+		t2.setName("binary_ref_child");
+		t2.setTable1(t1);
+
+		context.commitChanges();
+
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+		subgraph.addRefPath(Table2.TABLE1_PROPERTY);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BinarySerializer().serialize(t2, subgraph, out);
+
+		final int[] callbackInvoked = new int[1];
+		subgraph.addCallbacks(new DeserializationCallback() {
+			public void postDeserialize(SubgraphNode node, Object object) {
+				callbackInvoked[0]++;
+			}
+		});
+
+		BinaryDeserializer deserializer = new BinaryDeserializer();
+		ObjectContext targetContext = newContext();
+		Table2 clone = deserializer.deserialize(targetContext, subgraph,
+				new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(PersistenceState.COMMITTED, clone.getPersistenceState());
+		assertEquals("binary_ref_child", clone.getName());
+		assertNotNull(clone.getTable1());
+		assertEquals(PersistenceState.COMMITTED, clone.getTable1()
+				.getPersistenceState());
+		assertEquals("binary_ref", clone.getTable1().getName());
+		assertEquals(1, callbackInvoked[0]);
+	}
+
+	public void testQueryRoots() {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 5; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("binary_roots_" + i);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "binary_roots_%"));
+		query.addOrdering(Table1.NAME_PROPERTY, SortOrder.ASCENDING);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BinarySerializer().serialize(context, query, subgraph, out);
+
+		BinaryDeserializer deserializer = new BinaryDeserializer();
+		deserializer.setCommitting(false);
+
+		List<String> names = new ArrayList<String>();
+		Iterator<Table1> it = deserializer.deserializeIterator(newContext(),
+				subgraph, new ByteArrayInputStream(out.toByteArray()));
+		while (it.hasNext()) {
+			names.add(it.next().getName());
+		}
+
+		assertEquals(Arrays.asList("binary_roots_0", "binary_roots_1",
+				"binary_roots_2", "binary_roots_3", "binary_roots_4"), names);
+	}
+
+	public void testEvictingCommittedObjects() {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("binary_evict");
+
+		for (int i = 0; i < 300; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("binary_evict_child_" + i);
+			t2.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BinarySerializer().serialize(t1, subgraph, out);
+
+		BinaryDeserializer deserializer = new BinaryDeserializer();
+		deserializer.setCommitCountThreshold(50);
+		deserializer.setEvictingCommittedObjects(true);
+
+		ObjectContext targetContext = newContext();
+		Table1 clone = deserializer.deserialize(targetContext, subgraph,
+				new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(PersistenceState.COMMITTED, clone.getPersistenceState());
+
+		// only the last batch may be left in the context
+		int registered = ((DataContext) targetContext).getObjectStore()
+				.registeredObjectsCount();
+		assertTrue("Too many objects: " + registered, registered <= 51);
+
+		// relationship is a fault now, and is resolved from the DB
+		assertEquals(300, clone.getTable2s().size());
+	}
+}
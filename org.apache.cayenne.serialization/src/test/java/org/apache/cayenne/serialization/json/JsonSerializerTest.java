@@ -0,0 +1,350 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.cayenne.Cayenne;
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.PersistenceState;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.query.SortOrder;
+import org.apache.cayenne.serialization.DeserializationCallback;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.cayenne.serialization.persistent.Table1;
+import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.unit.QueryCounter;
+import org.apache.cayenne.serialization.unit.SerializationCase;
+
+public class JsonSerializerTest extends SerializationCase {
+
+	public void testCloneToMany() {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("json_clone \"\u00e9\u4e2d\"\n");
+
+		Date date = new GregorianCalendar(2010, 0, 1).getTime();
+		for (int i = 0; i < 3; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("json_clone_child_" + i);
+			t2.setDateColumn(date);
+			t2.setDoubleColumn(i - 1.5);
+			t2.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		StringWriter out = new StringWriter();
+		new JsonSerializer().serialize(t1, subgraph, out);
+
+		String json = out.toString();
+		assertTrue(json, json.startsWith("{\"@entity\":\"Table1\""));
+		assertTrue(json, json.contains("\"json_clone \\\"\u00e9\u4e2d\\\"\\n\""));
+		assertTrue(json, json.contains("\"table2s\":[{\"@entity\":\"Table2\""));
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		deserializer.setCommitting(false);
+
+		ObjectContext targetContext = newContext();
+		Table1 clone = deserializer.deserialize(targetContext, subgraph,
+				new StringReader(json));
+
+		assertNotSame(t1, clone);
+		assertEquals(PersistenceState.NEW, clone.getPersistenceState());
+		assertEquals(t1.getName(), clone.getName());
+		assertEquals(3, clone.getTable2s().size());
+
+		List<String> names = new ArrayList<String>();
+		List<Double> doubles = new ArrayList<Double>();
+		for (Table2 t2 : clone.getTable2s()) {
+			names.add(t2.getName());
+			doubles.add(t2.getDoubleColumn());
+			assertEquals(date, t2.getDateColumn());
+			assertSame(clone, t2.getTable1());
+		}
+
+		assertTrue(names.contains("json_clone_child_0"));
+		assertTrue(names.contains("json_clone_child_2"));
+		assertTrue(doubles.contains(-1.5));
+		assertTrue(doubles.contains(0.5));
+	}
+
+	public void testReferenceToOne() {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("json_ref");
+
+		Table2 t2 = context.newObject(Table2.class);
+		t2.setName("json_ref_child");
+		t2.setTable1(t1);
+
+		context.commitChanges();
+
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+		subgraph.addRefPath(Table2.TABLE1_PROPERTY);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JsonSerializer().serialize(t2, subgraph, out);
+
+		String json = new String(out.toByteArray());
+		assertEquals("{\"@entity\":\"Table2\",\"name\":\"json_ref_child\","
+				+ "\"table1\":{\"@ref\":\"Table1\",\"PK\":"
+				+ Cayenne.intPKForObject(t1) + "}}", json);
+
+		final int[] callbackInvoked = new int[1];
+		subgraph.addCallbacks(new DeserializationCallback() {
+			public void postDeserialize(SubgraphNode node, Object object) {
+				callbackInvoked[0]++;
+			}
+		});
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		ObjectContext targetContext = newContext();
+		Table2 clone = deserializer.deserialize(targetContext, subgraph,
+				new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(PersistenceState.COMMITTED, clone.getPersistenceState());
+		assertEquals("json_ref_child", clone.getName());
+		assertNotNull(clone.getTable1());
+		assertEquals(PersistenceState.COMMITTED, clone.getTable1()
+				.getPersistenceState());
+		assertEquals("json_ref", clone.getTable1().getName());
+		assertEquals(1, callbackInvoked[0]);
+	}
+
+	public void testQueryRoots() {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 5; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("json_roots_" + i);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "json_roots_%"));
+		query.addOrdering(Table1.NAME_PROPERTY, SortOrder.ASCENDING);
+
+		StringWriter out = new StringWriter();
+		new JsonSerializer().serialize(context, query, subgraph, out);
+
+		// unknown members must be skipped
+		String json = out.toString().replace("\"table2s\":[]",
+				"\"table2s\":[],\"extra\":{\"a\":[1,true,null]}");
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		deserializer.setCommitCountThreshold(2);
+
+		List<Table1> roots = new ArrayList<Table1>();
+		Iterator<Table1> it = deserializer.deserializeIterator(newContext(),
+				subgraph, new StringReader(json));
+		while (it.hasNext()) {
+			roots.add(it.next());
+		}
+
+		List<String> names = new ArrayList<String>();
+		for (Table1 root : roots) {
+			names.add(root.getName());
+			assertEquals(PersistenceState.COMMITTED, root
+					.getPersistenceState());
+		}
+
+		assertEquals(Arrays.asList("json_roots_0", "json_roots_1",
+				"json_roots_2", "json_roots_3", "json_roots_4"), names);
+	}
+
+	public void testNullsOmitted() {
+
+		ObjectContext context = newContext();
+		Table2 t2 = context.newObject(Table2.class);
+		t2.setName("json_nulls");
+		context.commitChanges();
+
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table2.TABLE1_PROPERTY);
+
+		StringWriter out = new StringWriter();
+		new JsonSerializer().serialize(t2, subgraph, out);
+
+		// null attributes and null to-one relationships are not written
+		assertEquals("{\"@entity\":\"Table2\",\"name\":\"json_nulls\"}", out
+				.toString());
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		deserializer.setCommitting(false);
+
+		Table2 clone = deserializer.deserialize(newContext(), subgraph,
+				new StringReader("{\"@entity\":\"Table2\",\"name\":\"json_nulls\","
+						+ "\"doubleColumn\":null,\"table1\":null}"));
+
+		assertEquals("json_nulls", clone.getName());
+		assertNull(clone.getDoubleColumn());
+		assertNull(clone.getTable1());
+	}
+
+	public void testDateFormat() {
+
+		ObjectContext context = newContext();
+		Table2 t2 = context.newObject(Table2.class);
+		t2.setName("json_date");
+		t2.setDateColumn(new Date(1262347200123L));
+
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+
+		StringWriter out = new StringWriter();
+		new JsonSerializer().serialize(t2, subgraph, out);
+
+		// dates are written in UTC regardless of the default time zone
+		String json = out.toString();
+		assertTrue(json, json
+				.contains("\"dateColumn\":\"2010-01-01T12:00:00.123Z\""));
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		deserializer.setCommitting(false);
+
+		Table2 clone = deserializer.deserialize(newContext(), subgraph,
+				new StringReader(json));
+		assertEquals(t2.getDateColumn(), clone.getDateColumn());
+	}
+
+	public void testEntityMemberFirst() {
+
+		ObjectContext context = newContext();
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		deserializer.setCommitting(false);
+
+		try {
+			deserializer.deserialize(context, subgraph, new StringReader(
+					"{\"name\":\"json_first\",\"@entity\":\"Table2\"}"));
+			fail("The entity name must be the first member");
+		} catch (CayenneRuntimeException e) {
+			// expected
+		}
+	}
+
+	public void testSingleRootIterator() {
+
+		ObjectContext context = newContext();
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		deserializer.setCommitting(false);
+
+		// a document without a top-level array is read as a single root
+		Iterator<Table2> it = deserializer.deserializeIterator(context,
+				subgraph, new StringReader(
+						"{\"@entity\":\"Table2\",\"name\":\"json_single\"}"));
+
+		assertTrue(it.hasNext());
+		assertEquals("json_single", it.next().getName());
+		assertFalse(it.hasNext());
+	}
+
+	public void testReferenceBatch() {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("json_batch");
+
+		for (int i = 0; i < 5; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("json_batch_child_" + i);
+			t2.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		final int[] rootCallbackRefs = new int[1];
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addCallbacks(new DeserializationCallback() {
+			public void postDeserialize(SubgraphNode node, Object object) {
+				if (object instanceof Table1) {
+					rootCallbackRefs[0] = ((Table1) object).getTable2s().size();
+				}
+			}
+		});
+		subgraph.addRefPath(Table1.TABLE2S_PROPERTY);
+
+		StringWriter out = new StringWriter();
+		new JsonSerializer().serialize(t1, subgraph, out);
+
+		// the last reference points to a row that no longer exists
+		String json = out.toString().replace("]}", ",{\"@ref\":\"Table2\",\"PK\":"
+				+ Integer.MAX_VALUE + "}]}");
+
+		JsonDeserializer deserializer = new JsonDeserializer();
+		deserializer.setCommitting(false);
+
+		QueryCounter counter = QueryCounter.install(dataNode());
+		try {
+			Table1 perReference = deserializer.deserialize(newContext(),
+					subgraph, new StringReader(json));
+			assertEquals(5, perReference.getTable2s().size());
+			assertEquals(6, counter.getCount());
+
+			counter.reset();
+			deserializer.setReferenceBatchSize(10);
+
+			Table1 batched = deserializer.deserialize(newContext(), subgraph,
+					new StringReader(json));
+			assertEquals(1, counter.getCount());
+
+			// references are connected before the root callback is invoked
+			assertEquals(5, rootCallbackRefs[0]);
+			assertEquals(5, batched.getTable2s().size());
+			for (Table2 t2 : batched.getTable2s()) {
+				assertEquals(PersistenceState.COMMITTED, t2.getPersistenceState());
+				assertSame(batched, t2.getTable1());
+			}
+		} finally {
+			counter.uninstall();
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package org.apache.cayenne.serialization.persistent.auto;
 
 import java.util.Date;
+import java.util.List;
 
 import org.apache.cayenne.CayenneDataObject;
 import org.apache.cayenne.serialization.persistent.Table1;
+import org.apache.cayenne.serialization.persistent.Table3;
 
 /**
  * Class _Table2 was generated by Cayenne.
@@ -17,6 +19,7 @@ public abstract class _Table2 extends CayenneDataObject {
     public static final String DOUBLE_COLUMN_PROPERTY = "doubleColumn";
     public static final String NAME_PROPERTY = "name";
     public static final String TABLE1_PROPERTY = "table1";
+    public static final String TABLE3S_PROPERTY = "table3s";
 
     public static final String PK_PK_COLUMN = "PK";
 
@@ -50,4 +53,16 @@ public abstract class _Table2 extends CayenneDataObject {
     }
 
 
+    public void addToTable3s(Table3 obj) {
+        addToManyTarget("table3s", obj, true);
+    }
+    public void removeFromTable3s(Table3 obj) {
+        removeToManyTarget("table3s", obj, true);
+    }
+    @SuppressWarnings("unchecked")
+    public List<Table3> getTable3s() {
+        return (List<Table3>)readProperty("table3s");
+    }
+
+
 }
@@ -0,0 +1,35 @@
+package org.apache.cayenne.serialization.persistent.auto;
+
+import org.apache.cayenne.CayenneDataObject;
+import org.apache.cayenne.serialization.persistent.Table2;
+
+/**
+ * Class _Table3 was generated by Cayenne.
+ * It is probably a good idea to avoid changing this class manually,
+ * since it may be overwritten next time code is regenerated.
+ * If you need to make any customizations, please use subclass.
+ */
+public abstract class _Table3 extends CayenneDataObject {
+
+    public static final String NAME_PROPERTY = "name";
+    public static final String TABLE2_PROPERTY = "table2";
+
+    public static final String PK_PK_COLUMN = "PK";
+
+    public void setName(String name) {
+        writeProperty("name", name);
+    }
+    public String getName() {
+        return (String)readProperty("name");
+    }
+
+    public void setTable2(Table2 table2) {
+        setToOneTarget("table2", table2, true);
+    }
+
+    public Table2 getTable2() {
+        return (Table2)readProperty("table2");
+    }
+
+
+}
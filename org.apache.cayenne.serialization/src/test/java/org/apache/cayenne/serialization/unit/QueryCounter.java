@@ -0,0 +1,92 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.unit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cayenne.access.DataNode;
+import org.apache.cayenne.log.JdbcEventLogger;
+
+/**
+ * Counts SQL queries run by a DataNode, by temporarily replacing its
+ * JdbcEventLogger with a proxy that intercepts "logQuery" calls and delegates
+ * everything to the original logger.
+ */
+public class QueryCounter implements InvocationHandler {
+
+	private DataNode node;
+	private JdbcEventLogger logger;
+	private AtomicInteger count;
+
+	public static QueryCounter install(DataNode node) {
+		QueryCounter counter = new QueryCounter(node);
+		node.setJdbcEventLogger((JdbcEventLogger) Proxy.newProxyInstance(JdbcEventLogger.class.getClassLoader(),
+				new Class<?>[] { JdbcEventLogger.class }, counter));
+		return counter;
+	}
+
+	private QueryCounter(DataNode node) {
+		this.node = node;
+		this.logger = node.getJdbcEventLogger();
+		this.count = new AtomicInteger();
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+		String name = method.getName();
+
+		// queries are only logged when the logger says so
+		if ("isLoggable".equals(name)) {
+			return Boolean.TRUE;
+		}
+
+		if ("logQuery".equals(name)) {
+			count.incrementAndGet();
+
+			if (!logger.isLoggable()) {
+				return null;
+			}
+		}
+
+		try {
+			return method.invoke(logger, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	public int getCount() {
+		return count.get();
+	}
+
+	public void reset() {
+		count.set(0);
+	}
+
+	/**
+	 * Puts the original logger back.
+	 */
+	public void uninstall() {
+		node.setJdbcEventLogger(logger);
+	}
+}
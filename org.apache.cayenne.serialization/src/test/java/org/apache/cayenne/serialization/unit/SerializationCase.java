@@ -27,6 +27,7 @@ import org.apache.cayenne.ObjectContext;
 import org.apache.cayenne.access.DataDomain;
 import org.apache.cayenne.access.DataNode;
 import org.apache.cayenne.access.DbGenerator;
+import org.apache.cayenne.configuration.ObjectContextFactory;
 import org.apache.cayenne.configuration.server.ServerRuntime;
 import org.apache.cayenne.map.DataMap;
 
@@ -70,6 +71,14 @@ public abstract class SerializationCase extends TestCase {
 		return cRuntime.getContext();
 	}
 
+	protected DataNode dataNode() {
+		return cRuntime.getDataDomain().getDataNodes().iterator().next();
+	}
+
+	protected ObjectContextFactory contextFactory() {
+		return cRuntime.getInjector().getInstance(ObjectContextFactory.class);
+	}
+
 	protected File tempFile(String extension) {
 		File baseDir = new File(TEST_DIR);
 		baseDir.mkdirs();
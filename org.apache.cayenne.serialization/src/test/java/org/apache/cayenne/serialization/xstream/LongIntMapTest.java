@@ -0,0 +1,73 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import junit.framework.TestCase;
+
+public class LongIntMapTest extends TestCase {
+
+	public void testPutGet() {
+		LongIntMap map = new LongIntMap();
+
+		assertEquals(0, map.get(0));
+
+		map.put(0, 1);
+		map.put(-5, 2);
+		map.put(Long.MAX_VALUE, 3);
+
+		assertEquals(1, map.get(0));
+		assertEquals(2, map.get(-5));
+		assertEquals(3, map.get(Long.MAX_VALUE));
+		assertEquals(0, map.get(5));
+		assertEquals(3, map.size());
+
+		map.put(-5, 4);
+		assertEquals(4, map.get(-5));
+		assertEquals(3, map.size());
+	}
+
+	public void testGrowAndClear() {
+		LongIntMap map = new LongIntMap();
+
+		for (int i = 1; i <= 100000; i++) {
+			map.put(i * 64L, i);
+		}
+
+		assertEquals(100000, map.size());
+		for (int i = 1; i <= 100000; i++) {
+			assertEquals(i, map.get(i * 64L));
+		}
+
+		map.clear();
+		assertEquals(0, map.size());
+		assertEquals(0, map.get(64));
+
+		map.put(64, 7);
+		assertEquals(7, map.get(64));
+	}
+
+	public void testZeroValue() {
+		try {
+			new LongIntMap().put(1, 0);
+			fail("Zero values must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.cayenne.Cayenne;
+import org.apache.cayenne.CayenneRuntimeException;
+import org.apache.cayenne.DataRow;
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.exp.Expression;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.SubgraphNode;
+import org.apache.cayenne.serialization.persistent.Table1;
+import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.persistent.Table3;
+import org.apache.cayenne.serialization.unit.SerializationCase;
+
+public class MergeJoinTest extends SerializationCase {
+
+	public void testSkipRowsWithoutParent() {
+
+		ObjectContext context = newContext();
+		Table1[] roots = createRoots(context, "mj_skip_");
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		Expression qualifier = ExpressionFactory.likeExp(Table1.NAME_PROPERTY,
+				"mj_skip_%");
+		MergeJoin mergeJoin = new MergeJoin((DataContext) context, subgraph
+				.getRootNode(), qualifier, 0, false);
+		assertTrue(mergeJoin.isJoining());
+
+		SubgraphNode child = subgraph.getRootNode().getChild(
+				Table1.TABLE2S_PROPERTY);
+
+		try {
+			// the first root is never serialized, so its children have no
+			// parent and must not stall the cursor
+			assertEquals(childNames(roots[1]), readNames(mergeJoin.children(
+					child, roots[1].getObjectId())));
+			assertEquals(childNames(roots[2]), readNames(mergeJoin.children(
+					child, roots[2].getObjectId())));
+
+			mergeJoin.finish();
+			assertEquals(2, mergeJoin.getSkippedRows());
+		} finally {
+			mergeJoin.close();
+		}
+	}
+
+	public void testUnreadRows() {
+
+		ObjectContext context = newContext();
+		Table1[] roots = createRoots(context, "mj_unread_");
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY + "."
+				+ Table2.TABLE3S_PROPERTY);
+
+		Expression qualifier = ExpressionFactory.likeExp(Table1.NAME_PROPERTY,
+				"mj_unread_%");
+		MergeJoin mergeJoin = new MergeJoin((DataContext) context, subgraph
+				.getRootNode(), qualifier, 0, false);
+
+		SubgraphNode child = subgraph.getRootNode().getChild(
+				Table1.TABLE2S_PROPERTY);
+		SubgraphNode grandchild = child.getChild(Table2.TABLE3S_PROPERTY);
+
+		try {
+			boolean skipped = false;
+			for (Table1 root : roots) {
+				Iterator<Object> children = mergeJoin.children(child, root
+						.getObjectId());
+				while (children.hasNext()) {
+					DataRow row = (DataRow) children.next();
+
+					// leave grandchildren of one child unread
+					if (!skipped && row.get("NAME").equals(root.getName() + "_1")) {
+						skipped = true;
+						continue;
+					}
+
+					readNames(mergeJoin.children(grandchild, new ObjectId(
+							"Table2", Table2.PK_PK_COLUMN, row.get("PK"))));
+				}
+			}
+
+			try {
+				mergeJoin.finish();
+				fail("Unread rows must cause an exception");
+			} catch (CayenneRuntimeException e) {
+				// expected
+			}
+		} finally {
+			mergeJoin.close();
+		}
+	}
+
+	/**
+	 * Creates 3 roots with 2 children each, and one grandchild per child.
+	 * Returns the roots in PK order.
+	 */
+	private Table1[] createRoots(ObjectContext context, String prefix) {
+
+		Table1[] roots = new Table1[3];
+		for (int i = 0; i < roots.length; i++) {
+			roots[i] = context.newObject(Table1.class);
+			roots[i].setName(prefix + i);
+
+			for (int j = 0; j < 2; j++) {
+				Table2 t2 = context.newObject(Table2.class);
+				t2.setName(prefix + i + "_" + j);
+				t2.setTable1(roots[i]);
+
+				Table3 t3 = context.newObject(Table3.class);
+				t3.setName(prefix + i + "_" + j + "_0");
+				t3.setTable2(t2);
+			}
+		}
+
+		context.commitChanges();
+
+		Arrays.sort(roots, new Comparator<Table1>() {
+			public int compare(Table1 o1, Table1 o2) {
+				return Cayenne.intPKForObject(o1) - Cayenne.intPKForObject(o2);
+			}
+		});
+
+		return roots;
+	}
+
+	private static List<String> childNames(Table1 root) {
+		return Arrays.asList(root.getName() + "_0", root.getName() + "_1");
+	}
+
+	/**
+	 * Returns sorted names of the rows.
+	 */
+	private static List<String> readNames(Iterator<Object> rows) {
+		List<String> list = new ArrayList<String>();
+		while (rows.hasNext()) {
+			list.add((String) ((DataRow) rows.next()).get("NAME"));
+		}
+
+		Collections.sort(list);
+		return list;
+	}
+}
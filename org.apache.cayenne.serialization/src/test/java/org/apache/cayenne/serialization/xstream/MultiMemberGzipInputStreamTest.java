@@ -0,0 +1,121 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+import junit.framework.TestCase;
+
+public class MultiMemberGzipInputStreamTest extends TestCase {
+
+	public void testReadMembersFromPipe() throws IOException {
+
+		byte[] data = createData();
+
+		// parallel compression writes a member per block
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GzipChannel channel = new GzipChannel(Channels.newChannel(compressed), 3, 1000);
+		try {
+			channel.write(ByteBuffer.wrap(data));
+			channel.finish();
+		} finally {
+			channel.release();
+		}
+
+		InputStream in = new MultiMemberGzipInputStream(new PipeInputStream(compressed.toByteArray()), 512);
+		try {
+			assertTrue(Arrays.equals(data, readAll(in)));
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testCorruptMember() throws IOException {
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GzipChannel channel = new GzipChannel(Channels.newChannel(compressed), 1, 1000);
+		try {
+			channel.write(ByteBuffer.wrap(createData()));
+			channel.finish();
+		} finally {
+			channel.release();
+		}
+
+		// flip a bit of the CRC in the trailer
+		byte[] bytes = compressed.toByteArray();
+		bytes[bytes.length - 6] ^= 1;
+
+		InputStream in = new MultiMemberGzipInputStream(new ByteArrayInputStream(bytes), 512);
+		try {
+			readAll(in);
+			fail("Corrupt member must cause an exception");
+		} catch (ZipException e) {
+			// expected
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] createData() {
+		byte[] data = new byte[50000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + (i * 7 + i / 13) % 26);
+		}
+		return data;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Behaves like a pipe: returns bytes in small pieces and never reports
+	 * any available.
+	 */
+	static class PipeInputStream extends FilterInputStream {
+
+		PipeInputStream(byte[] bytes) {
+			super(new ByteArrayInputStream(bytes));
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 100));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+
+import junit.framework.TestCase;
+
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+import com.thoughtworks.xstream.io.xml.XppReader;
+
+public class PartManifestTest extends TestCase {
+
+	public void testWriteRead() throws IOException {
+		PartManifest manifest = new PartManifest();
+		manifest.addPart("export-00001.xml", 2, 100, 1, 2);
+		manifest.addPart("export-00002.xml", 3, 200, Long.MAX_VALUE - 1, Long.MAX_VALUE);
+		manifest.addPart("export-00003.xml", 1, 50, "a<b", "a<b");
+		manifest.addPart("export-00004.xml", 1, 50, new BigDecimal("1.50"), new BigDecimal("1.50"));
+		manifest.addPart("export-00005.xml", 4, 300, null, null);
+
+		StringWriter out = new StringWriter();
+		manifest.write(new PrettyPrintWriter(out));
+
+		PartManifest read = PartManifest.read(new XppReader(new StringReader(out.toString())));
+
+		assertEquals(5, read.getParts().size());
+		assertEquals(11, read.getRootCount());
+
+		for (int i = 0; i < 5; i++) {
+			PartManifest.Part expected = manifest.getParts().get(i);
+			PartManifest.Part part = read.getParts().get(i);
+
+			assertEquals(expected.getFile(), part.getFile());
+			assertEquals(expected.getRootCount(), part.getRootCount());
+			assertEquals(expected.getSizeInBytes(), part.getSizeInBytes());
+			assertEquals(expected.getMinId(), part.getMinId());
+			assertEquals(expected.getMaxId(), part.getMaxId());
+		}
+	}
+
+	public void testReadXStreamFormat() throws IOException {
+		String xml = "<manifest>\n"
+				+ "  <part file=\"export-00001.xml\" rootCount=\"2\" sizeInBytes=\"100\">\n"
+				+ "    <minId class=\"int\">1</minId>\n"
+				+ "    <maxId class=\"int\">2</maxId>\n"
+				+ "  </part>\n"
+				+ "</manifest>";
+
+		PartManifest read = PartManifest.read(new XppReader(new StringReader(xml)));
+
+		assertEquals(1, read.getParts().size());
+		assertEquals("export-00001.xml", read.getParts().get(0).getFile());
+		assertEquals(Integer.valueOf(1), read.getParts().get(0).getMinId());
+		assertEquals(Integer.valueOf(2), read.getParts().get(0).getMaxId());
+	}
+
+	public void testUnsupportedIdType() {
+		String xml = "<manifest>"
+				+ "<part file=\"export-00001.xml\" rootCount=\"1\" sizeInBytes=\"100\">"
+				+ "<minId class=\"java.io.File\"><path>/tmp</path></minId>"
+				+ "</part></manifest>";
+
+		try {
+			PartManifest.read(new XppReader(new StringReader(xml)));
+			fail("Only number and string ids must be accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+
+public class PipelinedXppReaderTest extends TestCase {
+
+	public void testGetAttributeEscapedName() {
+		PipelinedXppReader reader = new PipelinedXppReader(new StringReader(
+				"<a my__name=\"1\" other_-name=\"2\"/>"), 2);
+
+		try {
+			assertEquals("1", reader.getAttribute("my_name"));
+			assertEquals("2", reader.getAttribute("other$name"));
+			assertNull(reader.getAttribute("my__name"));
+			assertEquals("my_name", reader.getAttributeName(0));
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testAppendErrorsLineNumber() {
+		PipelinedXppReader reader = new PipelinedXppReader(new StringReader(
+				"<a>\n<b>text</b>\n<c/></a>"), 2);
+
+		try {
+			reader.moveDown();
+			reader.moveUp();
+			reader.moveDown();
+
+			ConversionException e = new ConversionException("test");
+			reader.appendErrors(e);
+			assertEquals("3", e.get("line number"));
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -19,20 +19,32 @@
 package org.apache.cayenne.serialization.xstream;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.cayenne.Cayenne;
+import org.apache.cayenne.CayenneRuntimeException;
 import org.apache.cayenne.ObjectContext;
 import org.apache.cayenne.PersistenceState;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.query.SelectQuery;
 import org.apache.cayenne.serialization.DeserializationCallback;
 import org.apache.cayenne.serialization.Subgraph;
 import org.apache.cayenne.serialization.SubgraphNode;
 import org.apache.cayenne.serialization.persistent.Table1;
 import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.unit.QueryCounter;
 import org.apache.cayenne.serialization.unit.SerializationCase;
 
 public class XStreamDeserializerTest extends SerializationCase {
@@ -148,6 +160,117 @@ public class XStreamDeserializerTest extends SerializationCase {
 
 	}
 
+	public void testDeserializeByReferenceBatched() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("t11");
+
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("t21");
+		t21.setTable1(t11);
+
+		Table2 t22 = context.newObject(Table2.class);
+		t22.setName("t22");
+		t22.setTable1(t11);
+
+		context.commitChanges();
+
+		final int[] rootCallbackRefs = new int[1];
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addCallbacks(new DeserializationCallback() {
+			public void postDeserialize(SubgraphNode node, Object object) {
+				// references must be connected by the time root callback is
+				// invoked
+				rootCallbackRefs[0] = ((Table1) object).getTable2s().size();
+			}
+		});
+		subgraph.addRefPath(Table1.TABLE2S_PROPERTY);
+
+		String xml = "<Table1><name>t12</name><table2s>"
+				+ "<Table2 ref=\"true\"><PK>" + Cayenne.intPKForObject(t21)
+				+ "</PK></Table2>" + "<Table2 ref=\"true\"><PK>"
+				+ Cayenne.intPKForObject(t22) + "</PK></Table2>"
+				+ "</table2s></Table1>";
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setCommitting(false);
+
+		// deserialize into new contexts, so that the references are not
+		// found among the registered objects
+		QueryCounter counter = QueryCounter.install(dataNode());
+		try {
+			Table1 perReference = deserializer.deserialize(newContext(),
+					subgraph, new StringReader(xml));
+			assertEquals(2, perReference.getTable2s().size());
+			assertEquals(2, counter.getCount());
+
+			counter.reset();
+			deserializer.setReferenceBatchSize(10);
+
+			Table1 result = deserializer.deserialize(newContext(), subgraph,
+					new StringReader(xml));
+			assertEquals(1, counter.getCount());
+
+			assertNotNull(result);
+			assertEquals("t12", result.getName());
+
+			// references are connected before the root callback is invoked
+			assertEquals(2, rootCallbackRefs[0]);
+			assertEquals(2, result.getTable2s().size());
+
+			Set<Object> ids = new HashSet<Object>();
+			for (Table2 t2 : result.getTable2s()) {
+				assertEquals(PersistenceState.COMMITTED, t2.getPersistenceState());
+				assertSame(result, t2.getTable1());
+				ids.add(t2.getObjectId());
+			}
+
+			assertTrue(ids.contains(t21.getObjectId()));
+			assertTrue(ids.contains(t22.getObjectId()));
+		} finally {
+			counter.uninstall();
+		}
+	}
+
+	public void testDeserializeByReferenceMissing() throws IOException {
+
+		ObjectContext context = newContext();
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("t21");
+		context.commitChanges();
+
+		final List<Object> callbackObjects = new ArrayList<Object>();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addCallbacks(new DeserializationCallback() {
+			public void postDeserialize(SubgraphNode node, Object object) {
+				callbackObjects.add(object);
+			}
+		});
+		subgraph.addRefPath(Table1.TABLE2S_PROPERTY);
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setReferenceBatchSize(10);
+
+		// the second reference points to a row that no longer exists
+		String xml = "<Table1><name>t12</name><table2s>"
+				+ "<Table2 ref=\"true\"><PK>" + Cayenne.intPKForObject(t21)
+				+ "</PK></Table2>" + "<Table2 ref=\"true\"><PK>"
+				+ Integer.MAX_VALUE + "</PK></Table2>"
+				+ "</table2s></Table1>";
+
+		Table1 result = deserializer.deserialize(context, subgraph,
+				new StringReader(xml));
+
+		assertEquals(1, result.getTable2s().size());
+		assertSame(t21, result.getTable2s().get(0));
+		assertEquals(Arrays.asList(result), callbackObjects);
+	}
+
 	public void testDeserializeByValueToMany() throws IOException {
 
 		ObjectContext context = newContext();
@@ -271,4 +394,489 @@ public class XStreamDeserializerTest extends SerializationCase {
 		assertTrue(callbackInvoked[0]);
 	}
 
+	public void testDeserializeStreaming() throws IOException {
+
+		ObjectContext context = newContext();
+
+		// records how much of the document was read when the first child
+		// was deserialized
+		final GeneratedDocumentReader[] reader = new GeneratedDocumentReader[1];
+		final int[] firstChildOffset = new int[] { -1 };
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY,
+				new DeserializationCallback() {
+					public void postDeserialize(SubgraphNode node, Object object) {
+						if (firstChildOffset[0] < 0) {
+							firstChildOffset[0] = reader[0].getCharsRead();
+						}
+					}
+				});
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		assertTrue(deserializer.isStreaming());
+		deserializer.setCommitCountThreshold(500);
+
+		// the document is generated on the fly and never exists in memory as
+		// a whole
+		reader[0] = new GeneratedDocumentReader(5000);
+
+		Table1 result;
+		try {
+			result = deserializer.deserialize(context, subgraph, reader[0]);
+		} finally {
+			reader[0].close();
+		}
+
+		assertNotNull(result);
+		assertEquals("t1", result.getName());
+		assertEquals(PersistenceState.COMMITTED, result.getPersistenceState());
+		assertEquals(5000, result.getTable2s().size());
+
+		// the first child is read before the parser gets anywhere near the
+		// end of the document
+		int length = reader[0].getCharsRead();
+		assertTrue("Read " + firstChildOffset[0] + " of " + length + " chars",
+				firstChildOffset[0] > 0 && firstChildOffset[0] < length / 4);
+
+		// while DOM parsing reads the whole document first
+		deserializer.setStreaming(false);
+		firstChildOffset[0] = -1;
+		reader[0] = new GeneratedDocumentReader(5000);
+		try {
+			deserializer.deserialize(newContext(), subgraph, reader[0]);
+		} finally {
+			reader[0].close();
+		}
+
+		assertEquals(length, firstChildOffset[0]);
+	}
+
+	public void testDeserializePipelined() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setCommitCountThreshold(500);
+		deserializer.setPipelineQueueSize(4);
+
+		Reader in = new GeneratedDocumentReader(3000);
+
+		Table1 result;
+		try {
+			result = deserializer.deserialize(context, subgraph, in);
+		} finally {
+			in.close();
+		}
+
+		assertNotNull(result);
+		assertEquals("t1", result.getName());
+		assertEquals(PersistenceState.COMMITTED, result.getPersistenceState());
+		assertEquals(3000, result.getTable2s().size());
+	}
+
+	public void testDeserializePipelinedInvalidXML() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setPipelineQueueSize(2);
+
+		StringReader in = new StringReader("<Table1><name>t1</nam></Table1>");
+		try {
+			deserializer.deserialize(context, subgraph, in);
+			fail("Invalid XML must cause an exception");
+		} catch (CayenneRuntimeException e) {
+			// expected
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testDeserializeEvictingCommittedObjects() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setCommitCountThreshold(100);
+		deserializer.setEvictingCommittedObjects(true);
+
+		Reader in = new GeneratedDocumentReader(2000);
+
+		Table1 result;
+		try {
+			result = deserializer.deserialize(context, subgraph, in);
+		} finally {
+			in.close();
+		}
+
+		assertNotNull(result);
+		assertEquals(PersistenceState.COMMITTED, result.getPersistenceState());
+
+		// only the last batch may be left in the context
+		int registered = ((DataContext) context).getObjectStore()
+				.registeredObjectsCount();
+		assertTrue("Too many objects: " + registered, registered <= 101);
+
+		// relationship is a fault now, and is resolved from the DB
+		assertEquals(2000, result.getTable2s().size());
+	}
+
+	public void testDeserializeIterator() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		StringReader in = new StringReader("<object-stream>"
+				+ "<Table1><name>iterated_0</name><table2s><Table2>"
+				+ "<name>iterated_child_0</name></Table2></table2s></Table1>"
+				+ "<Table1><name>iterated_1</name></Table1>"
+				+ "<Table1><name>iterated_2</name></Table1></object-stream>");
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setCommitCountThreshold(2);
+
+		List<String> names = new ArrayList<String>();
+		try {
+			Iterator<Table1> it = deserializer.deserializeIterator(context,
+					subgraph, in);
+			while (it.hasNext()) {
+				names.add(it.next().getName());
+			}
+		} finally {
+			in.close();
+		}
+
+		assertEquals(Arrays.asList("iterated_0", "iterated_1", "iterated_2"),
+				names);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "iterated_%"));
+		assertEquals(3, newContext().performQuery(query).size());
+	}
+
+	public void testDeserializeGzipped() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+
+		// two gzip members, as written by parallel compression
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (String part : new String[] {
+				"<object-stream><Table1><name>gzipped_0</name></Table1>",
+				"<Table1><name>gzipped_1</name></Table1></object-stream>" }) {
+			GZIPOutputStream member = new GZIPOutputStream(bytes);
+			member.write(part.getBytes("UTF-8"));
+			member.finish();
+		}
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setCommitting(false);
+
+		List<String> names = new ArrayList<String>();
+		Iterator<Table1> it = deserializer.deserializeIterator(context,
+				subgraph, new ByteArrayInputStream(bytes.toByteArray()));
+		while (it.hasNext()) {
+			names.add(it.next().getName());
+		}
+
+		assertEquals(Arrays.asList("gzipped_0", "gzipped_1"), names);
+
+		// uncompressed input is read as is
+		Table1 t1 = deserializer.deserialize(context, subgraph,
+				new ByteArrayInputStream("<Table1><name>plain</name></Table1>"
+						.getBytes("UTF-8")));
+		assertEquals("plain", t1.getName());
+	}
+
+	public void testDeserializeInParallel() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		StringBuilder xml = new StringBuilder("<object-stream>");
+		for (int i = 0; i < 25; i++) {
+			xml.append("<Table1><name>parallel_").append(i).append(
+					"</name><table2s><Table2><name>parallel_child_").append(i)
+					.append("</name></Table2></table2s></Table1>");
+		}
+		xml.append("</object-stream>");
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setParallelism(3);
+		deserializer.setChunkSize(4);
+
+		StringReader in = new StringReader(xml.toString());
+		try {
+			assertEquals(25, deserializer.deserializeInParallel(
+					contextFactory(), subgraph, in));
+		} finally {
+			in.close();
+		}
+
+		SelectQuery query = new SelectQuery(Table2.class, ExpressionFactory
+				.likeExp(Table2.NAME_PROPERTY, "parallel_child_%"));
+		List<?> children = context.performQuery(query);
+		assertEquals(25, children.size());
+		for (Object child : children) {
+			assertNotNull(((Table2) child).getTable1());
+		}
+	}
+
+	public void testDeserializeInParallelFailedChunk() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addCallbacks(failingCallback("par_fail_5"));
+
+		// roots 4 and 5 go to the second chunk, and one of them fails
+		StringBuilder xml = new StringBuilder("<object-stream>");
+		for (int i = 0; i < 10; i++) {
+			xml.append("<Table1><name>par_fail_").append(i).append(
+					"</name></Table1>");
+		}
+		xml.append("</object-stream>");
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setParallelism(2);
+		deserializer.setChunkSize(4);
+
+		StringReader in = new StringReader(xml.toString());
+		try {
+			deserializer.deserializeInParallel(contextFactory(), subgraph, in);
+			fail("Invalid chunk must cause an exception");
+		} catch (ParallelDeserializationException e) {
+			assertEquals(1, e.getFailures().size());
+			assertEquals(1, e.getFailures().get(0).getChunkIndex());
+			assertEquals(4, e.getFailures().get(0).getFirstRootIndex());
+		} finally {
+			in.close();
+		}
+
+		// other chunks are committed
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "par_fail_%"));
+		assertEquals(6, context.performQuery(query).size());
+	}
+
+	public void testDeserializeInParallelAllOrNothing() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addCallbacks(failingCallback("par_none_5"));
+
+		StringBuilder xml = new StringBuilder("<object-stream>");
+		for (int i = 0; i < 10; i++) {
+			xml.append("<Table1><name>par_none_").append(i).append(
+					"</name></Table1>");
+		}
+		xml.append("</object-stream>");
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setParallelism(2);
+		deserializer.setChunkSize(4);
+		deserializer.setAtomicChunks(false);
+
+		StringReader in = new StringReader(xml.toString());
+		try {
+			deserializer.deserializeInParallel(contextFactory(), subgraph, in);
+			fail("Invalid chunk must cause an exception");
+		} catch (ParallelDeserializationException e) {
+			assertEquals(1, e.getFailures().get(0).getChunkIndex());
+		} finally {
+			in.close();
+		}
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "par_none_%"));
+		assertEquals(0, context.performQuery(query).size());
+	}
+
+	public void testDeserializeInParallelAllCommitted() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+
+		StringBuilder xml = new StringBuilder("<object-stream>");
+		for (int i = 0; i < 10; i++) {
+			xml.append("<Table1><name>par_all_").append(i).append(
+					"</name></Table1>");
+		}
+		xml.append("</object-stream>");
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setParallelism(2);
+		deserializer.setChunkSize(4);
+		deserializer.setAtomicChunks(false);
+
+		StringReader in = new StringReader(xml.toString());
+		try {
+			assertEquals(10, deserializer.deserializeInParallel(
+					contextFactory(), subgraph, in));
+		} finally {
+			in.close();
+		}
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "par_all_%"));
+		assertEquals(10, context.performQuery(query).size());
+	}
+
+	/**
+	 * Returns a callback failing on a Table1 with a given name.
+	 */
+	private static DeserializationCallback failingCallback(final String name) {
+		return new DeserializationCallback() {
+			public void postDeserialize(SubgraphNode node, Object object) {
+				if (name.equals(((Table1) object).getName())) {
+					throw new CayenneRuntimeException("Rejected " + name);
+				}
+			}
+		};
+	}
+
+	/**
+	 * A Reader producing a Table1 document with a given number of Table2
+	 * children without ever holding the entire document in memory.
+	 */
+	static class GeneratedDocumentReader extends Reader {
+
+		private int children;
+		private int position;
+		private String chunk;
+		private int chunkOffset;
+		private int charsRead;
+
+		GeneratedDocumentReader(int children) {
+			this.children = children;
+			this.chunk = "<Table1><name>t1</name><table2s>";
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length)
+				throws IOException {
+
+			if (chunk == null) {
+				return -1;
+			}
+
+			int count = Math.min(length, chunk.length() - chunkOffset);
+			chunk.getChars(chunkOffset, chunkOffset + count, buffer, offset);
+			chunkOffset += count;
+			charsRead += count;
+
+			if (chunkOffset == chunk.length()) {
+				chunkOffset = 0;
+
+				if (position < children) {
+					chunk = "<Table2><name>t2_" + position++
+							+ "</name></Table2>";
+				} else if (position == children) {
+					chunk = "</table2s></Table1>";
+					position++;
+				} else {
+					chunk = null;
+				}
+			}
+
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			chunk = null;
+		}
+
+		/**
+		 * Returns the number of chars produced so far.
+		 */
+		int getCharsRead() {
+			return charsRead;
+		}
+	}
+
+	public void testDeserializeSharedObjects() throws IOException {
+
+		ObjectContext context = newContext();
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY + "."
+				+ Table2.TABLE1_PROPERTY);
+
+		String xml = "<Table1 id=\"1\"><name>shared</name><table2s>"
+				+ "<Table2 id=\"2\"><name>s1</name><table1><Table1 id=\"1\"><name>shared</name></Table1></table1></Table2>"
+				+ "<Table2 id=\"3\"><name>s2</name><table1><Table1 idref=\"1\"/></table1></Table2>"
+				+ "</table2s></Table1>";
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setCommitting(false);
+
+		Table1 result = deserializer.deserialize(context, subgraph,
+				new StringReader(xml));
+
+		assertEquals("shared", result.getName());
+		assertEquals(2, result.getTable2s().size());
+		for (Table2 t2 : result.getTable2s()) {
+			assertSame(result, t2.getTable1());
+		}
+
+		// no duplicates of the shared object are created
+		assertEquals(3, context.newObjects().size());
+	}
+
+	public void testDeserializeSkippingWatermark() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+
+		String xml = "<object-stream>"
+				+ "<Table1><name>watermarked_0</name></Table1>"
+				+ "<Table1><name>watermarked_1</name></Table1>"
+				+ "<watermark>2010-01-03 00:00:00.0 UTC</watermark>"
+				+ "</object-stream>";
+
+		XStreamDeserializer deserializer = new XStreamDeserializer();
+		deserializer.setCommitCountThreshold(2);
+
+		List<String> names = new ArrayList<String>();
+		Iterator<Table1> it = deserializer.deserializeIterator(context,
+				subgraph, new StringReader(xml));
+		while (it.hasNext()) {
+			names.add(it.next().getName());
+		}
+
+		assertEquals(Arrays.asList("watermarked_0", "watermarked_1"), names);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "watermarked_%"));
+		assertEquals(2, newContext().performQuery(query).size());
+	}
 }
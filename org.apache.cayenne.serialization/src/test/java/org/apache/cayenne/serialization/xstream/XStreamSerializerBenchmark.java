@@ -0,0 +1,85 @@
+/*****************************************************************
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ ****************************************************************/
+package org.apache.cayenne.serialization.xstream;
+
+import java.io.StringWriter;
+
+import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.serialization.Subgraph;
+import org.apache.cayenne.serialization.persistent.Table1;
+import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.unit.SerializationCase;
+
+/**
+ * Measures per-call overhead of serializing small subgraphs, comparing a new
+ * serializer per call, which has to configure XStream every time, with a
+ * shared serializer. Not a unit test, run it via the "main" method.
+ */
+public class XStreamSerializerBenchmark extends SerializationCase {
+
+	static final int CHILDREN = 200;
+	static final int WARMUP_CALLS = 500;
+	static final int CALLS = 2000;
+
+	public static void main(String[] args) {
+		new XStreamSerializerBenchmark().run();
+	}
+
+	void run() {
+
+		ObjectContext context = newContext();
+		Table1 root = context.newObject(Table1.class);
+		root.setName("benchmark");
+
+		for (int i = 0; i < CHILDREN; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("benchmark_" + i);
+			t2.setTable1(root);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		XStreamSerializer shared = new XStreamSerializer();
+
+		// warm up both code paths
+		for (int i = 0; i < WARMUP_CALLS; i++) {
+			new XStreamSerializer().serialize(root, subgraph, new StringWriter());
+			shared.serialize(root, subgraph, new StringWriter());
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			new XStreamSerializer().serialize(root, subgraph, new StringWriter());
+		}
+
+		long t1 = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			shared.serialize(root, subgraph, new StringWriter());
+		}
+
+		long t2 = System.nanoTime();
+
+		System.out.println("Objects per call: " + (CHILDREN + 1) + ", calls: " + CALLS);
+		System.out.println("New serializer per call: " + (t1 - t0) / CALLS / 1000 + " us/call");
+		System.out.println("Shared serializer:       " + (t2 - t1) / CALLS / 1000 + " us/call");
+	}
+}
@@ -18,19 +18,43 @@
  ****************************************************************/
 package org.apache.cayenne.serialization.xstream;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.cayenne.Cayenne;
 import org.apache.cayenne.ObjectContext;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.exp.ExpressionFactory;
 import org.apache.cayenne.query.Query;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.cayenne.query.SortOrder;
+import org.apache.cayenne.serialization.BatchSerializationCallback;
+import org.apache.cayenne.serialization.FragmentCache;
 import org.apache.cayenne.serialization.SerializationCallback;
 import org.apache.cayenne.serialization.Subgraph;
 import org.apache.cayenne.serialization.SubgraphNode;
 import org.apache.cayenne.serialization.persistent.Table1;
 import org.apache.cayenne.serialization.persistent.Table2;
+import org.apache.cayenne.serialization.persistent.Table3;
+import org.apache.cayenne.serialization.unit.QueryCounter;
 import org.apache.cayenne.serialization.unit.SerializationCase;
 import org.apache.cayenne.util.Util;
 
@@ -43,6 +67,525 @@ public class XStreamSerializerTest extends SerializationCase {
 		assertTrue(serializer.isCreatingCompactXML());
 	}
 
+	public void testSerializeCompactXML() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("t11");
+
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("t21");
+		t21.setTable1(t11);
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+
+		StringWriter pretty = new StringWriter();
+		serializer.serialize(t11, subgraph, pretty);
+		assertTrue(pretty.toString().indexOf('\n') > 0);
+
+		serializer.setCreatingCompactXML(true);
+
+		StringWriter compact = new StringWriter();
+		serializer.serialize(t11, subgraph, compact);
+		assertEquals("<Table1><name>t11</name><table2s>"
+				+ "<Table2><name>t21</name></Table2></table2s></Table1>",
+				compact.toString());
+	}
+
+	public void testSerializeQuery() throws IOException {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 3; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("multi_" + i);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "multi_%"));
+		query.addOrdering(Table1.NAME_PROPERTY, SortOrder.ASCENDING);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		serializer.setStatementFetchSize(2);
+
+		StringWriter out = new StringWriter();
+		serializer.serialize(context, query, subgraph, out);
+		assertEquals("<object-stream><Table1><name>multi_0</name></Table1>"
+				+ "<Table1><name>multi_1</name></Table1>"
+				+ "<Table1><name>multi_2</name></Table1></object-stream>", out
+				.toString());
+
+		// fetch size is set on a copy
+		assertEquals(0, query.getStatementFetchSize());
+	}
+
+	public void testSerializePrefetchWindow() throws IOException {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 5; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("window_" + i);
+
+			// leave one root without children
+			if (i != 2) {
+				Table2 t2 = context.newObject(Table2.class);
+				t2.setName("window_child_" + i);
+				t2.setTable1(t1);
+			}
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "window_%"));
+		query.addOrdering(Table1.NAME_PROPERTY, SortOrder.ASCENDING);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		assertEquals(0, serializer.getPrefetchWindowSize());
+
+		QueryCounter counter = QueryCounter.install(dataNode());
+		StringWriter perParent = new StringWriter();
+		StringWriter windowed = new StringWriter();
+		try {
+			// one query for the roots and one per root
+			serializer.serialize(context, query, subgraph, perParent);
+			assertEquals(6, counter.getCount());
+
+			// 5 roots make one full and one partial window
+			serializer.setPrefetchWindowSize(3);
+
+			counter.reset();
+			serializer.serialize(context, query, subgraph, windowed);
+			assertEquals(3, counter.getCount());
+		} finally {
+			counter.uninstall();
+		}
+
+		assertEquals(perParent.toString(), windowed.toString());
+		assertTrue(windowed.toString().indexOf(
+				"<Table1><name>window_2</name><table2s></table2s></Table1>") > 0
+				|| windowed.toString().indexOf(
+						"<Table1><name>window_2</name><table2s/></Table1>") > 0);
+		assertTrue(windowed.toString().indexOf(
+				"<Table2><name>window_child_4</name></Table2>") > 0);
+	}
+
+	public void testSerializePipelined() throws IOException {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 7; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("pipeline_" + i);
+
+			for (int j = 0; j < i % 3; j++) {
+				Table2 t2 = context.newObject(Table2.class);
+				t2.setName("pipeline_child_" + i + "_" + j);
+				t2.setTable1(t1);
+			}
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "pipeline_%"));
+		query.addOrdering(Table1.NAME_PROPERTY, SortOrder.ASCENDING);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		assertEquals(0, serializer.getPipelineThreads());
+		assertEquals(2, serializer.getPipelineReadAhead());
+
+		StringWriter sequential = new StringWriter();
+		serializer.serialize(context, query, subgraph, sequential);
+
+		// roots one by one
+		serializer.setPipelineThreads(2);
+
+		StringWriter pipelined = new StringWriter();
+		serializer.serialize(context, query, subgraph, pipelined);
+		assertEquals(sequential.toString(), pipelined.toString());
+
+		// windows of roots
+		serializer.setPrefetchWindowSize(3);
+
+		StringWriter windowed = new StringWriter();
+		serializer.serialize(context, query, subgraph, windowed);
+		assertEquals(sequential.toString(), windowed.toString());
+
+		assertTrue(windowed.toString().indexOf(
+				"<Table2><name>pipeline_child_5_1</name></Table2>") > 0);
+	}
+
+	public void testSerializeOutputStream() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("utf8 \u00e9\u4e2d\ud83d\ude00 & <'\"\r>");
+
+		for (int i = 0; i < 20; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("utf8_child_" + i);
+			t2.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		assertEquals(256 * 1024, serializer.getOutputBufferSize());
+		assertFalse(serializer.isBackgroundWriting());
+
+		// small buffers to switch buffers many times
+		serializer.setOutputBufferSize(16);
+
+		for (boolean compact : new boolean[] { true, false }) {
+			serializer.setCreatingCompactXML(compact);
+
+			StringWriter expected = new StringWriter();
+			serializer.serialize(t1, subgraph, expected);
+
+			for (boolean background : new boolean[] { false, true }) {
+				serializer.setBackgroundWriting(background);
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				serializer.serialize(t1, subgraph, out);
+				assertEquals(expected.toString(), new String(out.toByteArray(),
+						"UTF-8"));
+
+				out = new ByteArrayOutputStream();
+				serializer.serialize(Arrays.asList(t1, t1).iterator(),
+						subgraph, Channels.newChannel(out));
+
+				StringWriter expectedRoots = new StringWriter();
+				serializer.serialize(Arrays.asList(t1, t1).iterator(),
+						subgraph, expectedRoots);
+				assertEquals(expectedRoots.toString(), new String(out
+						.toByteArray(), "UTF-8"));
+			}
+		}
+	}
+
+	public void testSerializeCompressed() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t1 = context.newObject(Table1.class);
+		t1.setName("compressed");
+
+		for (int i = 0; i < 20; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("compressed_child_" + i);
+			t2.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		assertFalse(serializer.isCompressing());
+		assertEquals(1, serializer.getCompressionThreads());
+
+		StringWriter expected = new StringWriter();
+		serializer.serialize(t1, subgraph, expected);
+
+		serializer.setCompressing(true);
+
+		// a single gzip stream, and small blocks compressed in parallel
+		for (int threads : new int[] { 1, 3 }) {
+			serializer.setCompressionThreads(threads);
+			serializer.setCompressionBlockSize(50);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			serializer.serialize(t1, subgraph, out);
+
+			InputStream in = new GZIPInputStream(new ByteArrayInputStream(out
+					.toByteArray()));
+			ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				unzipped.write(buffer, 0, read);
+			}
+
+			assertEquals(expected.toString(), new String(unzipped
+					.toByteArray(), "UTF-8"));
+		}
+	}
+
+	public void testSerializeMergeJoined() throws IOException {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 4; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("merge_" + i);
+
+			// leave one root without children
+			for (int j = 0; j < i; j++) {
+				Table2 t2 = context.newObject(Table2.class);
+				t2.setName("merge_child_" + i + "_" + j);
+				t2.setTable1(t1);
+			}
+		}
+
+		// unrelated rows must not be merged in
+		Table1 other = context.newObject(Table1.class);
+		other.setName("other");
+		Table2 otherChild = context.newObject(Table2.class);
+		otherChild.setName("other_child");
+		otherChild.setTable1(other);
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		// roots are created in PK order, so ordering by name is the same
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "merge_%"));
+		query.addOrdering(Table1.NAME_PROPERTY, SortOrder.ASCENDING);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		assertFalse(serializer.isMergeJoining());
+
+		StringWriter perParent = new StringWriter();
+		serializer.serialize(context, query, subgraph, perParent);
+
+		serializer.setMergeJoining(true);
+
+		StringWriter merged = new StringWriter();
+		serializer.serialize(context, query, subgraph, merged);
+
+		assertEquals(perParent.toString(), merged.toString());
+		assertTrue(merged.toString().indexOf("merge_child_3_2") > 0);
+		assertTrue(merged.toString().indexOf("other") < 0);
+	}
+
+	public void testSerializeMergeJoinedMultiLevel() throws IOException {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 3; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("merge3_" + i);
+
+			for (int j = 0; j < 2; j++) {
+				Table2 t2 = context.newObject(Table2.class);
+				t2.setName("merge3_child_" + i + "_" + j);
+				t2.setTable1(t1);
+
+				// leave some children without grandchildren
+				for (int k = 0; k < i; k++) {
+					Table3 t3 = context.newObject(Table3.class);
+					t3.setName("merge3_grandchild_" + i + "_" + j + "_" + k);
+					t3.setTable2(t2);
+				}
+			}
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY + "."
+				+ Table2.TABLE3S_PROPERTY);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "merge3_%"));
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		serializer.setMergeJoining(true);
+
+		StringWriter merged = new StringWriter();
+		serializer.serialize(context, query, subgraph, merged);
+
+		// merge-joined roots are in PK order, so compare with per-parent
+		// fetching of the same order
+		SelectQuery pkOrdered = new SelectQuery(Table1.class, query
+				.getQualifier());
+		pkOrdered.addOrdering("db:" + Table1.PK_PK_COLUMN, SortOrder.ASCENDING);
+
+		serializer.setMergeJoining(false);
+		StringWriter perParent = new StringWriter();
+		serializer.serialize(context, pkOrdered, subgraph, perParent);
+
+		assertEquals(perParent.toString(), merged.toString());
+		for (int j = 0; j < 2; j++) {
+			for (int k = 0; k < 2; k++) {
+				assertTrue(merged.toString().indexOf(
+						"<Table3><name>merge3_grandchild_2_" + j + "_" + k
+								+ "</name></Table3>") > 0);
+			}
+		}
+	}
+
+	public void testSerializeDataRows() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("t11");
+
+		for (int i = 0; i < 3; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("t2" + i);
+			t2.setTable1(t11);
+		}
+
+		context.commitChanges();
+
+		int id = Cayenne.intPKForObject(t11);
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addRefPath(Table1.TABLE2S_PROPERTY + "."
+				+ Table2.TABLE1_PROPERTY);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		assertFalse(serializer.isSerializingDataRows());
+
+		StringWriter objects = new StringWriter();
+		serializer.serialize(Cayenne.objectForPK(newContext(), Table1.class,
+				id), subgraph, objects);
+
+		serializer.setSerializingDataRows(true);
+
+		DataContext rowsContext = (DataContext) newContext();
+		Table1 root = Cayenne.objectForPK(rowsContext, Table1.class, id);
+
+		StringWriter rows = new StringWriter();
+		serializer.serialize(root, subgraph, rows);
+
+		assertEquals(objects.toString(), rows.toString());
+		assertTrue(rows.toString().indexOf("<table1><Table1 ref=\"true\">") > 0);
+
+		// only the root is registered
+		assertEquals(1, rowsContext.getObjectStore().registeredObjectsCount());
+	}
+
+	public void testSerializeDataRowsProjected() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("t11");
+
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("t21");
+		t21.setDoubleColumn(1.5);
+		t21.setDateColumn(new GregorianCalendar(2010, 0, 1).getTime());
+		t21.setTable1(t11);
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+		subgraph.excludeAttribute(Table1.TABLE2S_PROPERTY + "."
+				+ Table2.DOUBLE_COLUMN_PROPERTY);
+
+		SubgraphNode table2Node = subgraph.getRootNode().getChild(
+				Table1.TABLE2S_PROPERTY);
+		SelectQuery query = new SelectQuery(Table2.class);
+		ColumnProjection.project(query, table2Node);
+		assertEquals(new HashSet<String>(Arrays.asList("PK", "DATE_COLUMN",
+				"NAME", "TABLE1_FK")), new HashSet<String>(query
+				.getCustomDbAttributes()));
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+
+		StringWriter objects = new StringWriter();
+		serializer.serialize(t11, subgraph, objects);
+
+		serializer.setSerializingDataRows(true);
+
+		StringWriter rows = new StringWriter();
+		serializer.serialize(t11, subgraph, rows);
+
+		assertEquals(objects.toString(), rows.toString());
+		assertTrue(rows.toString().indexOf("doubleColumn") < 0);
+		assertTrue(rows.toString().indexOf("dateColumn") > 0);
+	}
+
+	public void testSerializeConcurrently() throws Exception {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("t11");
+
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("t21");
+		t21.setTable1(t11);
+
+		context.commitChanges();
+
+		final int id = Cayenne.intPKForObject(t11);
+		final Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class,
+				context.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		final XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 20; i++) {
+				results.add(executor.submit(new Callable<String>() {
+
+					public String call() throws Exception {
+
+						// contexts are not thread-safe, unlike the serializer
+						Table1 t1 = Cayenne.objectForPK(newContext(),
+								Table1.class, id);
+
+						StringWriter out = new StringWriter();
+						serializer.serialize(t1, subgraph, out);
+						return out.toString();
+					}
+				}));
+			}
+
+			for (Future<String> result : results) {
+				assertEquals("<Table1><name>t11</name><table2s>"
+						+ "<Table2><name>t21</name></Table2></table2s></Table1>",
+						result.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertSame(serializer.getXStream(subgraph), serializer
+				.getXStream(subgraph));
+	}
+
 	public void testSerializeByValueToOne() throws IOException {
 
 		ObjectContext context = newContext();
@@ -151,6 +694,41 @@ public class XStreamSerializerTest extends SerializationCase {
 						.stringFromFile(file).trim().replaceAll("[\n]", "").replaceAll(">[ ]*<", "><"));
 	}
 
+	public void testSerializeByReferenceToOneFromSnapshot() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("t11");
+
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("t21");
+		t21.setTable1(t11);
+
+		context.commitChanges();
+
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+		subgraph.addRefPath(Table2.TABLE1_PROPERTY);
+
+		// a fresh context has the to-one as an unresolved fault
+		ObjectContext readContext = newContext();
+		Table2 t21Read = Cayenne.objectForPK(readContext, Table2.class,
+				Cayenne.intPKForObject(t21));
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+
+		StringWriter out = new StringWriter();
+		serializer.serialize(t21Read, subgraph, out);
+
+		assertEquals("<Table2><name>t21</name><table1><Table1 ref=\"true\"><PK>"
+				+ Cayenne.intPKForObject(t11) + "</PK></Table1></table1></Table2>",
+				out.toString());
+
+		// the target was never resolved
+		assertNull(readContext.getGraphManager().getNode(t11.getObjectId()));
+	}
+
 	public void testExcludeAttribute() throws IOException {
 
 		XStreamSerializer serializer = new XStreamSerializer();
@@ -237,4 +815,322 @@ public class XStreamSerializerTest extends SerializationCase {
 		assertTrue(callbackInvoked[0]);
 	}
 
+	public void testBatchCallbackByValueToMany() throws IOException {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 4; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("batch_" + i);
+
+			Table2 keep = context.newObject(Table2.class);
+			keep.setName("keep_" + i);
+			keep.setTable1(t1);
+
+			Table2 skip = context.newObject(Table2.class);
+			skip.setName("skip_" + i);
+			skip.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		final int[] callbackInvoked = new int[1];
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY,
+				new BatchSerializationCallback() {
+					public Query relationshipQuery(SubgraphNode node,
+							List<?> sourceObjects) {
+
+						callbackInvoked[0]++;
+
+						List<Object> ids = new ArrayList<Object>();
+						for (Object source : sourceObjects) {
+							ids.add(Cayenne.pkForObject((Table1) source));
+						}
+
+						return new SelectQuery(Table2.class, ExpressionFactory
+								.inDbExp("TABLE1_FK", ids).andExp(
+										ExpressionFactory.likeExp(
+												Table2.NAME_PROPERTY, "keep_%")));
+					}
+				});
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "batch_%"));
+		query.addOrdering(Table1.NAME_PROPERTY, SortOrder.ASCENDING);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+
+		// one callback invocation per parent
+		StringWriter perParent = new StringWriter();
+		serializer.serialize(context, query, subgraph, perParent);
+		assertEquals(4, callbackInvoked[0]);
+
+		// one callback invocation per window of parents
+		callbackInvoked[0] = 0;
+		serializer.setPrefetchWindowSize(2);
+
+		StringWriter windowed = new StringWriter();
+		serializer.serialize(context, query, subgraph, windowed);
+		assertEquals(2, callbackInvoked[0]);
+
+		assertEquals(perParent.toString(), windowed.toString());
+		assertTrue(windowed.toString().indexOf(
+				"<Table1><name>batch_3</name><table2s><Table2><name>keep_3</name></Table2></table2s></Table1>") > 0);
+		assertTrue(windowed.toString().indexOf("skip_") < 0);
+	}
+
+	public void testSerializeSharingObjects() {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("t11");
+
+		for (int i = 0; i < 2; i++) {
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("t2x");
+			t2.setTable1(t11);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY + "."
+				+ Table2.TABLE1_PROPERTY);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+		serializer.setSharingObjects(true);
+
+		StringWriter out = new StringWriter();
+		serializer.serialize(t11, subgraph, out);
+
+		// the root is written again under the nested node, and referenced
+		// afterwards
+		assertEquals("<Table1 id=\"1\"><name>t11</name><table2s>"
+				+ "<Table2 id=\"2\"><name>t2x</name><table1><Table1 id=\"1\"><name>t11</name></Table1></table1></Table2>"
+				+ "<Table2 id=\"3\"><name>t2x</name><table1><Table1 idref=\"1\"/></table1></Table2>"
+				+ "</table2s></Table1>", out.toString());
+	}
+
+	public void testSerializeFragmentCache() throws IOException {
+
+		ObjectContext context = newContext();
+		Table1 t11 = context.newObject(Table1.class);
+		t11.setName("cached");
+
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("f1");
+		t21.setTable1(t11);
+
+		Table2 t22 = context.newObject(Table2.class);
+		t22.setName("f2");
+		t22.setTable1(t11);
+
+		context.commitChanges();
+
+		Subgraph<Table2> subgraph = new Subgraph<Table2>(Table2.class, context
+				.getEntityResolver());
+		FragmentCache cache = new FragmentCache(1024, Table1.NAME_PROPERTY);
+		subgraph.addClonePath(Table2.TABLE1_PROPERTY).setFragmentCache(cache);
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+
+		// small buffers to capture fragments across buffer switches
+		serializer.setOutputBufferSize(16);
+
+		StringWriter expected = new StringWriter();
+		serializer.serialize(Arrays.asList(t21, t22).iterator(), subgraph,
+				expected);
+
+		// Writer output bypasses the cache
+		assertEquals(0, cache.getHits() + cache.getMisses());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(Arrays.asList(t21, t22).iterator(), subgraph, out);
+		assertEquals(expected.toString(), new String(out.toByteArray(), "UTF-8"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.size());
+
+		// a changed version replaces the fragment
+		t11.setName("renamed");
+
+		out = new ByteArrayOutputStream();
+		serializer.serialize(Arrays.asList(t21, t22).iterator(), subgraph, out);
+		String xml = new String(out.toByteArray(), "UTF-8");
+		assertEquals(2, xml.split("<name>renamed</name>").length - 1);
+		assertTrue(xml.indexOf("cached") < 0);
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		assertEquals(0.5, cache.getHitRate(), 0.0001);
+
+		cache.evict(t11.getObjectId());
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getSizeInBytes());
+	}
+
+	public void testSerializeChanges() throws IOException {
+
+		ObjectContext context = newContext();
+
+		Table1 unchanged = context.newObject(Table1.class);
+		unchanged.setName("delta_unchanged");
+
+		Table2 t21 = context.newObject(Table2.class);
+		t21.setName("delta_old1");
+		t21.setDateColumn(new GregorianCalendar(2010, 0, 1).getTime());
+		t21.setTable1(unchanged);
+
+		Table1 changed = context.newObject(Table1.class);
+		changed.setName("delta_changed");
+
+		Table2 t22 = context.newObject(Table2.class);
+		t22.setName("delta_old2");
+		t22.setDateColumn(new GregorianCalendar(2010, 0, 1).getTime());
+		t22.setTable1(changed);
+
+		Table2 t23 = context.newObject(Table2.class);
+		t23.setName("delta_new");
+		t23.setDateColumn(new GregorianCalendar(2010, 0, 3).getTime());
+		t23.setTable1(changed);
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY).setWatermarkAttribute(
+				Table2.DATE_COLUMN_PROPERTY);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "delta_%"));
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setCreatingCompactXML(true);
+
+		StringWriter out = new StringWriter();
+		Object watermark = serializer.serializeChanges(context, query,
+				subgraph, new GregorianCalendar(2010, 0, 2).getTime(), out);
+
+		assertEquals(new GregorianCalendar(2010, 0, 3).getTime(), watermark);
+
+		String xml = out.toString();
+		assertTrue(xml.indexOf("<name>delta_changed</name>") >= 0);
+		assertTrue(xml.indexOf("<name>delta_new</name>") >= 0);
+		assertTrue(xml.indexOf("delta_unchanged") < 0);
+		assertTrue(xml.indexOf("delta_old") < 0);
+		assertTrue(xml.endsWith("</watermark></object-stream>"));
+
+		// the caller query is not modified
+		assertEquals(2, context.performQuery(query).size());
+
+		// nothing changed since the last export
+		out = new StringWriter();
+		assertEquals(watermark, serializer.serializeChanges(context, query,
+				subgraph, watermark, out));
+		assertTrue(out.toString().indexOf("delta_") < 0);
+
+		// a full export with the initial watermark
+		out = new StringWriter();
+		assertEquals(watermark, serializer.serializeChanges(context, query,
+				subgraph, null, out));
+		assertTrue(out.toString().indexOf("delta_unchanged") >= 0);
+		assertTrue(out.toString().indexOf("delta_old1") >= 0);
+
+		// a full export written to a channel
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		assertEquals(watermark, serializer.serializeChanges(context, query,
+				subgraph, null, Channels.newChannel(bytes)));
+
+		xml = new String(bytes.toByteArray(), "UTF-8");
+		assertTrue(xml.indexOf("delta_unchanged") >= 0);
+		assertTrue(xml.endsWith("</watermark></object-stream>"));
+	}
+
+	public void testSerializeParts() throws IOException {
+
+		ObjectContext context = newContext();
+		for (int i = 0; i < 5; i++) {
+			Table1 t1 = context.newObject(Table1.class);
+			t1.setName("parts_" + i);
+
+			Table2 t2 = context.newObject(Table2.class);
+			t2.setName("parts_child_" + i);
+			t2.setTable1(t1);
+		}
+
+		context.commitChanges();
+
+		Subgraph<Table1> subgraph = new Subgraph<Table1>(Table1.class, context
+				.getEntityResolver());
+		subgraph.addClonePath(Table1.TABLE2S_PROPERTY);
+
+		SelectQuery query = new SelectQuery(Table1.class, ExpressionFactory
+				.likeExp(Table1.NAME_PROPERTY, "parts_%"));
+		query.addOrdering("db:PK", SortOrder.ASCENDING);
+
+		File directory = tempFile(null);
+		directory.mkdirs();
+
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.setMaxPartRoots(2);
+
+		PartManifest manifest = serializer.serializeParts(context, query,
+				subgraph, directory, "export");
+
+		assertEquals(3, manifest.getParts().size());
+		assertEquals(5, manifest.getRootCount());
+
+		PartManifest read = PartManifest.read(new File(directory,
+				"export-manifest.xml"));
+		assertEquals(3, read.getParts().size());
+
+		List<String> names = new ArrayList<String>();
+		Object previousMaxId = null;
+		for (int i = 0; i < 3; i++) {
+			PartManifest.Part part = read.getParts().get(i);
+			assertEquals("export-0000" + (i + 1) + ".xml", part.getFile());
+			assertEquals(i < 2 ? 2 : 1, part.getRootCount());
+			assertEquals(manifest.getParts().get(i).getMinId(), part.getMinId());
+			assertEquals(manifest.getParts().get(i).getMaxId(), part.getMaxId());
+
+			File file = new File(directory, part.getFile());
+			assertEquals(file.length(), part.getSizeInBytes());
+
+			// ranges are disjoint, as roots are ordered by PK
+			if (previousMaxId != null) {
+				assertTrue(((Number) previousMaxId).longValue() < ((Number) part
+						.getMinId()).longValue());
+			}
+			previousMaxId = part.getMaxId();
+
+			// each part is a document of its own
+			InputStream in = new FileInputStream(file);
+			try {
+				Iterator<Table1> it = new XStreamDeserializer()
+						.deserializeIterator(newContext(), subgraph, in);
+				while (it.hasNext()) {
+					Table1 t1 = it.next();
+					names.add(t1.getName());
+					assertEquals(1, t1.getTable2s().size());
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		assertEquals(Arrays.asList("parts_0", "parts_1", "parts_2",
+				"parts_3", "parts_4"), names);
+
+		// a part per root once the size limit is exceeded by any root
+		serializer.setMaxPartRoots(0);
+		serializer.setMaxPartSize(1);
+		manifest = serializer.serializeParts(context, query, subgraph,
+				directory, "bysize");
+		assertEquals(5, manifest.getParts().size());
+	}
 }